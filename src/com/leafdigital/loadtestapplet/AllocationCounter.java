@@ -0,0 +1,112 @@
+package com.leafdigital.loadtestapplet;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Measures memory allocated by the current thread, so that the amount
+ * allocated per request can be reported. Uses the extended ThreadMXBean
+ * found in Sun and OpenJDK virtual machines; on others (and on virtual
+ * threads) the amount is not known.
+ */
+public class AllocationCounter
+{
+	private static Object bean;
+	private static Method method;
+	private static boolean currentThreadMethod;
+
+	/** Bytes allocated by measuring itself */
+	private static long overhead;
+
+	private final static ThreadLocal<long[]> LAST = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[] { -1 };
+		}
+	};
+
+	static
+	{
+		// Reflection is used because the class is not part of the standard API
+		try
+		{
+			Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+			Object threadBean = ManagementFactory.getThreadMXBean();
+			if(c.isInstance(threadBean) && (Boolean)c.getMethod(
+				"isThreadAllocatedMemoryEnabled").invoke(threadBean))
+			{
+				try
+				{
+					method = c.getMethod("getCurrentThreadAllocatedBytes");
+					currentThreadMethod = true;
+				}
+				catch(NoSuchMethodException e)
+				{
+					method = c.getMethod("getThreadAllocatedBytes", long.class);
+				}
+				bean = threadBean;
+
+				overhead = Long.MAX_VALUE;
+				for(int i=0; i<10; i++)
+				{
+					long before = getCurrentThreadBytes();
+					overhead = Math.min(overhead, getCurrentThreadBytes() - before);
+				}
+				overhead = Math.max(overhead, 0);
+			}
+		}
+		catch(Exception e)
+		{
+			bean = null;
+		}
+	}
+
+	/**
+	 * @return True if allocation can be measured (on platform threads)
+	 */
+	public static boolean isSupported()
+	{
+		return bean != null;
+	}
+
+	/**
+	 * @return Total bytes allocated by the current thread, or -1 if not known
+	 */
+	public static long getCurrentThreadBytes()
+	{
+		if(bean == null)
+		{
+			return -1;
+		}
+		try
+		{
+			Object result = currentThreadMethod ? method.invoke(bean, (Object[])null)
+				: method.invoke(bean, Thread.currentThread().getId());
+			return (Long)result;
+		}
+		catch(Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread since the last call to
+	 * this method on the same thread, not counting the cost of measuring.
+	 * @return Bytes allocated, or -1 if not known (including on the first call)
+	 */
+	public static long sinceLast()
+	{
+		long now = getCurrentThreadBytes();
+		if(now < 0)
+		{
+			return -1;
+		}
+		long[] last = LAST.get();
+		long result = last[0] < 0 ? -1 : Math.max(now - last[0] - overhead, 0);
+		last[0] = now;
+		return result;
+	}
+}
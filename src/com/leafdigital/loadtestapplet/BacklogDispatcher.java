@@ -0,0 +1,533 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Dispatcher that decides what happens to a task when another dispatcher is
+ * at its limit. The task can be dropped (reported as not attempted), the
+ * scheduler can block until there is room, or the task can wait in a
+ * bounded first-in first-out backlog that is drained as tasks finish.
+ * <p>
+ * Queued tasks keep their original scheduled time, so their response time
+ * includes the time spent waiting. The dispatcher also records how long
+ * tasks waited and how deep the backlog was each second, so that a test
+ * limited by the load generator can be told apart from one limited by the
+ * server.
+ * <p>
+ * While nothing is waiting, tasks are passed on and finished tasks are
+ * reported without taking this dispatcher's lock, so it does not make
+ * threads that send or finish tasks wait for each other.
+ */
+public class BacklogDispatcher implements TaskDispatcher,
+	TaskDispatcher.CapacityListener
+{
+	/** Overflow policy: tasks that cannot run are not attempted */
+	public final static int OVERFLOW_DROP = 0;
+	/** Overflow policy: the scheduler waits until a task can run */
+	public final static int OVERFLOW_BLOCK = 1;
+	/** Overflow policy: tasks that cannot run wait in the backlog */
+	public final static int OVERFLOW_QUEUE = 2;
+
+	private final static String[] POLICY_NAMES = { "drop", "block", "queue" };
+
+	/** Default number of tasks the backlog can hold */
+	public final static int DEFAULT_BACKLOG = 1000;
+
+	/** Longest depth history kept, in seconds */
+	private final static int MAX_HISTORY = 24 * 60 * 60;
+
+	private TaskDispatcher dispatcher;
+	private int policy;
+	private volatile CapacityListener listener;
+
+	// Backlog, as a circular buffer of parallel arrays so queueing a task does
+	// not allocate
+	private int[] indexes;
+	private long[] scheduledTimes, queuedTimes;
+	private Runnable[] tasks;
+	private int head;
+	/** Tasks in backlog; only changed with the lock held */
+	private volatile int count;
+	/** Scheduler threads waiting to run a task (block policy) */
+	private volatile int blockedThreads;
+
+	private boolean draining, drainAgain;
+	private int stopCount;
+
+	// Statistics
+	private int queued, overflowed, blocked, maxDepth;
+	private long blockedNanos;
+	private LatencyHistogram waitTimes = new LatencyHistogram();
+	private long historyStart;
+	private int[] depthHistory = new int[64];
+	private int historyLength, lastDepth;
+
+	/**
+	 * @param dispatcher Dispatcher that runs tasks
+	 * @param policy OVERFLOW_xx constant
+	 * @param backlog Maximum number of tasks waiting (queue policy only; at
+	 *   least 1)
+	 */
+	public BacklogDispatcher(TaskDispatcher dispatcher, int policy, int backlog)
+	{
+		this.dispatcher = dispatcher;
+		this.policy = policy;
+		if(policy == OVERFLOW_QUEUE)
+		{
+			indexes = new int[backlog];
+			scheduledTimes = new long[backlog];
+			queuedTimes = new long[backlog];
+			tasks = new Runnable[backlog];
+		}
+		dispatcher.setCapacityListener(this);
+	}
+
+	/**
+	 * Gets an overflow policy from its name.
+	 * @param name Name: 'drop', 'block', or 'queue'
+	 * @return OVERFLOW_xx constant
+	 * @throws IllegalArgumentException If the name is not recognised
+	 */
+	public static int parsePolicy(String name) throws IllegalArgumentException
+	{
+		for(int i=0; i<POLICY_NAMES.length; i++)
+		{
+			if(POLICY_NAMES[i].equals(name))
+			{
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown overflow policy: " + name);
+	}
+
+	@Override
+	public boolean runTask(int index, long scheduled, Runnable task)
+	{
+		switch(policy)
+		{
+		case OVERFLOW_BLOCK:
+			return runBlocking(index, scheduled, task);
+		case OVERFLOW_QUEUE:
+			return runQueued(index, scheduled, task);
+		default:
+			return dispatcher.runTask(index, scheduled, task);
+		}
+	}
+
+	private boolean runBlocking(int index, long scheduled, Runnable task)
+	{
+		if(dispatcher.runTask(index, scheduled, task))
+		{
+			return true;
+		}
+		synchronized(this)
+		{
+			blocked++;
+			long start = System.nanoTime();
+			int startStopCount = stopCount;
+			// Once this is set, finishing tasks take the lock and wake this thread;
+			// try again in case one finished before it was set
+			blockedThreads++;
+			try
+			{
+				while(!dispatcher.runTask(index, scheduled, task))
+				{
+					try
+					{
+						// Time limit in case a task finished without telling the
+						// listener
+						wait(100);
+					}
+					catch(InterruptedException e)
+					{
+					}
+					if(stopCount != startStopCount)
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+			finally
+			{
+				blockedThreads--;
+				blockedNanos += System.nanoTime() - start;
+			}
+		}
+	}
+
+	private boolean runQueued(int index, long scheduled, Runnable task)
+	{
+		// Tasks only run directly when none are waiting, to keep them in order
+		if(count == 0 && dispatcher.runTask(index, scheduled, task))
+		{
+			return true;
+		}
+		synchronized(this)
+		{
+			if(count == 0 && dispatcher.runTask(index, scheduled, task))
+			{
+				return true;
+			}
+			if(count == tasks.length)
+			{
+				overflowed++;
+				return false;
+			}
+			int tail = (head + count) % tasks.length;
+			indexes[tail] = index;
+			scheduledTimes[tail] = scheduled;
+			queuedTimes[tail] = System.nanoTime();
+			tasks[tail] = task;
+			count++;
+			queued++;
+			recordDepth(queuedTimes[tail]);
+			if(count == 1)
+			{
+				// Finishing tasks only take the lock once the backlog is not empty,
+				// so try again in case one finished before this task was added
+				startDrain();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Records the current backlog depth. Must be called with the lock held.
+	 * @param now Current time (nanoTime)
+	 */
+	private void recordDepth(long now)
+	{
+		maxDepth = Math.max(maxDepth, count);
+		if(historyLength == 0)
+		{
+			historyStart = now;
+		}
+		long second = (now - historyStart) / 1000000000L;
+		if(second >= MAX_HISTORY)
+		{
+			return;
+		}
+		while(historyLength <= second)
+		{
+			if(historyLength == depthHistory.length)
+			{
+				int[] bigger = new int[depthHistory.length * 2];
+				System.arraycopy(depthHistory, 0, bigger, 0, historyLength);
+				depthHistory = bigger;
+			}
+			// Seconds with no change had the depth left by the last change
+			depthHistory[historyLength++] = lastDepth;
+		}
+		depthHistory[(int)second] = Math.max(depthHistory[(int)second], count);
+		lastDepth = count;
+	}
+
+	@Override
+	public void capacityAvailable()
+	{
+		// Usually nothing is waiting, so the lock is not needed
+		if(count > 0 || blockedThreads > 0)
+		{
+			synchronized(this)
+			{
+				notifyAll();
+				startDrain();
+			}
+		}
+		CapacityListener current = listener;
+		if(current != null)
+		{
+			current.capacityAvailable();
+		}
+	}
+
+	/**
+	 * Runs waiting tasks, unless this thread is already doing so. Must be
+	 * called with the lock held.
+	 */
+	private void startDrain()
+	{
+		if(count == 0)
+		{
+			return;
+		}
+		// A task that fails at once can call capacityAvailable again from
+		// inside runTask
+		if(draining)
+		{
+			drainAgain = true;
+			return;
+		}
+		draining = true;
+		try
+		{
+			drain();
+		}
+		finally
+		{
+			draining = false;
+		}
+	}
+
+	/**
+	 * Runs waiting tasks until there are none or the dispatcher is full. Must
+	 * be called with the lock held.
+	 */
+	private void drain()
+	{
+		while(count > 0)
+		{
+			drainAgain = false;
+			int index = indexes[head];
+			long scheduled = scheduledTimes[head], queuedTime = queuedTimes[head];
+			Runnable task = tasks[head];
+			tasks[head] = null;
+			head = (head + 1) % tasks.length;
+			count--;
+
+			if(dispatcher.runTask(index, scheduled, task))
+			{
+				long now = System.nanoTime();
+				waitTimes.record((now - queuedTime) / 1000);
+				recordDepth(now);
+				continue;
+			}
+
+			// Put it back at the front
+			head = (head + tasks.length - 1) % tasks.length;
+			indexes[head] = index;
+			scheduledTimes[head] = scheduled;
+			queuedTimes[head] = queuedTime;
+			tasks[head] = task;
+			count++;
+			if(!drainAgain)
+			{
+				break;
+			}
+		}
+		if(count == 0)
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Sets the listener told whenever a task finishes. It is told after any
+	 * waiting tasks have had the chance to run.
+	 * @param listener Listener, or null for none
+	 */
+	@Override
+	public void setCapacityListener(CapacityListener listener)
+	{
+		this.listener = listener;
+	}
+
+	@Override
+	public void prestart()
+	{
+		dispatcher.prestart();
+	}
+
+	@Override
+	public int getRunning()
+	{
+		return dispatcher.getRunning();
+	}
+
+	/**
+	 * @return Number of tasks in the backlog now
+	 */
+	public synchronized int getDepth()
+	{
+		return count;
+	}
+
+	@Override
+	public void waitForIdle()
+	{
+		synchronized(this)
+		{
+			while(count > 0)
+			{
+				try
+				{
+					// Time limit in case the dispatcher is idle but refused a task
+					wait(100);
+				}
+				catch(InterruptedException e)
+				{
+				}
+				if(!draining)
+				{
+					drain();
+				}
+			}
+		}
+		dispatcher.waitForIdle();
+	}
+
+	@Override
+	public void stop()
+	{
+		synchronized(this)
+		{
+			for(int i=0; i<count; i++)
+			{
+				tasks[(head + i) % tasks.length] = null;
+			}
+			head = 0;
+			count = 0;
+			stopCount++;
+			notifyAll();
+		}
+		dispatcher.stop();
+	}
+
+	/**
+	 * Clears the statistics.
+	 */
+	public synchronized void reset()
+	{
+		queued = 0;
+		overflowed = 0;
+		blocked = 0;
+		maxDepth = 0;
+		blockedNanos = 0;
+		waitTimes.reset();
+		historyLength = 0;
+		lastDepth = 0;
+	}
+
+	/**
+	 * @return Overflow policy (OVERFLOW_xx constant)
+	 */
+	public int getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * @return Number of tasks that waited in the backlog
+	 */
+	public synchronized int getQueued()
+	{
+		return queued;
+	}
+
+	/**
+	 * @return Number of tasks not attempted because the backlog was full
+	 */
+	public synchronized int getOverflowed()
+	{
+		return overflowed;
+	}
+
+	/**
+	 * @return Number of tasks for which the scheduler had to wait
+	 */
+	public synchronized int getBlocked()
+	{
+		return blocked;
+	}
+
+	/**
+	 * @return Total time the scheduler spent waiting, in milliseconds
+	 */
+	public synchronized long getBlockedTime()
+	{
+		return blockedNanos / 1000000L;
+	}
+
+	/**
+	 * @return Largest number of tasks in the backlog at once
+	 */
+	public synchronized int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * @return Histogram of time tasks spent in the backlog (microseconds)
+	 */
+	public LatencyHistogram getWaitTimes()
+	{
+		return waitTimes;
+	}
+
+	/**
+	 * @return Largest backlog depth during each second since the first task
+	 *   was queued
+	 */
+	public synchronized int[] getDepthHistory()
+	{
+		int[] result = new int[historyLength];
+		System.arraycopy(depthHistory, 0, result, 0, historyLength);
+		return result;
+	}
+
+	/**
+	 * Gets the backlog statistics as a JSON object. Times are in milliseconds.
+	 * @return JSON text
+	 */
+	public synchronized String toJson()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("{\"policy\":\"").append(POLICY_NAMES[policy]).append('"');
+		out.append(",\"queued\":").append(queued);
+		out.append(",\"overflowed\":").append(overflowed);
+		out.append(",\"blocked\":").append(blocked);
+		out.append(",\"blockedTime\":").append(getBlockedTime());
+		out.append(",\"maxDepth\":").append(maxDepth);
+		out.append(",\"wait\":{\"count\":").append(waitTimes.getCount());
+		out.append(",\"mean\":").append(format(waitTimes.getMean() / 1000.0));
+		out.append(",\"p99\":").append(
+			format(waitTimes.getValueAtPercentile(99) / 1000.0));
+		out.append(",\"max\":").append(format(waitTimes.getMax() / 1000.0));
+		out.append("},\"depth\":[");
+		for(int i=0; i<historyLength; i++)
+		{
+			if(i > 0)
+			{
+				out.append(',');
+			}
+			out.append(depthHistory[i]);
+		}
+		out.append("]}");
+		return out.toString();
+	}
+
+	/**
+	 * Writes the backlog statistics as text.
+	 * @param out Output
+	 */
+	public synchronized void write(PrintWriter out)
+	{
+		out.println("Overflow:      " + POLICY_NAMES[policy]);
+		if(policy == OVERFLOW_DROP)
+		{
+			return;
+		}
+		if(policy == OVERFLOW_BLOCK)
+		{
+			out.println("Blocked:       " + blocked + " times, " +
+				getBlockedTime() + " ms");
+			return;
+		}
+		out.println("Queued:        " + queued + " (max depth " + maxDepth +
+			", " + overflowed + " not attempted because backlog was full)");
+		if(waitTimes.getCount() > 0)
+		{
+			out.println("Queue wait (ms): mean " +
+				format(waitTimes.getMean() / 1000.0) + ", p99 " +
+				format(waitTimes.getValueAtPercentile(99) / 1000.0) + ", max " +
+				format(waitTimes.getMax() / 1000.0));
+		}
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.US, "%.1f", value);
+	}
+}
@@ -0,0 +1,74 @@
+package com.leafdigital.loadtestapplet;
+
+/**
+ * Pool of byte buffers of a fixed size, so that requests can reuse buffers
+ * instead of allocating new ones. Taking and returning a buffer does not
+ * allocate anything once the pool has enough buffers.
+ */
+public class BufferPool
+{
+	private int size;
+	private byte[][] free;
+	private int freeCount;
+	private long created, reused;
+
+	/**
+	 * @param size Size of each buffer in bytes
+	 * @param maxFree Maximum number of unused buffers to keep
+	 */
+	public BufferPool(int size, int maxFree)
+	{
+		this.size = size;
+		free = new byte[maxFree][];
+	}
+
+	/**
+	 * Takes a buffer from the pool, or creates one if none are free. The
+	 * buffer may contain data from its last use.
+	 * @return Buffer
+	 */
+	public byte[] take()
+	{
+		synchronized(this)
+		{
+			if(freeCount > 0)
+			{
+				reused++;
+				byte[] buffer = free[--freeCount];
+				free[freeCount] = null;
+				return buffer;
+			}
+			created++;
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Returns a buffer to the pool. If the pool is full the buffer is left for
+	 * the garbage collector.
+	 * @param buffer Buffer from {@link #take()}
+	 */
+	public synchronized void give(byte[] buffer)
+	{
+		if(freeCount < free.length)
+		{
+			free[freeCount++] = buffer;
+		}
+	}
+
+	/**
+	 * @return Number of buffers created because none were free
+	 */
+	public synchronized long getCreated()
+	{
+		return created;
+	}
+
+	/**
+	 * @return Number of times a free buffer was reused
+	 */
+	public synchronized long getReused()
+	{
+		return reused;
+	}
+}
@@ -0,0 +1,507 @@
+package com.leafdigital.loadtestapplet;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the highest request rate the server can sustain. The test runs in
+ * steps at different rates without stopping in between: the rate doubles
+ * after each step that meets the criteria until one fails, then the search
+ * bisects between the highest rate that passed and the lowest that failed.
+ * <p>
+ * The start and end of each step are not measured (the settle time), so
+ * that requests from the previous rate do not affect the result and
+ * requests near the end have time to finish. A step passes if:
+ * <ul>
+ * <li>the percentage of requests that succeeded is at least the minimum
+ *   ('success', default 100; requests not finished or not attempted count
+ *   as failures),</li>
+ * <li>requests completed at close enough to the target rate ('achieved',
+ *   default 0.9 of the rate),</li>
+ * <li>the median response time has not grown more than a factor over the
+ *   first step that passed ('median', default 1.5), and</li>
+ * <li>likewise the 99th percentile ('p99', default 0 = not checked).</li>
+ * </ul>
+ * Growth below 10 ms is always allowed, so that tiny times do not fail on
+ * noise. A failed step is retried once at the same rate before it counts.
+ */
+public class CapacitySearch implements WorkScheduler.Handler,
+	ThreadHandler.ResultReporter
+{
+	/** Longest possible search, in milliseconds */
+	private final static int MAX_DURATION = 24 * 60 * 60 * 1000;
+
+	/** Response time growth (microseconds) that never fails a step */
+	private final static long GROWTH_ALLOWANCE = 10000;
+
+	/** Most steps in a search */
+	private final static int MAX_STEPS = 50;
+
+	/** Highest rate tried (requests per second) */
+	private final static double MAX_RATE = 1000000;
+
+	private Runnable task;
+	private TaskDispatcher dispatcher;
+	private ThreadHandler.ResultReporter reporter;
+	private Listener listener;
+
+	private double startRate = 1, precision = 0.05;
+	private int stepTime = 10000, settleTime = 2000, retries = 1;
+	private double minSuccess = 100, maxMedianGrowth = 1.5, maxP99Growth = 0,
+		minAchieved = 0.9;
+
+	private WorkScheduler scheduler;
+	private RateProfile.Variable profile;
+	private volatile Step current;
+	private boolean started, stop;
+
+	/**
+	 * Told about the progress of a search.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a step has been measured.
+		 * @param step Step
+		 */
+		public void stepFinished(Step step);
+
+		/**
+		 * Called when the search has finished and all requests are complete.
+		 * @param rate Highest rate that passed (requests per second), 0 if none
+		 *   did, or -1 if the search was stopped
+		 */
+		public void searchFinished(double rate);
+	}
+
+	/**
+	 * One step of the search, at a single rate.
+	 */
+	public static class Step
+	{
+		private double rate;
+		private long measureFrom, measureTo;
+		private AtomicInteger scheduled = new AtomicInteger();
+		private ResultStatistics statistics = new ResultStatistics();
+		private String failure;
+		private double achieved;
+
+		private Step(double rate, long measureFrom, long measureTo)
+		{
+			this.rate = rate;
+			this.measureFrom = measureFrom;
+			this.measureTo = measureTo;
+		}
+
+		private boolean isMeasured(long scheduledTime)
+		{
+			return scheduledTime - measureFrom >= 0 && scheduledTime - measureTo < 0;
+		}
+
+		/**
+		 * @return Target rate (requests per second)
+		 */
+		public double getRate()
+		{
+			return rate;
+		}
+
+		/**
+		 * @return Rate at which requests completed (requests per second)
+		 */
+		public double getAchievedRate()
+		{
+			return achieved;
+		}
+
+		/**
+		 * @return True if the step met all the criteria
+		 */
+		public boolean isPass()
+		{
+			return failure == null;
+		}
+
+		/**
+		 * @return Reason the step failed, or null if it passed
+		 */
+		public String getFailure()
+		{
+			return failure;
+		}
+
+		/**
+		 * @return Statistics for requests in the measured part of the step
+		 */
+		public ResultStatistics getStatistics()
+		{
+			return statistics;
+		}
+
+		/**
+		 * @return JSON object with rate, achieved, pass, failure (if failed)
+		 *   and statistics (as {@link ResultStatistics#toJson()})
+		 */
+		public String toJson()
+		{
+			return "{\"rate\":" + format(rate) + ",\"achieved\":" + format(achieved) +
+				",\"pass\":" + isPass() +
+				(failure == null ? "" : ",\"failure\":\"" + failure + "\"") +
+				",\"statistics\":" + statistics.toJson() + "}";
+		}
+	}
+
+	/**
+	 * @param task Task to run at each event
+	 * @param dispatcher Dispatcher for tasks
+	 * @param reporter Reporter that the dispatcher uses, which is also given
+	 *   requests that could not be attempted; it must pass every result on to
+	 *   {@link #completed(TaskResult)}
+	 * @param listener Listener for progress
+	 */
+	public CapacitySearch(Runnable task, TaskDispatcher dispatcher,
+		ThreadHandler.ResultReporter reporter, Listener listener)
+	{
+		this.task = task;
+		this.dispatcher = dispatcher;
+		this.reporter = reporter;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the rate of the first step.
+	 * @param startRate Requests per second
+	 * @throws IllegalArgumentException If rate is not positive
+	 */
+	public void setStartRate(double startRate) throws IllegalArgumentException
+	{
+		checkStartRate(startRate);
+		this.startRate = startRate;
+	}
+
+	/**
+	 * Checks a rate for the first step.
+	 * @param startRate Requests per second
+	 * @throws IllegalArgumentException If rate is not positive
+	 */
+	public static void checkStartRate(double startRate)
+		throws IllegalArgumentException
+	{
+		if(!(startRate > 0))
+		{
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+	}
+
+	/**
+	 * Sets the length of each step.
+	 * @param stepTime Step time in milliseconds
+	 * @param settleTime Time at each end of the step that is not measured
+	 * @throws IllegalArgumentException If the step has no measured time
+	 */
+	public void setStepTime(int stepTime, int settleTime)
+		throws IllegalArgumentException
+	{
+		checkStepTime(stepTime, settleTime);
+		this.stepTime = stepTime;
+		this.settleTime = settleTime;
+	}
+
+	/**
+	 * Checks the length of each step.
+	 * @param stepTime Step time in milliseconds
+	 * @param settleTime Time at each end of the step that is not measured
+	 * @throws IllegalArgumentException If the step has no measured time
+	 */
+	public static void checkStepTime(int stepTime, int settleTime)
+		throws IllegalArgumentException
+	{
+		if(settleTime < 0 || stepTime <= settleTime * 2)
+		{
+			throw new IllegalArgumentException(
+				"Step must be longer than twice the settle time");
+		}
+	}
+
+	/**
+	 * Sets a criterion for a step to pass.
+	 * @param name 'success' (minimum percentage), 'achieved' (minimum fraction
+	 *   of the target rate), 'median' or 'p99' (maximum growth factor over the
+	 *   first step, or 0 to not check), or 'precision' (the search stops when
+	 *   the highest pass and lowest fail are within this fraction)
+	 * @param value Value
+	 * @throws IllegalArgumentException If the name or value is not valid
+	 */
+	public void setCriterion(String name, double value)
+		throws IllegalArgumentException
+	{
+		checkCriterion(name, value);
+		if(name.equals("success"))
+		{
+			minSuccess = value;
+		}
+		else if(name.equals("achieved"))
+		{
+			minAchieved = value;
+		}
+		else if(name.equals("median"))
+		{
+			maxMedianGrowth = value;
+		}
+		else if(name.equals("p99"))
+		{
+			maxP99Growth = value;
+		}
+		else
+		{
+			precision = value;
+		}
+	}
+
+	/**
+	 * Checks a criterion for a step to pass.
+	 * @param name Name (see {@link #setCriterion(String, double)})
+	 * @param value Value
+	 * @throws IllegalArgumentException If the name or value is not valid
+	 */
+	public static void checkCriterion(String name, double value)
+		throws IllegalArgumentException
+	{
+		if(value < 0)
+		{
+			throw new IllegalArgumentException("Value cannot be negative");
+		}
+		if(!(name.equals("success") && value <= 100) &&
+			!(name.equals("achieved") && value <= 1) &&
+			!name.equals("median") && !name.equals("p99") &&
+			!(name.equals("precision") && value > 0 && value < 1))
+		{
+			throw new IllegalArgumentException("Invalid criterion: " + name + " " +
+				value);
+		}
+	}
+
+	/**
+	 * Starts the search on a thread of its own.
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start() throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				search();
+			}
+		}, "Capacity search").start();
+	}
+
+	/**
+	 * Stops the search. The listener is told when requests have finished.
+	 */
+	public synchronized void stop()
+	{
+		stop = true;
+		notifyAll();
+	}
+
+	private void search()
+	{
+		double rate = startRate, passed = 0, failed = Double.POSITIVE_INFINITY;
+		Step baseline = null;
+		int failures = 0;
+		double result = -1;
+
+		profile = new RateProfile.Variable(MAX_DURATION, rate);
+		scheduler = new WorkScheduler(this);
+		scheduler.addProfile(0, profile, task);
+		try
+		{
+			beginStep(rate);
+			scheduler.start();
+			for(int steps = 1; ; steps++)
+			{
+				Step step = current;
+				synchronized(this)
+				{
+					long end = step.measureTo + settleTime * 1000000L;
+					while(!stop && System.nanoTime() - end < 0)
+					{
+						long remaining = (end - System.nanoTime()) / 1000000L;
+						wait(Math.max(1, remaining));
+					}
+					if(stop)
+					{
+						return;
+					}
+				}
+				evaluate(step, baseline);
+				listener.stepFinished(step);
+
+				if(step.isPass())
+				{
+					failures = 0;
+					passed = rate;
+					if(baseline == null)
+					{
+						baseline = step;
+					}
+					rate = failed == Double.POSITIVE_INFINITY ? rate * 2
+						: (passed + failed) / 2;
+				}
+				else if(++failures > retries)
+				{
+					failures = 0;
+					failed = rate;
+					rate = (passed + failed) / 2;
+				}
+
+				if((failed != Double.POSITIVE_INFINITY &&
+					failed - passed <= precision * failed) ||
+					(passed == 0 && failed <= startRate / 8) ||
+					rate > MAX_RATE || steps >= MAX_STEPS)
+				{
+					result = passed;
+					return;
+				}
+				beginStep(rate);
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		finally
+		{
+			scheduler.stop();
+			dispatcher.waitForIdle();
+			listener.searchFinished(result);
+		}
+	}
+
+	/**
+	 * Changes the rate and starts measuring a new step.
+	 * @param rate Requests per second
+	 */
+	private void beginStep(double rate)
+	{
+		long now = System.nanoTime();
+		current = new Step(rate, now + settleTime * 1000000L,
+			now + (stepTime - settleTime) * 1000000L);
+		profile.setRate(rate);
+	}
+
+	/**
+	 * Decides whether a step passed.
+	 * @param step Step
+	 * @param baseline First step that passed, or null if none
+	 */
+	private void evaluate(Step step, Step baseline)
+	{
+		ResultStatistics statistics = step.statistics;
+		int scheduled = step.scheduled.get();
+		int completed = statistics.getSuccesses() + statistics.getFailures();
+		step.achieved = completed * 1000000000.0 /
+			(step.measureTo - step.measureFrom);
+		if(scheduled == 0)
+		{
+			step.failure = "No requests measured";
+			return;
+		}
+		double success = statistics.getSuccesses() * 100.0 / scheduled;
+		if(success < minSuccess)
+		{
+			step.failure = "Success " + format(success) + "%";
+		}
+		else if(step.achieved < step.rate * minAchieved)
+		{
+			step.failure = "Achieved " + format(step.achieved) + " requests/s";
+		}
+		else if(baseline != null && isGrowth(maxMedianGrowth,
+			baseline.statistics.getResponseTimes().getValueAtPercentile(50),
+			statistics.getResponseTimes().getValueAtPercentile(50)))
+		{
+			step.failure = "Median time grew to " + format(
+				statistics.getResponseTimes().getValueAtPercentile(50) / 1000.0) +
+				" ms";
+		}
+		else if(baseline != null && isGrowth(maxP99Growth,
+			baseline.statistics.getResponseTimes().getValueAtPercentile(99),
+			statistics.getResponseTimes().getValueAtPercentile(99)))
+		{
+			step.failure = "p99 time grew to " + format(
+				statistics.getResponseTimes().getValueAtPercentile(99) / 1000.0) +
+				" ms";
+		}
+	}
+
+	private static boolean isGrowth(double factor, long before, long after)
+	{
+		return factor > 0 && after > before * factor &&
+			after > before + GROWTH_ALLOWANCE;
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.US, "%.1f", value);
+	}
+
+	@Override
+	public void runTask(int index, long scheduled, Runnable task)
+	{
+		Step step = current;
+		if(step.isMeasured(scheduled))
+		{
+			step.scheduled.incrementAndGet();
+		}
+		if(!dispatcher.runTask(index, scheduled, task))
+		{
+			reporter.completed(new TaskResult(index, scheduled, System.nanoTime()));
+		}
+	}
+
+	@Override
+	public void skipTask(int index, long scheduled)
+	{
+		// Not used; the search scheduler always catches up in a burst
+	}
+
+	@Override
+	public void completed(TaskResult result)
+	{
+		Step step = current;
+		if(step != null && step.isMeasured(result.getScheduledTime()))
+		{
+			step.statistics.completed(result);
+		}
+	}
+
+	@Override
+	public void succeeded(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void failed(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void percentComplete(int percent)
+	{
+	}
+
+	@Override
+	public void workFinished()
+	{
+		// Only happens if the search reaches its maximum duration
+		stop();
+	}
+}
@@ -0,0 +1,146 @@
+package com.leafdigital.loadtestapplet;
+
+import java.text.*;
+import java.util.*;
+
+/**
+ * Cookies for one session. Cookies set by the server are kept and sent with
+ * later requests that use the same jar, so each jar is logged in (or not)
+ * separately. The test is assumed to be against one site, so the domain and
+ * path of cookies are not checked.
+ */
+public class CookieJar
+{
+	private final static String[] DATE_FORMATS =
+	{
+		"EEE, dd MMM yyyy HH:mm:ss zzz", "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+		"EEE, dd-MMM-yy HH:mm:ss zzz"
+	};
+
+	private Map<String, String> cookies = new LinkedHashMap<String, String>();
+
+	/** Value of Cookie header, or null if it needs to be built */
+	private String header;
+
+	/**
+	 * Creates an empty jar.
+	 */
+	public CookieJar()
+	{
+	}
+
+	/**
+	 * Creates a jar holding existing cookies.
+	 * @param cookie Cookies (full value of header line, e.g. 'a=1; b=2') or
+	 *   null if none
+	 */
+	public CookieJar(String cookie)
+	{
+		if(cookie == null)
+		{
+			return;
+		}
+		for(String part : cookie.split(";"))
+		{
+			int equals = part.indexOf('=');
+			if(equals > 0)
+			{
+				cookies.put(part.substring(0, equals).trim(),
+					part.substring(equals + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * @return Cookies to send (full value of header line) or null if none
+	 */
+	public synchronized String getHeader()
+	{
+		if(cookies.isEmpty())
+		{
+			return null;
+		}
+		if(header == null)
+		{
+			StringBuilder out = new StringBuilder();
+			for(Map.Entry<String, String> cookie : cookies.entrySet())
+			{
+				if(out.length() > 0)
+				{
+					out.append("; ");
+				}
+				out.append(cookie.getKey()).append('=').append(cookie.getValue());
+			}
+			header = out.toString();
+		}
+		return header;
+	}
+
+	/**
+	 * Updates the jar from a response header. An expired cookie is removed.
+	 * @param setCookie Value of Set-Cookie header
+	 */
+	public synchronized void setCookie(String setCookie)
+	{
+		String[] parts = setCookie.split(";");
+		int equals = parts[0].indexOf('=');
+		if(equals <= 0)
+		{
+			return;
+		}
+		String name = parts[0].substring(0, equals).trim(),
+			value = parts[0].substring(equals + 1).trim();
+
+		boolean expired = false, maxAge = false;
+		for(int i=1; i<parts.length; i++)
+		{
+			String attribute = parts[i].trim(),
+				lower = attribute.toLowerCase(Locale.US);
+			if(lower.startsWith("max-age="))
+			{
+				try
+				{
+					expired = Long.parseLong(attribute.substring(8).trim()) <= 0;
+					maxAge = true;
+				}
+				catch(NumberFormatException e)
+				{
+				}
+			}
+			else if(lower.startsWith("expires=") && !maxAge)
+			{
+				Date date = parseDate(attribute.substring(8).trim());
+				expired = date != null && date.getTime() <= System.currentTimeMillis();
+			}
+		}
+
+		if(expired)
+		{
+			cookies.remove(name);
+		}
+		else
+		{
+			cookies.put(name, value);
+		}
+		header = null;
+	}
+
+	/**
+	 * @param text Date from Expires attribute
+	 * @return Date, or null if not recognised
+	 */
+	private static Date parseDate(String text)
+	{
+		for(String format : DATE_FORMATS)
+		{
+			try
+			{
+				return new SimpleDateFormat(format, Locale.US).parse(text);
+			}
+			catch(ParseException e)
+			{
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,215 @@
+package com.leafdigital.loadtestapplet;
+
+import java.util.*;
+
+/**
+ * Set of thread handlers used to run tasks. Idle handlers wait in a
+ * lock-free queue, so giving a task to one takes constant time however
+ * many handlers there are; if none are idle, a new handler is added up to
+ * the maximum.
+ */
+public class HandlerPool implements TaskDispatcher, ThreadHandler.IdleListener
+{
+	private int maxThreads, scale;
+	private ThreadHandler.Reporter reporter;
+	private ThreadTracker tracker;
+	private Listener listener;
+	private volatile TaskDispatcher.CapacityListener capacityListener;
+
+	private Object threadsSynch = new Object();
+	private List<ThreadHandler> threads = new ArrayList<ThreadHandler>();
+	private RingQueue<ThreadHandler> idle;
+
+	/**
+	 * Interface for owner object that wants to know about handler changes.
+	 */
+	public interface Listener
+	{
+		/**
+		 * Called when a new handler has been created and started.
+		 * @param handler New handler
+		 */
+		public void handlerAdded(ThreadHandler handler);
+
+		/**
+		 * Called when a handler has been stopped and removed.
+		 * @param handler Removed handler
+		 */
+		public void handlerRemoved(ThreadHandler handler);
+	}
+
+	/**
+	 * @param maxThreads Maximum number of handlers
+	 * @param reporter Reporter for task results
+	 * @param tracker Tracker for thread display, or null if running without
+	 *   any display
+	 * @param scale Scale for boxes (max milliseconds to display)
+	 * @param listener Listener for handler changes, or null if none
+	 */
+	public HandlerPool(int maxThreads, ThreadHandler.Reporter reporter,
+		ThreadTracker tracker, int scale, Listener listener)
+	{
+		this.maxThreads = maxThreads;
+		this.reporter = reporter;
+		this.tracker = tracker;
+		this.scale = scale;
+		this.listener = listener;
+		// Room for handlers from before a stop that become idle after it; they
+		// are discarded when taken, as stopped handlers refuse tasks
+		idle = new RingQueue<ThreadHandler>(maxThreads * 2);
+	}
+
+	/**
+	 * Runs a task on an idle handler, adding a new handler if necessary.
+	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start (nanoTime)
+	 * @param task Task to run
+	 * @return True if task is now running, false if all handlers are busy and
+	 *   the maximum number has been reached
+	 */
+	@Override
+	public boolean runTask(int index, long scheduled, Runnable task)
+	{
+		// Use an idle handler if there is one
+		while(true)
+		{
+			ThreadHandler handler = idle.poll();
+			if(handler == null)
+			{
+				break;
+			}
+			if(handler.task(index, scheduled, task))
+			{
+				return true;
+			}
+		}
+
+		// Add another thread
+		ThreadHandler newHandler = addHandler();
+		return newHandler != null && newHandler.task(index, scheduled, task);
+	}
+
+	/**
+	 * Adds and starts a new handler, if there are fewer than the maximum.
+	 * @return New handler, or null if there are already the maximum
+	 */
+	private ThreadHandler addHandler()
+	{
+		synchronized(threadsSynch)
+		{
+			if(threads.size() >= maxThreads)
+			{
+				return null;
+			}
+			ThreadHandler newHandler;
+			if(tracker == null)
+			{
+				newHandler = new ThreadHandler(threads.size(), reporter);
+			}
+			else
+			{
+				newHandler = new ThreadHandler(threads.size(), reporter, tracker,
+					scale);
+			}
+			newHandler.setIdleListener(this);
+			threads.add(newHandler);
+			newHandler.start();
+			if(listener != null)
+			{
+				listener.handlerAdded(newHandler);
+			}
+			return newHandler;
+		}
+	}
+
+	/**
+	 * Starts the maximum number of handlers now, so that threads are not
+	 * created during the test.
+	 */
+	@Override
+	public void prestart()
+	{
+		while(true)
+		{
+			ThreadHandler newHandler = addHandler();
+			if(newHandler == null)
+			{
+				break;
+			}
+			idle.offer(newHandler);
+		}
+	}
+
+	@Override
+	public void handlerIdle(ThreadHandler handler)
+	{
+		// Cannot be full, as each handler is only in the queue once (plus
+		// stopped handlers)
+		idle.offer(handler);
+		TaskDispatcher.CapacityListener current = capacityListener;
+		if(current != null)
+		{
+			current.capacityAvailable();
+		}
+	}
+
+	@Override
+	public void setCapacityListener(TaskDispatcher.CapacityListener listener)
+	{
+		capacityListener = listener;
+	}
+
+	@Override
+	public int getRunning()
+	{
+		synchronized(threadsSynch)
+		{
+			// Approximate, as handlers move to the idle queue without the lock
+			return Math.max(threads.size() - idle.size(), 0);
+		}
+	}
+
+	/**
+	 * Waits until all handlers have finished their current tasks.
+	 */
+	@Override
+	public void waitForIdle()
+	{
+		List<ThreadHandler> current;
+		synchronized(threadsSynch)
+		{
+			current = new ArrayList<ThreadHandler>(threads);
+		}
+		for(ThreadHandler thread : current)
+		{
+			thread.waitForIdle();
+		}
+	}
+
+	/**
+	 * Stops and removes all handlers. The pool can be used again afterwards.
+	 */
+	@Override
+	public void stop()
+	{
+		// Handlers are stopped without holding the lock, as a handler finishing
+		// its task may be waiting for a thread that is adding a handler
+		List<ThreadHandler> current;
+		synchronized(threadsSynch)
+		{
+			current = new ArrayList<ThreadHandler>(threads);
+			threads.clear();
+			while(idle.poll() != null)
+			{
+			}
+		}
+		for(ThreadHandler thread : current)
+		{
+			thread.stop();
+			if(listener != null)
+			{
+				listener.handlerRemoved(thread);
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package com.leafdigital.loadtestapplet;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.swing.*;
+
+/**
+ * Swing component that shows all requests together, however many threads
+ * there are: a heat map of response time (vertical, logarithmic) against
+ * time (horizontal, scrolling), and below it the number of requests in
+ * flight. The cost of recording and painting does not depend on the number
+ * of threads or requests.
+ */
+public class HeatMapDisplay extends JComponent implements
+	ThreadHandler.ResultReporter
+{
+	/** Milliseconds covered by each column */
+	private final static int COLUMN_MS = 500;
+	/** Number of columns (one minute) */
+	private final static int COLUMNS = 120;
+	/** Number of rows; two per doubling of time from 1 ms */
+	private final static int ROWS = 32;
+
+	private final static int LABEL_WIDTH = 44;
+	private final static int FLIGHT_HEIGHT = 36;
+	private final static int GAP = 4;
+
+	private final static int[] LABEL_MS = { 1, 10, 100, 1000, 10000 };
+	private final static String[] LABELS = { "1ms", "10ms", "100ms", "1s",
+		"10s" };
+
+	private final static Color BACKGROUND_COLOR = LoadTestApplet.LIGHT_COLOR;
+	private final static Color FLIGHT_COLOR = LoadTestApplet.DARK_COLOR;
+	private final static Color FAILURE_COLOR = Color.RED;
+	private final static Color[] PALETTE = new Color[64];
+	static
+	{
+		Color light = Color.WHITE, dark = LoadTestApplet.DARK_COLOR;
+		for(int i=0; i<PALETTE.length; i++)
+		{
+			float f = (i + 1) / (float)PALETTE.length;
+			PALETTE[i] = new Color(
+				(int)(light.getRed() + (dark.getRed() - light.getRed()) * f),
+				(int)(light.getGreen() + (dark.getGreen() - light.getGreen()) * f),
+				(int)(light.getBlue() + (dark.getBlue() - light.getBlue()) * f));
+		}
+	}
+
+	private TaskDispatcher dispatcher;
+	private boolean measureResponse;
+
+	// Counts for each column are stored together, column * ROWS + row
+	private AtomicIntegerArray counts = new AtomicIntegerArray(COLUMNS * ROWS),
+		failures = new AtomicIntegerArray(COLUMNS);
+	/** Requests in flight at the end of each column (painting thread only) */
+	private int[] running = new int[COLUMNS];
+	private volatile int column;
+
+	private Timer timer;
+	private String flightText = "";
+
+	/**
+	 * @param dispatcher Dispatcher, for the number of requests in flight
+	 * @param measureResponse True to show response time (from scheduled
+	 *   start), false for service time (from actual start)
+	 */
+	public HeatMapDisplay(TaskDispatcher dispatcher, boolean measureResponse)
+	{
+		this.dispatcher = dispatcher;
+		this.measureResponse = measureResponse;
+		setOpaque(true);
+		setBackground(BACKGROUND_COLOR);
+		Font font = getFont();
+		if(font == null)
+		{
+			font = new JLabel().getFont();
+		}
+		setFont(font.deriveFont(font.getSize2D() * 0.75f));
+
+		timer = new Timer(COLUMN_MS, new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				nextColumn();
+			}
+		});
+	}
+
+	/**
+	 * Starts moving along and repainting.
+	 */
+	public void start()
+	{
+		timer.start();
+	}
+
+	/**
+	 * Stops moving along.
+	 */
+	public void stop()
+	{
+		timer.stop();
+	}
+
+	/**
+	 * Clears all results. Can be called from any thread.
+	 */
+	public void clear()
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for(int i=0; i<COLUMNS; i++)
+				{
+					clearColumn(i);
+				}
+				repaint();
+			}
+		});
+	}
+
+	private void clearColumn(int index)
+	{
+		for(int row=0; row<ROWS; row++)
+		{
+			counts.set(index * ROWS + row, 0);
+		}
+		failures.set(index, 0);
+		running[index] = 0;
+	}
+
+	/**
+	 * Called by the timer to finish the current column.
+	 */
+	private void nextColumn()
+	{
+		int current = column;
+		running[current] = dispatcher.getRunning();
+		flightText = "In flight: " + running[current];
+
+		// Clear the next column before results go into it
+		int next = (current + 1) % COLUMNS;
+		clearColumn(next);
+		column = next;
+		repaint();
+	}
+
+	/**
+	 * @param ms Time in milliseconds (may be fractional)
+	 * @return Row, from 0 (under 1 ms) up
+	 */
+	private static double getRow(double ms)
+	{
+		if(ms < 1)
+		{
+			return 0;
+		}
+		return Math.min(ROWS - 1, 1 + 2 * Math.log(ms) / Math.log(2));
+	}
+
+	@Override
+	public void completed(TaskResult result)
+	{
+		if(!result.isAttempted())
+		{
+			return;
+		}
+		int current = column;
+		long micros = measureResponse ? result.getResponseMicros()
+			: result.getServiceMicros();
+		counts.incrementAndGet(current * ROWS + (int)getRow(micros / 1000.0));
+		if(!result.isSuccess())
+		{
+			failures.incrementAndGet(current);
+		}
+	}
+
+	@Override
+	public void succeeded(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void failed(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	protected void paintComponent(Graphics g)
+	{
+		g.setColor(BACKGROUND_COLOR);
+		g.fillRect(0, 0, getWidth(), getHeight());
+
+		int mapX = LABEL_WIDTH, mapWidth = getWidth() - LABEL_WIDTH - GAP;
+		int mapHeight = getHeight() - FLIGHT_HEIGHT - GAP * 2;
+		int flightY = mapHeight + GAP * 2;
+		if(mapWidth <= 0 || mapHeight <= 0)
+		{
+			return;
+		}
+		g.setColor(Color.WHITE);
+		g.fillRect(mapX, 0, mapWidth, mapHeight);
+
+		// Find the largest values so that colours and bars fit
+		int maxCount = 1, maxRunning = 1;
+		for(int i=0; i<COLUMNS * ROWS; i++)
+		{
+			maxCount = Math.max(maxCount, counts.get(i));
+		}
+		for(int i=0; i<COLUMNS; i++)
+		{
+			maxRunning = Math.max(maxRunning, running[i]);
+		}
+		double logMax = Math.log(maxCount + 1);
+
+		// Oldest column is on the left, current column on the right
+		int current = column;
+		for(int i=0; i<COLUMNS; i++)
+		{
+			int index = (current + 1 + i) % COLUMNS;
+			int x = mapX + i * mapWidth / COLUMNS;
+			int width = mapX + (i + 1) * mapWidth / COLUMNS - x;
+			for(int row=0; row<ROWS; row++)
+			{
+				int count = counts.get(index * ROWS + row);
+				if(count == 0)
+				{
+					continue;
+				}
+				int y = mapHeight - (row + 1) * mapHeight / ROWS;
+				int height = mapHeight - row * mapHeight / ROWS - y;
+				int shade = (int)((PALETTE.length - 1) * Math.log(count + 1) /
+					logMax);
+				g.setColor(PALETTE[shade]);
+				g.fillRect(x, y, width, height);
+			}
+			if(failures.get(index) > 0)
+			{
+				g.setColor(FAILURE_COLOR);
+				g.fillRect(x, 0, width, 2);
+			}
+			if(index != current && running[index] > 0)
+			{
+				int height = running[index] * FLIGHT_HEIGHT / maxRunning;
+				g.setColor(FLIGHT_COLOR);
+				g.fillRect(x, flightY + FLIGHT_HEIGHT - height, width, height);
+			}
+		}
+
+		// Labels
+		((Graphics2D)g).setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+			RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setFont(getFont());
+		FontMetrics metrics = g.getFontMetrics();
+		g.setColor(Color.BLACK);
+		for(int i=0; i<LABEL_MS.length; i++)
+		{
+			int y = mapHeight - (int)(getRow(LABEL_MS[i]) * mapHeight / ROWS);
+			if(y < metrics.getAscent())
+			{
+				break;
+			}
+			g.drawString(LABELS[i], GAP, y + metrics.getAscent() / 2);
+			g.drawLine(mapX - GAP, y, mapX, y);
+		}
+		g.drawString(flightText, mapX + GAP, flightY + metrics.getAscent());
+	}
+}
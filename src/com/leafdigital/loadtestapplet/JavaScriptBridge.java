@@ -0,0 +1,255 @@
+package com.leafdigital.loadtestapplet;
+
+import java.applet.Applet;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+
+/**
+ * Sends results and other commands to JavaScript on the page. Results are
+ * collected into batches and delivered with a single call to
+ * loadTestResults([[index,ms,result],...]) when a batch is full or has
+ * waited long enough. Commands and batches are delivered in the order they
+ * were sent, on a thread of their own.
+ */
+public class JavaScriptBridge
+{
+	private final static String CONSOLE_TAG = "leafdigital JavaScriptBridge: ";
+
+	private final static int BATCH_SIZE = 1000;
+	private final static int BATCH_INTERVAL = 250;
+
+	private Applet applet;
+
+	private boolean started, stop, stopped;
+	private LinkedList<Object> pending = new LinkedList<Object>();
+
+	private boolean unavailable;
+	private Object window;
+	private Method evalMethod;
+
+	/**
+	 * Results waiting to be sent in one call.
+	 */
+	private static class Batch
+	{
+		private long created = System.currentTimeMillis();
+		private int[] indexes = new int[BATCH_SIZE], times = new int[BATCH_SIZE];
+		private boolean[] results = new boolean[BATCH_SIZE];
+		private int count;
+
+		private boolean isFull()
+		{
+			return count == BATCH_SIZE;
+		}
+
+		private String toJS()
+		{
+			StringBuilder out = new StringBuilder(count * 16 + 32);
+			out.append("loadTestResults([");
+			for(int i=0; i<count; i++)
+			{
+				if(i > 0)
+				{
+					out.append(',');
+				}
+				out.append('[').append(indexes[i]).append(',').append(times[i]).append(
+					',').append(results[i]).append(']');
+			}
+			out.append("]);");
+			return out.toString();
+		}
+	}
+
+	/**
+	 * @param applet Applet on the page
+	 */
+	public JavaScriptBridge(Applet applet)
+	{
+		this.applet = applet;
+	}
+
+	/**
+	 * Starts delivery thread.
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start() throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				thread();
+			}
+		}, "JavaScript bridge").start();
+	}
+
+	/**
+	 * Delivers anything still waiting, then stops the delivery thread.
+	 */
+	public synchronized void stop()
+	{
+		if(!started)
+		{
+			return;
+		}
+		stop = true;
+		notifyAll();
+		try
+		{
+			while(!stopped)
+			{
+				wait();
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+	}
+
+	/**
+	 * Adds a result to the current batch.
+	 * @param index Index of task
+	 * @param ms Milliseconds (-1 = task was not attempted)
+	 * @param result True = success, false = failure
+	 */
+	public synchronized void result(int index, int ms, boolean result)
+	{
+		Batch batch = null;
+		if(!pending.isEmpty() && pending.getLast() instanceof Batch)
+		{
+			batch = (Batch)pending.getLast();
+			if(batch.isFull())
+			{
+				batch = null;
+			}
+		}
+		if(batch == null)
+		{
+			batch = new Batch();
+			pending.addLast(batch);
+		}
+		batch.indexes[batch.count] = index;
+		batch.times[batch.count] = ms;
+		batch.results[batch.count] = result;
+		batch.count++;
+		if(batch.isFull() || pending.size() == 1)
+		{
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Runs JavaScript after any results already sent.
+	 * @param js JavaScript code
+	 */
+	public synchronized void eval(String js)
+	{
+		pending.addLast(js);
+		notifyAll();
+	}
+
+	private void thread()
+	{
+		try
+		{
+			while(true)
+			{
+				Object next;
+				synchronized(this)
+				{
+					while(true)
+					{
+						if(pending.isEmpty())
+						{
+							if(stop)
+							{
+								return;
+							}
+							wait();
+							continue;
+						}
+						Object first = pending.getFirst();
+						if(stop || !(first instanceof Batch) || pending.size() > 1)
+						{
+							break;
+						}
+						Batch batch = (Batch)first;
+						long wait = batch.created + BATCH_INTERVAL -
+							System.currentTimeMillis();
+						if(batch.isFull() || wait <= 0)
+						{
+							break;
+						}
+						wait(wait);
+					}
+					next = pending.removeFirst();
+				}
+
+				if(next instanceof Batch)
+				{
+					deliver(((Batch)next).toJS());
+				}
+				else
+				{
+					deliver((String)next);
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		finally
+		{
+			synchronized(this)
+			{
+				stopped = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void deliver(String js)
+	{
+		try
+		{
+			if(evalMethod == null && !unavailable)
+			{
+				// Decided to use reflection to make this easier to compile - otherwise
+				// it needs plugin.jar from a JRE. Also this should make it safer at
+				// runtime. The window and method are looked up once only.
+
+				// JSObject.getWindow(applet)
+				try
+				{
+					Class<?> c = Class.forName("netscape.javascript.JSObject");
+					Method m = c.getMethod("getWindow", new Class<?>[] {Applet.class});
+					window = m.invoke(null, applet);
+					evalMethod = c.getMethod("eval", new Class<?>[] {String.class});
+				}
+				catch(ClassNotFoundException e)
+				{
+					unavailable = true;
+				}
+			}
+			if(unavailable)
+			{
+				System.err.println(CONSOLE_TAG + "JSObject support not found - " +
+					(js.length() > 100 ? js.substring(0, 100) + "..." : js));
+				return;
+			}
+
+			// window.eval(js);
+			evalMethod.invoke(window, js);
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
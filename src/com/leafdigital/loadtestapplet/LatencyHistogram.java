@@ -0,0 +1,273 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-size histogram of non-negative values (normally microseconds) with
+ * logarithmic buckets. Values below 256 are recorded exactly; larger values
+ * are recorded to within 1/128 (under 0.8%). Memory use does not depend on
+ * the number of values recorded.
+ * <p>
+ * Recording is lock-free and can be done from any number of threads.
+ * <p>
+ * Histograms can be sent between processes as deltas (only the buckets that
+ * changed since the last send) and merged, so that results from several
+ * load generators can be combined exactly.
+ */
+public class LatencyHistogram
+{
+	/** Number of bits of precision kept for each value. */
+	private final static int SUB_BUCKET_BITS = 8;
+	private final static int HALF_SUB_BUCKET = 1 << (SUB_BUCKET_BITS - 1);
+
+	/** Largest value that can be recorded (about 12 days in microseconds). */
+	public final static long MAX_VALUE = (1L << 40) - 1;
+
+	private final static int BUCKETS = getIndex(MAX_VALUE) + 1;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong count = new AtomicLong(), total = new AtomicLong(),
+		min = new AtomicLong(Long.MAX_VALUE), max = new AtomicLong(-1);
+
+	private static int getIndex(long value)
+	{
+		int highBit = 63 - Long.numberOfLeadingZeros(value);
+		if(highBit < SUB_BUCKET_BITS)
+		{
+			return (int)value;
+		}
+		int shift = highBit - (SUB_BUCKET_BITS - 1);
+		return shift * HALF_SUB_BUCKET + (int)(value >> shift);
+	}
+
+	/**
+	 * @param index Bucket index
+	 * @return Highest value that is recorded in the bucket
+	 */
+	private static long getHighestValue(int index)
+	{
+		if(index < 2 * HALF_SUB_BUCKET)
+		{
+			return index;
+		}
+		int shift = index / HALF_SUB_BUCKET - 1;
+		long subBucket = index - shift * HALF_SUB_BUCKET;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a value.
+	 * @param value Value; negative values are recorded as 0 and values above
+	 *   {@link #MAX_VALUE} as MAX_VALUE
+	 */
+	public void record(long value)
+	{
+		value = Math.min(Math.max(value, 0), MAX_VALUE);
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		updateMinMax(value, value);
+	}
+
+	private void updateMinMax(long newMin, long newMax)
+	{
+		long current = min.get();
+		while(newMin < current && !min.compareAndSet(current, newMin))
+		{
+			current = min.get();
+		}
+		current = max.get();
+		while(newMax > current && !max.compareAndSet(current, newMax))
+		{
+			current = max.get();
+		}
+	}
+
+	/**
+	 * @return New array for {@link #writeDelta(DataOutput, long[])} to keep
+	 *   track of what it has sent
+	 */
+	public static long[] createDeltaState()
+	{
+		return new long[BUCKETS + 1];
+	}
+
+	/**
+	 * Writes the changes since the last call, so that another histogram can
+	 * add them with {@link #readDelta(DataInput)}. Values recorded while this
+	 * runs may be split between this delta and the next.
+	 * @param out Output
+	 * @param sent Array from {@link #createDeltaState()}, used with this
+	 *   histogram only; it is updated with the totals sent
+	 * @throws IOException If there is an error writing
+	 */
+	public void writeDelta(DataOutput out, long[] sent) throws IOException
+	{
+		int changed = 0;
+		for(int i=0; i<BUCKETS; i++)
+		{
+			if(counts.get(i) != sent[i])
+			{
+				changed++;
+			}
+		}
+		writeVarLong(out, changed);
+		int last = 0;
+		for(int i=0; i<BUCKETS && changed > 0; i++)
+		{
+			long now = counts.get(i);
+			if(now != sent[i])
+			{
+				// Bucket indexes are sent as gaps, which are usually small
+				writeVarLong(out, i - last);
+				writeVarLong(out, now - sent[i]);
+				sent[i] = now;
+				last = i;
+				changed--;
+			}
+		}
+		long nowTotal = total.get();
+		writeVarLong(out, nowTotal - sent[BUCKETS]);
+		sent[BUCKETS] = nowTotal;
+		writeVarLong(out, getMin());
+		writeVarLong(out, getMax());
+	}
+
+	/**
+	 * Adds changes written by {@link #writeDelta(DataOutput, long[])}.
+	 * @param in Input
+	 * @throws IOException If there is an error reading or the data is invalid
+	 */
+	public void readDelta(DataInput in) throws IOException
+	{
+		long changed = readVarLong(in);
+		long added = 0;
+		int index = 0;
+		for(long i=0; i<changed; i++)
+		{
+			index += (int)readVarLong(in);
+			if(index < 0 || index >= BUCKETS)
+			{
+				throw new IOException("Invalid histogram bucket: " + index);
+			}
+			long delta = readVarLong(in);
+			counts.addAndGet(index, delta);
+			added += delta;
+		}
+		total.addAndGet(readVarLong(in));
+		long deltaMin = readVarLong(in), deltaMax = readVarLong(in);
+		if(added > 0)
+		{
+			updateMinMax(deltaMin, deltaMax);
+			count.addAndGet(added);
+		}
+	}
+
+	/**
+	 * Writes a non-negative number in as few bytes as possible (7 bits per
+	 * byte).
+	 * @param out Output
+	 * @param value Value
+	 * @throws IOException If there is an error writing
+	 */
+	private static void writeVarLong(DataOutput out, long value)
+		throws IOException
+	{
+		while((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException
+	{
+		long value = 0;
+		for(int shift=0; shift<64; shift+=7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7f) << shift;
+			if((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Invalid number");
+	}
+
+	/**
+	 * Clears all values.
+	 */
+	public void reset()
+	{
+		for(int i=0; i<BUCKETS; i++)
+		{
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(-1);
+	}
+
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * @return Smallest value recorded, or 0 if none
+	 */
+	public long getMin()
+	{
+		return count.get() == 0 ? 0 : min.get();
+	}
+
+	/**
+	 * @return Largest value recorded, or 0 if none
+	 */
+	public long getMax()
+	{
+		return count.get() == 0 ? 0 : max.get();
+	}
+
+	/**
+	 * @return Mean of values recorded, or 0 if none
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : (double)total.get() / n;
+	}
+
+	/**
+	 * Gets the value at a given percentile. The result is the highest value
+	 * that falls in the same bucket, so it is never lower than the true value.
+	 * @param percentile Percentile (0-100)
+	 * @return Value at that percentile, or 0 if none recorded
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long n = count.get();
+		if(n == 0)
+		{
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil(n * percentile / 100.0));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if(seen >= target)
+			{
+				return Math.min(getHighestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
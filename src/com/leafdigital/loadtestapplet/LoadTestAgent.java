@@ -0,0 +1,307 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Runs part of a test plan for a {@link LoadTestController}, so that the load
+ * can come from more than one machine. The agent waits for a controller to
+ * connect, runs its share of the plan from the start time the controller
+ * gives, and sends statistics back as it goes. Agents serve one controller
+ * at a time and keep running afterwards.
+ * <p>
+ * Every agent starts at the same clock time, so the clocks of the machines
+ * should be synchronised (for example with NTP).
+ * <p>
+ * Agents listen on the loopback address unless given another address to
+ * bind to, and only accept controllers that send the same token, read from
+ * a file that both are given. Plans from a controller cannot read or write
+ * files on the agent's machine (see {@link TestPlan}); the agent's own
+ * command line sets its result log and metrics outputs.
+ * <p>
+ * Protocol, with numbers as written by DataOutputStream: the controller
+ * sends {@link #PROTOCOL}, the token (writeUTF), the agent index, the
+ * number of agents, the start
+ * time (milliseconds since 1970), and the plan (length in bytes, then
+ * UTF-8 text). The agent then sends messages, each a type byte:
+ * {@link #MESSAGE_DELTA} followed by a statistics delta (see
+ * {@link ResultStatistics#writeDelta(DataOutput,
+ * ResultStatistics.DeltaState)}), {@link #MESSAGE_FINISHED} followed by a
+ * final delta and a text summary (writeUTF), or {@link #MESSAGE_ERROR}
+ * followed by an error message (writeUTF).
+ */
+public class LoadTestAgent
+{
+	private final static String CONSOLE_TAG = "leafdigital LoadTestAgent: ";
+
+	/** Default TCP port */
+	public final static int DEFAULT_PORT = 8701;
+
+	/** Default address to listen on */
+	public final static String DEFAULT_BIND = "127.0.0.1";
+
+	/** Identifies the protocol and its version */
+	final static int PROTOCOL = 0x4c544132;
+	/** Message type: statistics delta */
+	final static int MESSAGE_DELTA = 1;
+	/** Message type: test finished */
+	final static int MESSAGE_FINISHED = 2;
+	/** Message type: test could not run */
+	final static int MESSAGE_ERROR = 3;
+
+	/** Largest plan accepted, in bytes */
+	private final static int MAX_PLAN = 16 * 1024 * 1024;
+
+	/** Milliseconds between statistics deltas */
+	private final static int DELTA_INTERVAL = 1000;
+
+	/** Milliseconds a controller may take to send its plan */
+	private final static int HANDSHAKE_TIMEOUT = 30000;
+
+	/**
+	 * Reads the shared token from a file.
+	 * @param file File; the first line is the token
+	 * @return Token
+	 * @throws IOException If the file cannot be read or has no token
+	 */
+	static String readToken(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String token = reader.readLine();
+			if(token == null || token.trim().length() == 0)
+			{
+				throw new IOException("No token in " + file);
+			}
+			return token.trim();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Runs a test for a controller that has connected.
+	 * @param socket Connection to controller
+	 * @param token Token the controller must send
+	 * @param log File for result log, or null if none
+	 * @param metrics Outputs for metrics
+	 * @throws IOException If there is an error communicating
+	 */
+	private static void handle(Socket socket, String token, File log,
+		List<TestPlan.Metrics> metrics) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			socket.getOutputStream()));
+
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		if(in.readInt() != PROTOCOL)
+		{
+			throw new IOException("Not a load test controller");
+		}
+		if(!MessageDigest.isEqual(in.readUTF().getBytes("UTF-8"),
+			token.getBytes("UTF-8")))
+		{
+			out.writeByte(MESSAGE_ERROR);
+			out.writeUTF("Invalid token");
+			out.flush();
+			throw new IOException("Invalid token from " +
+				socket.getRemoteSocketAddress());
+		}
+		int part = in.readInt(), parts = in.readInt();
+		final long startAt = in.readLong();
+		int length = in.readInt();
+		if(parts < 1 || part < 0 || part >= parts || length < 0 ||
+			length > MAX_PLAN)
+		{
+			throw new IOException("Invalid request");
+		}
+		byte[] planData = new byte[length];
+		in.readFully(planData);
+		socket.setSoTimeout(0);
+
+		TestPlan plan;
+		try
+		{
+			plan = new TestPlan(new InputStreamReader(
+				new ByteArrayInputStream(planData), "UTF-8"), "plan", true);
+			plan.setLog(log);
+			for(TestPlan.Metrics output : metrics)
+			{
+				plan.addMetrics(output);
+			}
+		}
+		catch(IOException e)
+		{
+			out.writeByte(MESSAGE_ERROR);
+			out.writeUTF(e.getMessage());
+			out.flush();
+			return;
+		}
+		System.err.println(CONSOLE_TAG + "Running part " + (part + 1) + " of " +
+			parts + " for " + socket.getRemoteSocketAddress());
+
+		final LoadTestRunner runner = new LoadTestRunner(plan, part, parts);
+		try
+		{
+			runner.openOutputs();
+		}
+		catch(IOException e)
+		{
+			out.writeByte(MESSAGE_ERROR);
+			out.writeUTF("Failed to open output: " + e.getMessage());
+			out.flush();
+			return;
+		}
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runner.run(startAt);
+			}
+		}, "Load test agent runner");
+		thread.start();
+
+		ResultStatistics.DeltaState state = new ResultStatistics.DeltaState();
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					thread.join(DELTA_INTERVAL);
+				}
+				catch(InterruptedException e)
+				{
+				}
+				if(!thread.isAlive())
+				{
+					break;
+				}
+				out.writeByte(MESSAGE_DELTA);
+				runner.getStatistics().writeDelta(out, state);
+				out.flush();
+			}
+		}
+		catch(IOException e)
+		{
+			// Controller has gone, so stop the test
+			runner.stop();
+			throw e;
+		}
+
+		StringWriter summary = new StringWriter();
+		runner.writeSummary(new PrintWriter(summary));
+		out.writeByte(MESSAGE_FINISHED);
+		runner.getStatistics().writeDelta(out, state);
+		out.writeUTF(summary.toString());
+		out.flush();
+	}
+
+	/**
+	 * Runs an agent.
+	 * @param args Options: -token-file (required), -port, -bind, -log, and
+	 *   -metrics (which may be repeated, followed by an output as in a plan)
+	 */
+	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		String bind = DEFAULT_BIND;
+		File tokenFile = null, log = null;
+		List<TestPlan.Metrics> metrics = new LinkedList<TestPlan.Metrics>();
+		boolean ok = true;
+		for(int i=0; i<args.length && ok; i++)
+		{
+			if(args[i].equals("-port") && i + 1 < args.length &&
+				args[i + 1].matches("[0-9]{1,5}"))
+			{
+				port = Integer.parseInt(args[++i]);
+			}
+			else if(args[i].equals("-bind") && i + 1 < args.length)
+			{
+				bind = args[++i];
+			}
+			else if(args[i].equals("-token-file") && i + 1 < args.length)
+			{
+				tokenFile = new File(args[++i]);
+			}
+			else if(args[i].equals("-log") && i + 1 < args.length)
+			{
+				log = new File(args[++i]);
+			}
+			else if(args[i].equals("-metrics") && i + 2 < args.length)
+			{
+				try
+				{
+					metrics.add(TestPlan.parseMetrics(args[++i] + " " + args[++i]));
+				}
+				catch(IllegalArgumentException e)
+				{
+					System.err.println(CONSOLE_TAG + e.getMessage());
+					ok = false;
+				}
+			}
+			else
+			{
+				ok = false;
+			}
+		}
+		if(!ok || tokenFile == null || port > 65535)
+		{
+			System.err.println("Usage: java " + LoadTestAgent.class.getName() +
+				" -token-file <file> [-port <port>] [-bind <address>]" +
+				" [-log <file>] [-metrics csv|json <file>|prometheus <port>]...");
+			System.exit(1);
+		}
+
+		String token;
+		ServerSocket server;
+		try
+		{
+			token = readToken(tokenFile);
+			server = new ServerSocket(port, 50, InetAddress.getByName(bind));
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + "Cannot start: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.err.println(CONSOLE_TAG + "Listening on " +
+			server.getLocalSocketAddress());
+		while(true)
+		{
+			Socket socket = null;
+			try
+			{
+				socket = server.accept();
+				handle(socket, token, log, metrics);
+			}
+			catch(IOException e)
+			{
+				System.err.println(CONSOLE_TAG + "Test failed: " + e.getMessage());
+			}
+			finally
+			{
+				if(socket != null)
+				{
+					try
+					{
+						socket.close();
+					}
+					catch(IOException e)
+					{
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,11 +1,13 @@
 package com.leafdigital.loadtestapplet;
 
-import java.applet.Applet;
 import java.awt.*;
-import java.io.*;
-import java.lang.reflect.Method;
 import java.net.*;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -14,32 +16,48 @@ import javax.swing.*;
  * Applet that can be controlled from JavaScript to carry out load testing by
  * making many web requests.
  */
-public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
-	WorkScheduler.Handler
+public class LoadTestApplet extends JApplet implements
+	ThreadHandler.ResultReporter, WorkScheduler.Handler, LoadTestTask.Context,
+	HandlerPool.Listener, CapacitySearch.Listener
 {
 	static final Color LIGHT_COLOR = new Color(255, 240, 245);
 	static final Color DARK_COLOR = new Color(128, 20, 100);
 
-	private final static int READ_TIMEOUT = 10000, CONNECT_TIMEOUT = 10000;
-
 	private final static int DEFAULT_THREADS = 20;
+	/** Most threads for which each thread is displayed by default */
+	private final static int MAX_THREAD_DISPLAYS = 100;
 	private final static int DEFAULT_SCALE = 1000;
 	private final static String CONSOLE_TAG = "leafdigital LoadTestApplet: ";
 
 	private final static int MARGIN = 10;
 
 	private int maxThreads, scale;
+	private boolean measureResponse, prestart;
+	private int warmup;
+	private int catchUp = WorkScheduler.CATCHUP_BURST,
+		catchUpTolerance = WorkScheduler.DEFAULT_TOLERANCE, shards = 1;
 	private String cookie;
+	private volatile SessionPool sessions;
+
+	/** Time (nanoTime) before which results count as warm-up */
+	private volatile long warmupEnd;
 
-	private Object threadsSynch = new Object();
-	private ThreadHandler[] threads;
+	private BacklogDispatcher dispatcher;
+	private ResultStatistics statistics = new ResultStatistics(),
+		warmupStatistics = new ResultStatistics();
+	private volatile TimeSeries timeSeries;
 	private ThreadTracker tracker;
 	private WorkScheduler scheduler;
-
-	private int nextThread;
+	private List<UserGroup> groups = new LinkedList<UserGroup>();
+	private volatile CapacitySearch search;
+	private Map<String, Double> criteria = new LinkedHashMap<String, Double>();
+	private Map<String, RequestTemplate> requests =
+		new HashMap<String, RequestTemplate>();
+	private JavaScriptBridge bridge;
 
 	private JProgressBar progress;
 	private JPanel threadDisplay;
+	private HeatMapDisplay heatMap;
 
 	@Override
 	public void init()
@@ -58,10 +76,24 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 			System.err.println();
 		}
 
+		// Get request engine; the NIO engine does not use a thread per request
+		boolean nio = "nio".equals(getParameter("engine"));
+		int pipeline = 1;
+		String pipelineText = getParameter("pipeline");
+		if(pipelineText != null && pipelineText.matches("[1-9][0-9]{0,2}"))
+		{
+			pipeline = Integer.parseInt(pipelineText);
+		}
+
+		// Get thread mode; virtual threads have no per-thread display and allow
+		// many more tasks (unlimited by default)
+		boolean virtual = nio || "virtual".equals(getParameter("threadMode"));
+
 		// Get number of threads
-		maxThreads = DEFAULT_THREADS;
+		maxThreads = virtual ? 0 : DEFAULT_THREADS;
 		String threadsText = getParameter("maxThreads");
-		if(threadsText != null && threadsText.matches("[1-9][0-9]{0,3}"))
+		if(threadsText != null && threadsText.matches(
+			virtual ? "[1-9][0-9]{0,8}" : "[1-9][0-9]{0,3}"))
 		{
 			maxThreads = Integer.parseInt(threadsText);
 		}
@@ -74,15 +106,138 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 			scale = Integer.parseInt(scaleText);
 		}
 
+		// Get measurement: 'service' (default) reports time from when the request
+		// actually started; 'response' reports time from when it was scheduled,
+		// so that delays in starting requests are included
+		measureResponse = "response".equals(getParameter("measure"));
+
+		// Get warm-up: 'prestart' creates all threads before the test starts, and
+		// results scheduled in the first 'warmup' milliseconds are kept out of
+		// the summary statistics (while the JVM compiles the request code)
+		prestart = "true".equals(getParameter("prestart"));
+		String warmupText = getParameter("warmup");
+		if(warmupText != null && warmupText.matches("[0-9]{1,9}"))
+		{
+			warmup = Integer.parseInt(warmupText);
+		}
+
+		// Get overflow policy, for when all threads are busy: 'drop' (default)
+		// does not attempt the request, 'block' delays the schedule until a
+		// thread is free, and 'queue' waits in a backlog of up to 'backlog'
+		// requests
+		int overflow = BacklogDispatcher.OVERFLOW_DROP;
+		String overflowText = getParameter("overflow");
+		if(overflowText != null)
+		{
+			try
+			{
+				overflow = BacklogDispatcher.parsePolicy(overflowText);
+			}
+			catch(IllegalArgumentException e)
+			{
+				System.err.println(CONSOLE_TAG + "ERR002 " + e.getMessage());
+			}
+		}
+		int backlog = BacklogDispatcher.DEFAULT_BACKLOG;
+		String backlogText = getParameter("backlog");
+		if(backlogText != null && backlogText.matches("[1-9][0-9]{0,6}"))
+		{
+			backlog = Integer.parseInt(backlogText);
+		}
+
+		// Get catch-up policy, for when the schedule falls behind: 'burst'
+		// (default) sends late requests at once, 'skip' does not send requests
+		// more than 'catchupTolerance' ms late, and 'shift' moves the rest of
+		// the schedule later
+		String catchUpText = getParameter("catchup");
+		if(catchUpText != null)
+		{
+			try
+			{
+				catchUp = WorkScheduler.parsePolicy(catchUpText);
+			}
+			catch(IllegalArgumentException e)
+			{
+				System.err.println(CONSOLE_TAG + "ERR002 " + e.getMessage());
+			}
+		}
+		String toleranceText = getParameter("catchupTolerance");
+		if(toleranceText != null && toleranceText.matches("[0-9]{1,6}"))
+		{
+			catchUpTolerance = Integer.parseInt(toleranceText);
+		}
+
+		// Get number of scheduler threads ('auto' for one per processor)
+		String shardsText = getParameter("shards");
+		if(shardsText != null)
+		{
+			try
+			{
+				shards = WorkScheduler.parseShards(shardsText);
+			}
+			catch(IllegalArgumentException e)
+			{
+				System.err.println(CONSOLE_TAG + "ERR002 " + e.getMessage());
+			}
+		}
+
+		// Get display: 'threads' shows each handler thread, while 'heatmap'
+		// shows all requests together at a cost that does not depend on the
+		// number of threads (default if there are many threads, or with no
+		// handler threads to show)
+		boolean showThreads = !virtual && maxThreads <= MAX_THREAD_DISPLAYS;
+		String displayText = getParameter("display");
+		if("heatmap".equals(displayText))
+		{
+			showThreads = false;
+		}
+		else if("threads".equals(displayText) && !virtual)
+		{
+			showThreads = true;
+		}
+
 		// Create thread objects
 		tracker = new ThreadTracker();
-		threads = new ThreadHandler[0];
+		String fpsText = getParameter("fps");
+		if(fpsText != null && fpsText.matches("[0-9]{1,3}"))
+		{
+			tracker.setFrameRate(Integer.parseInt(fpsText));
+		}
+		TaskDispatcher runner;
+		if(nio)
+		{
+			runner = new NioDispatcher(maxThreads, pipeline, this);
+		}
+		else if(virtual)
+		{
+			runner = new VirtualThreadDispatcher(maxThreads, this);
+		}
+		else if(showThreads)
+		{
+			runner = new HandlerPool(maxThreads, this, tracker, scale, this);
+		}
+		else
+		{
+			runner = new HandlerPool(maxThreads, this, null, 0, null);
+		}
+		dispatcher = new BacklogDispatcher(runner, overflow, backlog);
+		timeSeries = new TimeSeries(dispatcher);
 
-		scheduler = new WorkScheduler(this);
+		scheduler = createScheduler();
+		bridge = new JavaScriptBridge(this);
 
 		// Get cookie to use (full value of header line)
 		cookie = getParameter("cookie");
 
+		// Get sessions: 'true' gives each request or virtual user its own
+		// session, starting from the cookie, so that the server does not run
+		// requests for one session one at a time (see also loadTestSession)
+		if("true".equals(getParameter("sessions")))
+		{
+			sessions = new SessionPool();
+			sessions.setCookie(cookie);
+		}
+
 		// Set up display
 		JLabel title = new JLabel("leafdigital LoadTestApplet");
 		title.setForeground(Color.BLACK);
@@ -99,13 +254,23 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 		top.add(title, BorderLayout.WEST);
 		top.add(progress, BorderLayout.CENTER);
 
-		// Remainder consists of thread display
-		threadDisplay = new JPanel(new FlowLayout(FlowLayout.LEADING,
-			MARGIN, MARGIN));
-		threadDisplay.setBackground(Color.WHITE);
-		threadDisplay.setBorder(BorderFactory.createMatteBorder(1, 1, 1, 1,
+		// Remainder consists of thread display or heat map
+		JComponent display;
+		if(showThreads)
+		{
+			threadDisplay = new JPanel(new FlowLayout(FlowLayout.LEADING,
+				MARGIN, MARGIN));
+			threadDisplay.setBackground(Color.WHITE);
+			display = threadDisplay;
+		}
+		else
+		{
+			heatMap = new HeatMapDisplay(dispatcher, measureResponse);
+			display = heatMap;
+		}
+		display.setBorder(BorderFactory.createMatteBorder(1, 1, 1, 1,
 			DARK_COLOR));
-		getContentPane().add(threadDisplay, BorderLayout.CENTER);
+		getContentPane().add(display, BorderLayout.CENTER);
 	}
 
 	@Override
@@ -113,17 +278,24 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	{
 		// Start all the threads
 		tracker.start();
+		bridge.start();
+		if(heatMap != null)
+		{
+			heatMap.start();
+		}
 	}
 
 	@Override
 	public void stop()
 	{
 		// Destroy all current requests
-		for(ThreadHandler handler : threads)
+		dispatcher.stop();
+		tracker.stop();
+		timeSeries.stop();
+		if(heatMap != null)
 		{
-			handler.stop();
+			heatMap.stop();
 		}
-		tracker.stop();
 
 		WorkScheduler exScheduler;
 		synchronized(this)
@@ -132,6 +304,7 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 			scheduler = null;
 		}
 		exScheduler.stop();
+		bridge.stop();
 
 		super.stop();
 	}
@@ -140,7 +313,7 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	public void destroy()
 	{
 		// Chuck all the thread handlers
-		threads = null;
+		dispatcher = null;
 
 		// Remove all the components (just so this pairs init)
 		for(Component component :	getContentPane().getComponents())
@@ -163,6 +336,38 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 		report(index, ms, false);
 	}
 
+	@Override
+	public void completed(TaskResult result)
+	{
+		CapacitySearch currentSearch = search;
+		if(currentSearch != null)
+		{
+			currentSearch.completed(result);
+		}
+		timeSeries.completed(result);
+		if(heatMap != null)
+		{
+			heatMap.completed(result);
+		}
+		if(warmup > 0 && result.getScheduledTime() - warmupEnd < 0)
+		{
+			warmupStatistics.completed(result);
+		}
+		else
+		{
+			statistics.completed(result);
+		}
+		if(!result.isAttempted())
+		{
+			report(result.getIndex(), -1, false);
+		}
+		else
+		{
+			report(result.getIndex(), measureResponse ? result.getResponseTime()
+				: result.getServiceTime(), result.isSuccess());
+		}
+	}
+
 	@Override
 	public void percentComplete(final int percent)
 	{
@@ -177,7 +382,8 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	}
 
 	/**
-	 * Reports a test result to JavaScript.
+	 * Reports a test result to JavaScript. Results are sent in batches to
+	 * loadTestResults([[index,ms,result],...]).
 	 * @param index Index of task
 	 * @param ms Milliseconds (-1 = task was not attempted because all threads
 	 *   were busy)
@@ -185,138 +391,69 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	 */
 	private void report(int index, int ms, boolean result)
 	{
-		evalJS("loadTestResult(" + index + "," + ms + "," + result + ");");
+		bridge.result(index, ms, result);
 	}
 
-	private Object jsSynch = new Object();
-	private LinkedList<String> jsList;
-
-	private void evalJS(String js)
+	@Override
+	public void runTask(int index, long scheduled, Runnable task)
 	{
-		// Use sync to ensure that commands are run in order
-		synchronized(jsSynch)
+		if(!dispatcher.runTask(index, scheduled, task))
 		{
-			if(jsList == null)
-			{
-				jsList = new LinkedList<String>();
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						while(true)
-						{
-							String js;
-							synchronized(jsSynch)
-							{
-								if(jsList.isEmpty())
-								{
-									jsList = null;
-									break;
-								}
-								else
-								{
-									js = jsList.removeFirst();
-								}
-							}
-							try
-							{
-								// Decided to use reflection to make this easier to compile - otherwise
-								// it needs plugin.jar from a JRE. Also this should make it safer at
-								// runtime.
-
-								// JSObject.getWindow(this).eval(js);
-								Class<?> c=Class.forName("netscape.javascript.JSObject");
-								Method m = c.getMethod("getWindow", new Class<?>[] {Applet.class});
-								Object win = m.invoke(null, (java.applet.Applet)LoadTestApplet.this);
-								Method m2 = c.getMethod("eval", new Class<?>[] {String.class});
-								m2.invoke(win, js);
-							}
-							catch (ClassNotFoundException ex)
-							{
-								System.err.println(CONSOLE_TAG + "JSObject support not found - " + js);
-							}
-							catch(Exception ex)
-							{
-								ex.printStackTrace();
-							}
-						}
-					}
-				});
-			}
-			jsList.addLast(js);
+			completed(new TaskResult(index, scheduled, System.nanoTime()));
 		}
 	}
 
 	@Override
-	public void runTask(int index, Runnable task)
+	public void skipTask(int index, long scheduled)
 	{
-		// Try to reuse existing threads
-		int end = nextThread;
-		do
+		completed(new TaskResult(index, scheduled, System.nanoTime()));
+	}
+
+	@Override
+	public void handlerAdded(final ThreadHandler handler)
+	{
+		SwingUtilities.invokeLater(new Runnable()
 		{
-			ThreadHandler thread;
-			synchronized(threadsSynch)
-			{
-				if(threads.length == 0)
-				{
-					break;
-				}
-				if(nextThread >= threads.length)
-				{
-					nextThread = 0;
-				}
-				thread = threads[nextThread];
-				nextThread++;
-			}
-			if(thread.task(index, task))
+			@Override
+			public void run()
 			{
-				return;
+				threadDisplay.add(handler.getComponent());
+				threadDisplay.revalidate();
 			}
-		}
-		while(nextThread != end);
+		});
+	}
 
-		// Add another thread
-		synchronized(threadsSynch)
+	@Override
+	public void handlerRemoved(final ThreadHandler handler)
+	{
+		SwingUtilities.invokeLater(new Runnable()
 		{
-			if(threads.length < maxThreads)
+			@Override
+			public void run()
 			{
-				ThreadHandler[] newThreads = new ThreadHandler[threads.length + 1];
-				System.arraycopy(threads, 0, newThreads, 0, threads.length);
-				final ThreadHandler newHandler = new ThreadHandler(threads.length, this,
-					tracker, scale);
-				newThreads[threads.length] = newHandler;
-				newHandler.start();
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						threadDisplay.add(newHandler.getComponent());
-						threadDisplay.revalidate();
-					}
-				});
-				threads = newThreads;
-				if(newHandler.task(index, task))
-				{
-					return;
-				}
+				threadDisplay.remove(handler.getComponent());
+				threadDisplay.revalidate();
+				threadDisplay.repaint();
 			}
-		}
-
-		report(index, -1, false);
+		});
 	}
 
 	@Override
 	public void workFinished()
 	{
 		// OK the scheduled work has finished, BUT we have to wait for all the
-		// threads to finish too.
-		for(ThreadHandler thread : threads)
+		// threads (and virtual users) to finish too.
+		dispatcher.waitForIdle();
+		List<UserGroup> currentGroups;
+		synchronized(this)
+		{
+			currentGroups = new ArrayList<UserGroup>(groups);
+		}
+		for(UserGroup group : currentGroups)
 		{
-			thread.waitForIdle();
+			group.waitForFinish();
 		}
-		evalJS("loadTestFinished();");
+		bridge.eval("loadTestFinished();");
 		progressBarClear();
 	}
 
@@ -328,33 +465,50 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	public void loadTestReset()
 	{
 		WorkScheduler exScheduler;
+		List<UserGroup> exGroups;
+		CapacitySearch exSearch;
 		synchronized(this)
 		{
 			exScheduler = scheduler;
-			scheduler = new WorkScheduler(this);
+			scheduler = createScheduler();
+			exGroups = groups;
+			groups = new LinkedList<UserGroup>();
+			exSearch = search;
+			search = null;
 		}
-		synchronized(threadsSynch)
+		if(exSearch != null)
 		{
-			for(final ThreadHandler thread : threads)
-			{
-				thread.stop();
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						threadDisplay.remove(thread.getComponent());
-						threadDisplay.revalidate();
-						threadDisplay.repaint();
-					}
-				});
-			}
-			threads = new ThreadHandler[0];
+			exSearch.stop();
+		}
+		for(UserGroup group : exGroups)
+		{
+			group.stop();
 		}
+		dispatcher.stop();
 		exScheduler.stop();
+		statistics.reset();
+		warmupStatistics.reset();
+		dispatcher.reset();
+		TimeSeries exTimeSeries = timeSeries;
+		timeSeries = new TimeSeries(dispatcher);
+		exTimeSeries.stop();
+		if(heatMap != null)
+		{
+			heatMap.clear();
+		}
 		progressBarClear();
 	}
 
+	/**
+	 * @return New scheduler with the catch-up policy set
+	 */
+	private WorkScheduler createScheduler()
+	{
+		WorkScheduler newScheduler = new WorkScheduler(this, shards);
+		newScheduler.setCatchUp(catchUp, catchUpTolerance);
+		return newScheduler;
+	}
+
 	/**
 	 * Clears progress bar.
 	 */
@@ -380,8 +534,19 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	 */
 	public void loadTestStart()
 	{
+		if(prestart)
+		{
+			dispatcher.prestart();
+		}
 		synchronized(this)
 		{
+			warmupEnd = System.nanoTime() + warmup * 1000000L;
+			long now = System.currentTimeMillis();
+			timeSeries.start(now);
+			for(UserGroup group : groups)
+			{
+				group.start(now);
+			}
 			scheduler.start();
 		}
 		SwingUtilities.invokeLater(new Runnable()
@@ -395,34 +560,323 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 	}
 
 	/**
-	 * Adds a new load test event to the schedule.
+	 * Gets summary statistics for all results since the last reset. This is
+	 * cheaper than keeping every result in JavaScript.
 	 * <p>
 	 * Called from JS.
-	 * @param time Time to run the event
-	 * @param url URL to request
-	 * @param match Regular expression which must be found in result
-	 * @return Index of event (first is 0)
-	 * @throws IllegalArgumentException If URL is not valid
+	 * @return JSON object with count, successes, failures, dropped (not
+	 *   attempted), successRate (percentage), allocatedPerRequest (bytes, or -1
+	 *   if not known), service and response objects each containing count,
+	 *   min, mean, max, p50, p90, p99 and p999 (milliseconds), and a phases
+	 *   object with one of these for each of dns, connect, tls, ttfb and
+	 *   transfer
+	 */
+	public String loadTestSummary()
+	{
+		return statistics.toJson();
+	}
+
+	/**
+	 * Gets statistics about requests that could not start at once because all
+	 * threads were busy (see the 'overflow' parameter). Requests that were not
+	 * attempted at all are counted as dropped in {@link #loadTestSummary()};
+	 * if there are any, the load generator could not keep up and the results
+	 * do not show the limit of the server.
+	 * <p>
+	 * Called from JS.
+	 * @return JSON object with policy (drop, block or queue), queued, overflowed
+	 *   (not attempted because the backlog was full), blocked (times the
+	 *   schedule waited), blockedTime, maxDepth, a wait object with count,
+	 *   mean, p99 and max (milliseconds in the backlog), and depth (array of
+	 *   largest backlog depth in each second)
+	 */
+	public String loadTestQueueSummary()
+	{
+		return dispatcher.toJson();
+	}
+
+	/**
+	 * Gets metrics for each second since the test started (up to the last
+	 * hour), so that the page can show how performance changes as the load
+	 * increases.
+	 * <p>
+	 * Called from JS.
+	 * @return JSON array as described in {@link TimeSeries#toJson()}
+	 */
+	public String loadTestTimeSeries()
+	{
+		return timeSeries.toJson();
+	}
+
+	/**
+	 * Gets statistics about how accurately requests were sent at their
+	 * scheduled times (see the 'catchup' parameter). If the lag is large, the
+	 * load generator could not keep to the schedule.
+	 * <p>
+	 * Called from JS.
+	 * @return JSON object as described in {@link WorkScheduler#toJson()}
+	 */
+	public synchronized String loadTestScheduleSummary()
+	{
+		return scheduler.toJson();
+	}
+
+	/**
+	 * Gets summary statistics for results during the warm-up period (set by
+	 * the 'warmup' parameter), which are not included in
+	 * {@link #loadTestSummary()}.
+	 * <p>
+	 * Called from JS.
+	 * @return JSON object in the same format as loadTestSummary
+	 */
+	public String loadTestWarmupSummary()
+	{
+		return warmupStatistics.toJson();
+	}
+
+	/**
+	 * Creates the task for an event.
+	 * @param url URL, optionally preceded by request name and space
+	 * @param match Regular expression or other check
+	 * @return Task
+	 * @throws IllegalArgumentException If request name, URL or check is
+	 *   not valid
 	 * @throws PatternSyntaxException If regex is not valid
 	 */
-	public int loadTestEvent(int time, String url, String match)
+	private LoadTestTask createTask(String url, String match)
 		throws IllegalArgumentException, PatternSyntaxException
 	{
-		Runnable task;
+		RequestTemplate template = null;
+		int space = url.indexOf(' ');
+		if(space != -1)
+		{
+			String name = url.substring(0, space);
+			synchronized(this)
+			{
+				template = requests.get(name);
+			}
+			if(template == null)
+			{
+				throw new IllegalArgumentException("Unknown request: " + name);
+			}
+			url = url.substring(space + 1).trim();
+		}
 		try
 		{
-			task = new LoadTestTask(new URL(url), Pattern.compile(match));
+			return new LoadTestTask(new URL(url), template,
+				ResponseValidator.parse(match), this);
 		}
 		catch(MalformedURLException e)
 		{
 			throw new IllegalArgumentException(e);
 		}
+	}
+
+	/**
+	 * Adds a new load test event to the schedule.
+	 * <p>
+	 * Called from JS.
+	 * @param time Time to run the event
+	 * @param url URL to request, optionally preceded by the name of a request
+	 *   and a space (see {@link #loadTestRequest(String, String, String,
+	 *   String)})
+	 * @param match Regular expression which must be found in result, or
+	 *   another check (see {@link ResponseValidator})
+	 * @return Index of event (first is 0)
+	 * @throws IllegalArgumentException If request, URL or check is not valid
+	 * @throws PatternSyntaxException If regex is not valid
+	 */
+	public int loadTestEvent(int time, String url, String match)
+		throws IllegalArgumentException, PatternSyntaxException
+	{
+		Runnable task = createTask(url, match);
 		synchronized(this)
 		{
 			return scheduler.addTask(time, task);
 		}
 	}
 
+	/**
+	 * Adds a rate profile to the schedule. Events are generated from the
+	 * profile as the test runs, so a long or fast test does not need a call
+	 * for every request. Each event gets its own index when it runs, following
+	 * on from any events already added.
+	 * <p>
+	 * Called from JS.
+	 * @param time Time at which the profile begins
+	 * @param profile Profile description, e.g. 'constant 20000 5' (see
+	 *   {@link RateProfile})
+	 * @param url URL to request, optionally preceded by the name of a request
+	 *   and a space (see {@link #loadTestRequest(String, String, String,
+	 *   String)})
+	 * @param match Regular expression which must be found in result, or
+	 *   another check (see {@link ResponseValidator})
+	 * @throws IllegalArgumentException If profile, request, URL or check is
+	 *   not valid
+	 * @throws PatternSyntaxException If regex is not valid
+	 */
+	public void loadTestProfile(int time, String profile, String url,
+		String match) throws IllegalArgumentException, PatternSyntaxException
+	{
+		Runnable task = createTask(url, match);
+		RateProfile rateProfile = RateProfile.parse(profile);
+		synchronized(this)
+		{
+			scheduler.addProfile(time, rateProfile, task);
+		}
+	}
+
+	/**
+	 * Adds a group of virtual users to the test. Each user repeatedly makes a
+	 * request, waits for the response, then waits for a think time. Results
+	 * are included in the summary and sent to JavaScript like other results
+	 * (with indexes following on from the other events of the test).
+	 * <p>
+	 * Called from JS.
+	 * @param time Time at which the users begin
+	 * @param users Number of users
+	 * @param duration Milliseconds for which users make requests
+	 * @param thinkTime Think time description, e.g. 'exponential 5000' (see
+	 *   {@link ThinkTime})
+	 * @param url URL to request, optionally preceded by the name of a request
+	 *   and a space (see {@link #loadTestRequest(String, String, String,
+	 *   String)})
+	 * @param match Regular expression which must be found in result, or
+	 *   another check (see {@link ResponseValidator})
+	 * @throws IllegalArgumentException If think time, request, URL or check
+	 *   is not valid
+	 * @throws PatternSyntaxException If regex is not valid
+	 */
+	public void loadTestUsers(int time, int users, int duration,
+		String thinkTime, String url, String match)
+		throws IllegalArgumentException, PatternSyntaxException
+	{
+		Runnable task = createTask(url, match);
+		ThinkTime parsedThinkTime = ThinkTime.parse(thinkTime);
+		synchronized(this)
+		{
+			groups.add(new UserGroup(time, users, duration, parsedThinkTime,
+				task, this, scheduler));
+		}
+	}
+
+	/**
+	 * Sets a criterion for steps of capacity searches started after this.
+	 * <p>
+	 * Called from JS.
+	 * @param name Name (see {@link CapacitySearch#setCriterion(String, double)})
+	 * @param value Value
+	 * @throws IllegalArgumentException If the name or value is not valid
+	 */
+	public synchronized void loadTestSlo(String name, double value)
+		throws IllegalArgumentException
+	{
+		// Check it now so the error goes to the caller
+		CapacitySearch.checkCriterion(name, value);
+		criteria.put(name, value);
+	}
+
+	/**
+	 * Starts a search for the highest rate the server can sustain, which runs
+	 * in steps without a reset between them (see {@link CapacitySearch}). Each
+	 * step is reported to loadTestSearchStep(step) with an object as described
+	 * in {@link CapacitySearch.Step#toJson()}, and the result to
+	 * loadTestSearchFinished(rate), where rate is the highest rate that passed
+	 * in requests per second, 0 if none did, or -1 if the search was reset.
+	 * The first and last fifth of each step are not measured.
+	 * <p>
+	 * Called from JS.
+	 * @param startRate Rate of first step (requests per second)
+	 * @param stepTime Time of each step in milliseconds
+	 * @param url URL to request, optionally preceded by the name of a request
+	 *   and a space (see {@link #loadTestRequest(String, String, String,
+	 *   String)})
+	 * @param match Regular expression which must be found in result, or
+	 *   another check (see {@link ResponseValidator})
+	 * @throws IllegalArgumentException If rate, request, URL or check is
+	 *   not valid
+	 * @throws IllegalStateException If a search is already running
+	 * @throws PatternSyntaxException If regex is not valid
+	 */
+	public void loadTestSearch(double startRate, int stepTime, String url,
+		String match) throws IllegalArgumentException, IllegalStateException,
+		PatternSyntaxException
+	{
+		Runnable task = createTask(url, match);
+		CapacitySearch newSearch = new CapacitySearch(task, dispatcher, this,
+			this);
+		newSearch.setStartRate(startRate);
+		newSearch.setStepTime(stepTime, stepTime / 5);
+		synchronized(this)
+		{
+			if(search != null)
+			{
+				throw new IllegalStateException("Search already running");
+			}
+			for(Map.Entry<String, Double> criterion : criteria.entrySet())
+			{
+				newSearch.setCriterion(criterion.getKey(), criterion.getValue());
+			}
+			if(prestart)
+			{
+				dispatcher.prestart();
+			}
+			search = newSearch;
+			timeSeries.start(System.currentTimeMillis());
+		}
+		newSearch.start();
+	}
+
+	@Override
+	public void stepFinished(CapacitySearch.Step step)
+	{
+		bridge.eval("loadTestSearchStep(" + step.toJson() + ");");
+	}
+
+	@Override
+	public void searchFinished(double rate)
+	{
+		synchronized(this)
+		{
+			search = null;
+		}
+		bridge.eval("loadTestSearchFinished(" + rate + ");");
+	}
+
+	/**
+	 * Gets results for each group of virtual users since the last reset.
+	 * <p>
+	 * Called from JS.
+	 * @return JSON array with an object for each group in the order added
+	 *   (see {@link UserGroup#toJson()})
+	 */
+	public synchronized String loadTestUsersSummary()
+	{
+		StringBuilder out = new StringBuilder("[");
+		for(UserGroup group : groups)
+		{
+			if(out.length() > 1)
+			{
+				out.append(',');
+			}
+			out.append(group.toJson());
+		}
+		out.append(']');
+		return out.toString();
+	}
+
+	@Override
+	public String getCookie()
+	{
+		return cookie;
+	}
+
+	@Override
+	public SessionPool getSessions()
+	{
+		return sessions;
+	}
+
 	/**
 	 * Sets the cookie to use for all requests. Must be called before test
 	 * is started.
@@ -440,68 +894,101 @@ public class LoadTestApplet extends JApplet implements ThreadHandler.Reporter,
 		{
 			this.cookie = cookie;
 		}
+		SessionPool current = sessions;
+		if(current != null)
+		{
+			current.setCookie(this.cookie);
+		}
 	}
 
-	private class LoadTestTask implements Runnable
+	/**
+	 * Adds a session for requests to use, for example the cookie of a user
+	 * who is already logged in. Once any session is added (or the 'sessions'
+	 * parameter is set), each request or virtual user uses a session that no
+	 * other is using at the time, and keeps cookies the server sets in it.
+	 * Must be called before test is started.
+	 * <p>
+	 * Called from JS.
+	 * @param sessionCookie Cookies for the session (value of header)
+	 * @throws IllegalStateException If there are too many sessions
+	 */
+	public synchronized void loadTestSession(String sessionCookie)
+		throws IllegalStateException
 	{
-		private URL url;
-		private Pattern match;
+		if(sessions == null)
+		{
+			SessionPool newSessions = new SessionPool();
+			newSessions.setCookie(cookie);
+			sessions = newSessions;
+		}
+		sessions.add(sessionCookie);
+	}
 
-		/**
-		 * @param url URL to request
-		 * @param match Regular expression which must be found in result
-		 */
-		public LoadTestTask(URL url, Pattern match)
+	/**
+	 * Defines a request other than a plain GET, such as a form post or an
+	 * upload, which events can then use by giving its name before the URL
+	 * (e.g. 'upload http://example.org/upload.php'). The body is encoded once
+	 * and shared by every request that uses it.
+	 * <p>
+	 * Called from JS.
+	 * @param name Name of request (lower case letters, digits, - and _)
+	 * @param method Method: GET, POST, PUT or DELETE
+	 * @param contentType Content type of body, or empty string if no body
+	 * @param body Body, e.g. 'text a=1&amp;b=2' or 'size 1048576' (see
+	 *   {@link RequestTemplate}), or empty string if none
+	 * @throws IllegalArgumentException If any parameter is not valid
+	 */
+	public void loadTestRequest(String name, String method, String contentType,
+		String body) throws IllegalArgumentException
+	{
+		if(!name.matches("[a-z][a-z0-9_-]*"))
 		{
-			this.url = url;
-			this.match = match;
+			throw new IllegalArgumentException("Invalid request name: " + name);
 		}
+		RequestTemplate template = new RequestTemplate(method,
+			contentType.equals("") ? null : contentType,
+			body.equals("") ? null : body);
+		synchronized(this)
+		{
+			requests.put(name, template);
+		}
+	}
 
-		@Override
-		public void run()
+	/**
+	 * Adds a header to a request defined with
+	 * {@link #loadTestRequest(String, String, String, String)}. Must be called
+	 * before events that use the request are added.
+	 * <p>
+	 * Called from JS.
+	 * @param name Name of request
+	 * @param header Header line, e.g. 'X-Requested-With: XMLHttpRequest'
+	 * @throws IllegalArgumentException If there is no such request or the
+	 *   header is not valid
+	 */
+	public void loadTestRequestHeader(String name, String header)
+		throws IllegalArgumentException
+	{
+		RequestTemplate template;
+		synchronized(this)
 		{
-			try
-			{
-				HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-				connection.setConnectTimeout(CONNECT_TIMEOUT);
-				connection.setReadTimeout(READ_TIMEOUT);
-				connection.setRequestProperty("User-Agent", "leafdigital-LoadTestApplet/1.0");
-				if(cookie != null)
-				{
-					connection.setRequestProperty("Cookie", cookie);
-				}
-
-				String encoding = connection.getContentEncoding();
-				if(encoding == null)
-				{
-					encoding = "US-ASCII";
-				}
-
-				ByteArrayOutputStream output = new ByteArrayOutputStream();
-				InputStream in = connection.getInputStream();
-				byte[] buffer = new byte[65536];
-				while(true)
-				{
-					int read = in.read(buffer);
-					if(read == -1)
-					{
-						break;
-					}
-					output.write(buffer, 0, read);
-				}
-				in.close();
-				String text = output.toString(encoding);
-
-				if(!match.matcher(text).find())
-				{
-					throw new Error("Did not match");
-				}
-			}
-			catch(IOException e)
-			{
-				e.printStackTrace();
-				throw new Error(e);
-			}
+			template = requests.get(name);
 		}
+		if(template == null)
+		{
+			throw new IllegalArgumentException("Unknown request: " + name);
+		}
+		template.addHeader(header);
+	}
+
+	/**
+	 * Sets the highest rate at which the thread display is updated. It is
+	 * updated less often if the browser cannot keep up.
+	 * <p>
+	 * Called from JS.
+	 * @param fps Frames per second (up to 100), or 0 to pause the display
+	 */
+	public void loadTestFrameRate(int fps)
+	{
+		tracker.setFrameRate(fps);
 	}
-}
+}
\ No newline at end of file
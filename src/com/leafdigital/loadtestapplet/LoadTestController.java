@@ -0,0 +1,321 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Runs a test plan on several {@link LoadTestAgent} processes at once, for
+ * more load than one machine can generate. Each agent runs an equal share
+ * of the plan from a common start time, and their statistics are merged
+ * into one summary as they arrive.
+ * <p>
+ * Session and request body files named in the plan are read here and sent
+ * to the agents with it. Log and metrics lines are not sent; each agent
+ * writes the outputs given on its own command line.
+ */
+public class LoadTestController
+{
+	private final static String CONSOLE_TAG = "leafdigital LoadTestController: ";
+
+	/** Time allowed for all agents to receive the plan before it starts */
+	private final static int START_DELAY = 2000;
+
+	private String planText, token;
+	private List<Agent> agents = new LinkedList<Agent>();
+	private ResultStatistics statistics = new ResultStatistics();
+	private long startAt, endTime;
+
+	/**
+	 * Connection to one agent.
+	 */
+	private class Agent
+	{
+		private String address;
+		private Socket socket;
+		private String summary, error;
+
+		private Agent(String address)
+		{
+			this.address = address;
+		}
+
+		/**
+		 * Connects and sends the plan.
+		 * @param part Index of this agent
+		 * @param parts Number of agents
+		 * @throws IOException If there is an error connecting
+		 */
+		private void start(int part, int parts) throws IOException
+		{
+			int colon = address.lastIndexOf(':');
+			String host = colon == -1 ? address : address.substring(0, colon);
+			int port = LoadTestAgent.DEFAULT_PORT;
+			if(colon != -1)
+			{
+				try
+				{
+					port = Integer.parseInt(address.substring(colon + 1));
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IOException("Invalid port");
+				}
+			}
+			socket = new Socket(host, port);
+
+			byte[] planData = planText.getBytes("UTF-8");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+			out.writeInt(LoadTestAgent.PROTOCOL);
+			out.writeUTF(token);
+			out.writeInt(part);
+			out.writeInt(parts);
+			out.writeLong(startAt);
+			out.writeInt(planData.length);
+			out.write(planData);
+			out.flush();
+
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					receive();
+				}
+			}, "Load test controller " + address).start();
+		}
+
+		/**
+		 * Receives statistics until the agent finishes.
+		 */
+		private void receive()
+		{
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+				while(true)
+				{
+					int type = in.readUnsignedByte();
+					if(type == LoadTestAgent.MESSAGE_DELTA)
+					{
+						statistics.readDelta(in);
+					}
+					else if(type == LoadTestAgent.MESSAGE_FINISHED)
+					{
+						statistics.readDelta(in);
+						finished(this, in.readUTF(), null);
+						return;
+					}
+					else if(type == LoadTestAgent.MESSAGE_ERROR)
+					{
+						finished(this, null, in.readUTF());
+						return;
+					}
+					else
+					{
+						throw new IOException("Unknown message type " + type);
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				finished(this, null, e.getMessage());
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+
+		private boolean isFinished()
+		{
+			return summary != null || error != null;
+		}
+	}
+
+	/**
+	 * @param planText Text of plan to send to agents (see
+	 *   {@link TestPlan#getRemoteText()})
+	 * @param token Token that agents require
+	 * @param addresses Agent addresses (host or host:port)
+	 */
+	public LoadTestController(String planText, String token,
+		List<String> addresses)
+	{
+		this.planText = planText;
+		this.token = token;
+		for(String address : addresses)
+		{
+			agents.add(new Agent(address));
+		}
+	}
+
+	/**
+	 * Runs the test on all agents and waits for it to finish.
+	 * @throws IOException If any agent cannot be contacted
+	 */
+	public void run() throws IOException
+	{
+		startAt = System.currentTimeMillis() + START_DELAY;
+		int part = 0;
+		for(Agent agent : agents)
+		{
+			try
+			{
+				agent.start(part++, agents.size());
+			}
+			catch(IOException e)
+			{
+				// Agents that did start will stop when their connection closes
+				for(Agent started : agents)
+				{
+					if(started.socket != null)
+					{
+						started.socket.close();
+					}
+				}
+				throw new IOException("Cannot start agent " + agent.address + ": " +
+					e.getMessage());
+			}
+		}
+
+		synchronized(this)
+		{
+			while(true)
+			{
+				boolean all = true;
+				for(Agent agent : agents)
+				{
+					all &= agent.isFinished();
+				}
+				if(all)
+				{
+					break;
+				}
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+	}
+
+	private synchronized void finished(Agent agent, String summary,
+		String error)
+	{
+		agent.summary = summary;
+		agent.error = error;
+		endTime = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	/**
+	 * Writes a summary of the merged results, followed by each agent's own
+	 * summary.
+	 * @param out Output
+	 */
+	public synchronized void writeSummary(PrintWriter out)
+	{
+		long elapsed = Math.max(endTime - startAt, 1);
+		int attempted = statistics.getSuccesses() + statistics.getFailures();
+		out.println("Agents:        " + agents.size());
+		out.println("Requests:      " + statistics.getCount());
+		out.println("Elapsed:       " + elapsed + " ms");
+		out.println("Actual rate:   " +
+			(Math.round(100.0 * attempted * 1000 / elapsed) / 100.0) +
+			" requests/s");
+		statistics.write(out);
+		for(Agent agent : agents)
+		{
+			out.println();
+			out.println("Agent " + agent.address);
+			if(agent.error != null)
+			{
+				out.println("Failed: " + agent.error);
+			}
+			else
+			{
+				out.print(agent.summary);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Runs a test plan on agents.
+	 * @param args -token-file and the file, plan file, then agent addresses
+	 *   (host or host:port)
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 4 || !args[0].equals("-token-file"))
+		{
+			System.err.println("Usage: java " + LoadTestController.class.getName() +
+				" -token-file <file> <plan file> <agent host[:port]>" +
+				" [agent host[:port]...]");
+			System.exit(1);
+		}
+
+		String token, planText;
+		try
+		{
+			token = LoadTestAgent.readToken(new File(args[1]));
+			TestPlan plan = new TestPlan(new File(args[2]));
+			if(plan.getSearch() != null)
+			{
+				throw new IOException(args[2] +
+					": A capacity search cannot be shared between agents");
+			}
+			if(plan.getLog() != null || !plan.getMetrics().isEmpty())
+			{
+				System.err.println(CONSOLE_TAG + "Log and metrics lines are not " +
+					"sent to agents; give -log and -metrics to each agent instead");
+			}
+			planText = plan.getRemoteText();
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		LoadTestController controller = new LoadTestController(planText, token,
+			Arrays.asList(args).subList(3, args.length));
+		try
+		{
+			controller.run();
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + e.getMessage());
+			System.exit(1);
+		}
+
+		try
+		{
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out,
+				"UTF-8"));
+			controller.writeSummary(out);
+			out.close();
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + "Failed to write summary: " +
+				e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
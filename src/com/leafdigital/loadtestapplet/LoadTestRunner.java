@@ -0,0 +1,528 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a test plan from the command line without any user interface. This
+ * does not use Swing, so it can be run with -Djava.awt.headless=true.
+ */
+public class LoadTestRunner implements ThreadHandler.ResultReporter,
+	WorkScheduler.Handler, LoadTestTask.Context, CapacitySearch.Listener
+{
+	private final static String CONSOLE_TAG = "leafdigital LoadTestRunner: ";
+
+	/** Tasks starting more than this many milliseconds late count as late. */
+	private final static int LATE_THRESHOLD = 10;
+
+	private TestPlan plan;
+	private BacklogDispatcher dispatcher;
+	private WorkScheduler scheduler;
+	private List<UserGroup> groups = new LinkedList<UserGroup>();
+	private CapacitySearch search;
+	private List<CapacitySearch.Step> searchSteps =
+		new LinkedList<CapacitySearch.Step>();
+	private double capacity = -1;
+	private volatile ResultLog log;
+	private volatile TimeSeries timeSeries;
+	private IOException logError;
+	private SessionPool sessions;
+
+	private boolean finished;
+	private long startTime, endTime;
+
+	/** Time (nanoTime) before which results count as warm-up */
+	private volatile long warmupEnd;
+
+	private ResultStatistics statistics = new ResultStatistics(),
+		warmupStatistics = new ResultStatistics();
+	private AtomicInteger late = new AtomicInteger();
+
+	/**
+	 * @param plan Plan to run
+	 */
+	public LoadTestRunner(TestPlan plan)
+	{
+		this(plan, 0, 1);
+	}
+
+	/**
+	 * Constructs a runner for part of a plan, when the load is shared between
+	 * several agents. Events are shared out in turn, and so are the events of
+	 * each rate profile; the virtual users in each group are divided as
+	 * evenly as possible.
+	 * @param plan Plan to run
+	 * @param part Index of this agent (0 to parts-1)
+	 * @param parts Number of agents
+	 */
+	public LoadTestRunner(TestPlan plan, int part, int parts)
+	{
+		this.plan = plan;
+		TaskDispatcher runner;
+		if(plan.isNio())
+		{
+			runner = new NioDispatcher(plan.getMaxThreads(), plan.getPipeline(),
+				this);
+		}
+		else if(plan.isVirtual())
+		{
+			runner = new VirtualThreadDispatcher(plan.getMaxThreads(), this);
+		}
+		else
+		{
+			runner = new HandlerPool(plan.getMaxThreads(), this, null, 0, null);
+		}
+		dispatcher = new BacklogDispatcher(runner, plan.getOverflow(),
+			plan.getBacklog());
+		if(plan.isSessions())
+		{
+			// Agents share out the sessions, so that none is used by two of them
+			sessions = new SessionPool();
+			sessions.setCookie(plan.getCookie());
+			int sessionIndex = 0;
+			for(String cookie : plan.getSessionCookies())
+			{
+				if(sessionIndex++ % parts == part)
+				{
+					sessions.add(cookie);
+				}
+			}
+		}
+		scheduler = new WorkScheduler(this, plan.getShards());
+		scheduler.setCatchUp(plan.getCatchUp(), plan.getCatchUpTolerance());
+		int eventIndex = 0;
+		for(TestPlan.Event event : plan.getEvents())
+		{
+			if(eventIndex++ % parts != part)
+			{
+				continue;
+			}
+			scheduler.addTask(event.getTime(),
+				new LoadTestTask(event.getUrl(), event.getRequest(),
+					event.getValidator(), this));
+		}
+		for(TestPlan.Profile profile : plan.getProfiles())
+		{
+			scheduler.addProfile(profile.getTime(),
+				profile.createRateProfile().share(part, parts),
+				new LoadTestTask(profile.getUrl(), profile.getRequest(),
+					profile.getValidator(), this));
+		}
+		if(plan.getSearch() != null)
+		{
+			TestPlan.Search planSearch = plan.getSearch();
+			search = new CapacitySearch(new LoadTestTask(planSearch.getUrl(),
+				planSearch.getRequest(), planSearch.getValidator(), this), dispatcher,
+				this, this);
+			planSearch.configure(search);
+		}
+		for(TestPlan.Users users : plan.getUsers())
+		{
+			int count = users.getCount() / parts +
+				(part < users.getCount() % parts ? 1 : 0);
+			if(count == 0)
+			{
+				continue;
+			}
+			groups.add(new UserGroup(users.getTime(), count, users.getDuration(),
+				users.createThinkTime(),
+				new LoadTestTask(users.getUrl(), users.getRequest(),
+					users.getValidator(), this), this, scheduler));
+		}
+	}
+
+	/**
+	 * Opens the result log and metrics outputs, if the plan has them. This
+	 * should be called before the test runs.
+	 * @throws IOException If the log or an output cannot be created
+	 */
+	public void openOutputs() throws IOException
+	{
+		if(!plan.getMetrics().isEmpty())
+		{
+			TimeSeries series = new TimeSeries(dispatcher);
+			try
+			{
+				for(TestPlan.Metrics metrics : plan.getMetrics())
+				{
+					metrics.open(series);
+				}
+			}
+			catch(IOException e)
+			{
+				series.stop();
+				throw e;
+			}
+			timeSeries = series;
+		}
+		if(plan.getLog() != null)
+		{
+			try
+			{
+				log = new ResultLog(plan.getLog());
+			}
+			catch(IOException e)
+			{
+				if(timeSeries != null)
+				{
+					timeSeries.stop();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Runs the test and waits for it to finish.
+	 */
+	public void run()
+	{
+		run(0);
+	}
+
+	/**
+	 * Runs the test, beginning at a given time, and waits for it to finish.
+	 * @param startAt Time to begin (System.currentTimeMillis()), or 0 for now
+	 */
+	public void run(long startAt)
+	{
+		if(plan.isPrestart())
+		{
+			dispatcher.prestart();
+		}
+		long now = System.currentTimeMillis();
+		long delay = Math.max(startAt - now, 0);
+		startTime = now + delay;
+		warmupEnd = System.nanoTime() + (delay + plan.getWarmup()) * 1000000L;
+		if(timeSeries != null)
+		{
+			timeSeries.start(startTime);
+		}
+		if(search != null)
+		{
+			search.start();
+		}
+		else
+		{
+			// Users start first, so they are running before the scheduler can
+			// finish
+			for(UserGroup group : groups)
+			{
+				group.start(startTime);
+			}
+			scheduler.start(startTime);
+		}
+		synchronized(this)
+		{
+			while(!finished)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+		dispatcher.stop();
+		if(timeSeries != null)
+		{
+			timeSeries.stop();
+		}
+		closeLog();
+	}
+
+	private void closeLog()
+	{
+		ResultLog current = log;
+		if(current == null)
+		{
+			return;
+		}
+		try
+		{
+			current.close();
+		}
+		catch(IOException e)
+		{
+			synchronized(this)
+			{
+				logError = e;
+			}
+		}
+	}
+
+	/**
+	 * Stops the test early; {@link #run()} returns once it has stopped.
+	 */
+	public void stop()
+	{
+		if(search != null)
+		{
+			search.stop();
+		}
+		scheduler.stop();
+		for(UserGroup group : groups)
+		{
+			group.stop();
+		}
+		dispatcher.stop();
+		synchronized(this)
+		{
+			if(!finished)
+			{
+				endTime = System.currentTimeMillis();
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return Statistics for results after the warm-up period
+	 */
+	public ResultStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	@Override
+	public String getCookie()
+	{
+		return plan.getCookie();
+	}
+
+	@Override
+	public SessionPool getSessions()
+	{
+		return sessions;
+	}
+
+	@Override
+	public void succeeded(int index, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void failed(int index, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void completed(TaskResult result)
+	{
+		ResultLog current = log;
+		if(current != null)
+		{
+			current.completed(result);
+		}
+		TimeSeries currentSeries = timeSeries;
+		if(currentSeries != null)
+		{
+			currentSeries.completed(result);
+		}
+		if(search != null)
+		{
+			search.completed(result);
+		}
+		if(plan.getWarmup() > 0 && result.getScheduledTime() - warmupEnd < 0)
+		{
+			warmupStatistics.completed(result);
+			return;
+		}
+		statistics.completed(result);
+		if(result.isAttempted() && result.getStartDelay() > LATE_THRESHOLD)
+		{
+			late.incrementAndGet();
+		}
+	}
+
+	@Override
+	public synchronized void stepFinished(CapacitySearch.Step step)
+	{
+		searchSteps.add(step);
+	}
+
+	@Override
+	public void searchFinished(double rate)
+	{
+		synchronized(this)
+		{
+			capacity = rate;
+		}
+		workFinished();
+	}
+
+	@Override
+	public void percentComplete(int percent)
+	{
+	}
+
+	@Override
+	public void runTask(int index, long scheduled, Runnable task)
+	{
+		if(!dispatcher.runTask(index, scheduled, task))
+		{
+			completed(new TaskResult(index, scheduled, System.nanoTime()));
+		}
+	}
+
+	@Override
+	public void skipTask(int index, long scheduled)
+	{
+		completed(new TaskResult(index, scheduled, System.nanoTime()));
+	}
+
+	@Override
+	public void workFinished()
+	{
+		dispatcher.waitForIdle();
+		for(UserGroup group : groups)
+		{
+			group.waitForFinish();
+		}
+		synchronized(this)
+		{
+			endTime = System.currentTimeMillis();
+			finished = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes a summary of the results.
+	 * @param out Output
+	 */
+	public synchronized void writeSummary(PrintWriter out)
+	{
+		int requests = statistics.getCount();
+		long elapsed = Math.max(endTime - startTime, 1);
+		int attempted = statistics.getSuccesses() + statistics.getFailures() +
+			warmupStatistics.getSuccesses() + warmupStatistics.getFailures();
+		if(plan.getWarmup() > 0)
+		{
+			out.println("Warm-up (first " + plan.getWarmup() +
+				" ms, not included below)");
+			warmupStatistics.write(out);
+			out.println();
+		}
+		out.println("Requests:      " + requests);
+		out.println("Started late:  " + late.get() + " (over " + LATE_THRESHOLD +
+			" ms after scheduled time)");
+		out.println("Elapsed:       " + elapsed + " ms");
+		out.println("Actual rate:   " +
+			(Math.round(100.0 * attempted * 1000 / elapsed) / 100.0) +
+			" requests/s");
+		if(search != null)
+		{
+			out.println("Search steps:");
+			for(CapacitySearch.Step step : searchSteps)
+			{
+				LatencyHistogram times = step.getStatistics().getResponseTimes();
+				out.println(String.format(Locale.US,
+					"  %.1f requests/s: %s (achieved %.1f, median %.1f ms, p99 %.1f ms)",
+					step.getRate(), step.isPass() ? "pass" : step.getFailure(),
+					step.getAchievedRate(), times.getValueAtPercentile(50) / 1000.0,
+					times.getValueAtPercentile(99) / 1000.0));
+			}
+			out.println("Capacity:      " + (capacity < 0 ? "search stopped"
+				: String.format(Locale.US, "%.1f requests/s", capacity)));
+		}
+		statistics.write(out);
+		if(search == null)
+		{
+			scheduler.write(out);
+		}
+		dispatcher.write(out);
+		if(sessions != null)
+		{
+			sessions.write(out);
+		}
+		for(UserGroup group : groups)
+		{
+			out.println();
+			group.write(out);
+		}
+		if(log != null)
+		{
+			out.println("Result log:    " + log.getWritten() + " records in " +
+				log.getFile() + (log.getLost() > 0 ? " (" + log.getLost() +
+				" not logged)" : "") +
+				(logError != null ? " (error: " + logError.getMessage() + ")" : ""));
+		}
+		BufferPool buffers = LoadTestTask.getBufferPool();
+		if(buffers.getCreated() > 0)
+		{
+			out.println("Read buffers:  " + buffers.getCreated() + " created, " +
+				buffers.getReused() + " reused");
+		}
+		out.flush();
+	}
+
+	/**
+	 * Runs a test plan.
+	 * @param args Plan file, and optionally a file to write the summary to
+	 *   (otherwise it goes to standard output)
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 1 || args.length > 2)
+		{
+			System.err.println("Usage: java " + LoadTestRunner.class.getName() +
+				" <plan file> [summary file]");
+			System.exit(1);
+		}
+
+		TestPlan plan;
+		try
+		{
+			plan = new TestPlan(new File(args[0]));
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		LoadTestRunner runner = new LoadTestRunner(plan);
+		try
+		{
+			runner.openOutputs();
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + "Failed to open output: " +
+				e.getMessage());
+			System.exit(1);
+		}
+		runner.run();
+
+		try
+		{
+			PrintWriter out;
+			if(args.length == 2)
+			{
+				out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(args[1]), "UTF-8"));
+			}
+			else
+			{
+				out = new PrintWriter(new OutputStreamWriter(System.out, "UTF-8"));
+			}
+			runner.writeSummary(out);
+			out.close();
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + "Failed to write summary: " +
+				e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
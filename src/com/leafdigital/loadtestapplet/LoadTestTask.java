@@ -0,0 +1,329 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+
+/**
+ * Task that requests a URL and checks the response with a validator as it
+ * arrives. Throws an Error if the request fails or is not valid.
+ * <p>
+ * HttpURLConnection does not show whether a connection was reused, so every
+ * request records DNS and connect times (close to zero when cached or kept
+ * alive). For https, the TLS handshake is included in connect time.
+ * <p>
+ * Requests are GETs unless the task has a {@link RequestTemplate}, which
+ * gives the method, headers and body. The body is written from the
+ * template's data, which all requests share; time spent sending it is not
+ * part of any phase.
+ */
+public class LoadTestTask implements TimedTask
+{
+	final static int READ_TIMEOUT = 10000, CONNECT_TIMEOUT = 10000;
+
+	final static String USER_AGENT = "leafdigital-LoadTestApplet/1.0";
+
+	private final static int BUFFER_SIZE = 8192, MAX_FREE_BUFFERS = 1024;
+
+	private final static BufferPool BUFFERS = new BufferPool(BUFFER_SIZE,
+		MAX_FREE_BUFFERS);
+
+	private URL url;
+	private RequestTemplate template;
+	private ResponseValidator validator;
+	private Context context;
+
+	private volatile RequestData requestData;
+
+	/**
+	 * Request data for the NIO engine, and the cookie it was built with.
+	 */
+	private static class RequestData
+	{
+		private String cookie;
+		private byte[] data;
+
+		private RequestData(String cookie, byte[] data)
+		{
+			this.cookie = cookie;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Provides settings that may change after the task is created.
+	 */
+	public interface Context
+	{
+		/**
+		 * @return Cookie to send (full value of header line) or null if none
+		 */
+		public String getCookie();
+
+		/**
+		 * @return Pool of sessions for requests to take, or null if all
+		 *   requests send the same cookie
+		 */
+		public SessionPool getSessions();
+	}
+
+	/**
+	 * @param url URL to request
+	 * @param validator Validator for response
+	 * @param context Context for settings such as cookie
+	 */
+	public LoadTestTask(URL url, ResponseValidator validator, Context context)
+	{
+		this(url, null, validator, context);
+	}
+
+	/**
+	 * @param url URL to request
+	 * @param template Method, headers and body, or null for a plain GET
+	 * @param validator Validator for response
+	 * @param context Context for settings such as cookie
+	 */
+	public LoadTestTask(URL url, RequestTemplate template,
+		ResponseValidator validator, Context context)
+	{
+		this.url = url;
+		this.template = template;
+		this.validator = validator;
+		this.context = context;
+	}
+
+	/**
+	 * @return Pool of read buffers shared by all tasks
+	 */
+	public static BufferPool getBufferPool()
+	{
+		return BUFFERS;
+	}
+
+	/**
+	 * @return URL to request
+	 */
+	public URL getUrl()
+	{
+		return url;
+	}
+
+	/**
+	 * @return Method, headers and body, or null for a plain GET
+	 */
+	public RequestTemplate getTemplate()
+	{
+		return template;
+	}
+
+	/**
+	 * @return Validator for response
+	 */
+	public ResponseValidator getValidator()
+	{
+		return validator;
+	}
+
+	/**
+	 * @return Cookie to send (full value of header line) or null if none
+	 */
+	public String getCookie()
+	{
+		return context.getCookie();
+	}
+
+	/**
+	 * @return Pool of sessions for requests to take, or null if all requests
+	 *   send the same cookie
+	 */
+	public SessionPool getSessions()
+	{
+		return context.getSessions();
+	}
+
+	/**
+	 * Gets request data for the NIO engine. The data is built once and shared
+	 * by every request for this task, unless the cookie changes.
+	 * Not used with sessions, since each session has its own cookies.
+	 * The body, if any, is not included.
+	 * @return Request data (must not be changed)
+	 */
+	public byte[] getRequestData()
+	{
+		String cookie = context.getCookie();
+		RequestData current = requestData;
+		if(current == null || (cookie == null ? current.cookie != null
+			: !cookie.equals(current.cookie)))
+		{
+			current = new RequestData(cookie,
+				NioHttpEngine.buildRequest(url, template, cookie));
+			requestData = current;
+		}
+		return current.data;
+	}
+
+	@Override
+	public void run()
+	{
+		run(null);
+	}
+
+	@Override
+	public void run(TaskResult result)
+	{
+		SessionPool sessions = context.getSessions();
+		if(sessions == null)
+		{
+			run(result, null);
+			return;
+		}
+		CookieJar jar = sessions.take();
+		try
+		{
+			run(result, jar);
+		}
+		finally
+		{
+			sessions.give(jar);
+		}
+	}
+
+	/**
+	 * Runs the task using a given session.
+	 * @param result Result to record phase times in, or null
+	 * @param jar Session, which is updated with any cookies the server sets,
+	 *   or null to send the shared cookie
+	 */
+	public void run(TaskResult result, CookieJar jar)
+	{
+		try
+		{
+			long start = System.nanoTime();
+			// Look up the address so the time is known; the JVM caches it, so the
+			// connection will not look it up again
+			InetAddress.getByName(url.getHost());
+			long looked = System.nanoTime();
+
+			HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setRequestProperty("User-Agent", USER_AGENT);
+			String cookie = jar != null ? jar.getHeader() : context.getCookie();
+			if(cookie != null)
+			{
+				connection.setRequestProperty("Cookie", cookie);
+			}
+			if(template != null)
+			{
+				connection.setRequestMethod(template.getMethod());
+				for(String header : template.getHeaders())
+				{
+					int colon = header.indexOf(':');
+					connection.setRequestProperty(header.substring(0, colon),
+						header.substring(colon + 2));
+				}
+				if(template.getContentType() != null)
+				{
+					connection.setRequestProperty("Content-Type",
+						template.getContentType());
+				}
+				if(template.hasBody())
+				{
+					// Stream the body rather than letting the connection buffer a copy
+					connection.setDoOutput(true);
+					connection.setFixedLengthStreamingMode(template.getBodyLength());
+				}
+			}
+
+			connection.connect();
+			long connected = System.nanoTime();
+			if(template != null && template.hasBody())
+			{
+				OutputStream out = connection.getOutputStream();
+				try
+				{
+					if(template.getBody() != null)
+					{
+						out.write(template.getBody());
+					}
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			long sent = System.nanoTime();
+			int status = connection.getResponseCode();
+			long firstByte = System.nanoTime();
+			if(jar != null)
+			{
+				for(int i=1; connection.getHeaderFieldKey(i) != null; i++)
+				{
+					if(connection.getHeaderFieldKey(i).equalsIgnoreCase("Set-Cookie"))
+					{
+						jar.setCookie(connection.getHeaderField(i));
+					}
+				}
+			}
+			ResponseValidator.Check check = validator.start(status,
+				ResponseValidator.getCharset(connection.getContentType()));
+
+			try
+			{
+				// The rest of the body is still read once the check is complete, so
+				// that the connection can be kept alive, but it is not looked at
+				InputStream in = status >= 400 ? connection.getErrorStream()
+					: connection.getInputStream();
+				long bytes = 0;
+				if(in != null)
+				{
+					byte[] buffer = BUFFERS.take();
+					try
+					{
+						while(true)
+						{
+							int read = in.read(buffer);
+							if(read == -1)
+							{
+								break;
+							}
+							bytes += read;
+							if(!check.isComplete())
+							{
+								check.update(buffer, 0, read);
+							}
+						}
+					}
+					finally
+					{
+						BUFFERS.give(buffer);
+						in.close();
+					}
+				}
+
+				if(result != null)
+				{
+					result.setPhase(TaskResult.PHASE_DNS, looked - start);
+					result.setPhase(TaskResult.PHASE_CONNECT, connected - looked);
+					result.setPhase(TaskResult.PHASE_FIRST_BYTE, firstByte - sent);
+					result.setPhase(TaskResult.PHASE_TRANSFER,
+						System.nanoTime() - firstByte);
+					result.setResponse(status, bytes);
+				}
+
+				if(!check.finish())
+				{
+					throw new Error("Did not match");
+				}
+			}
+			finally
+			{
+				check.release();
+			}
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			throw new Error(e);
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Dispatcher that makes requests using the non-blocking HTTP engine, so
+ * no thread is held while a request is in progress. Tasks that the engine
+ * cannot handle (https URLs, or anything other than a {@link LoadTestTask})
+ * are run on threads instead, within the same limit on requests in flight.
+ */
+public class NioDispatcher implements TaskDispatcher
+{
+	private int maxTasks, pipelineDepth;
+	private ThreadHandler.Reporter reporter;
+	private TaskDispatcher fallback;
+
+	private NioHttpEngine engine;
+	private int running;
+	/** True once a task has been run on the fallback dispatcher */
+	private boolean fallbackUsed;
+	private volatile CapacityListener capacityListener;
+
+	/** Request objects that are not in use */
+	private Pending free;
+
+	/**
+	 * A request in progress. These objects are reused, along with their
+	 * results, so that a request does not need to allocate them.
+	 */
+	private class Pending implements NioHttpEngine.Callback
+	{
+		private int index, status;
+		private long scheduled, start, bytes;
+		private LoadTestTask task;
+		private CookieJar jar;
+		private ResponseValidator.Check check;
+		private TaskResult result = new TaskResult();
+
+		/** Next free object */
+		private Pending next;
+
+		@Override
+		public void started(int status, Charset charset)
+		{
+			this.status = status;
+			check = task.getValidator().start(status, charset);
+		}
+
+		@Override
+		public void cookie(String setCookie)
+		{
+			if(jar != null)
+			{
+				jar.setCookie(setCookie);
+			}
+		}
+
+		@Override
+		public void body(byte[] data, int offset, int length)
+		{
+			bytes += length;
+			if(!check.isComplete())
+			{
+				check.update(data, offset, length);
+			}
+		}
+
+		@Override
+		public void completed(long dns, long connect, long firstByte,
+			long transfer)
+		{
+			result.clearPhases();
+			if(dns != -1)
+			{
+				result.setPhase(TaskResult.PHASE_DNS, dns);
+			}
+			if(connect != -1)
+			{
+				result.setPhase(TaskResult.PHASE_CONNECT, connect);
+			}
+			result.setPhase(TaskResult.PHASE_FIRST_BYTE, firstByte);
+			result.setPhase(TaskResult.PHASE_TRANSFER, transfer);
+			result.setResponse(status, bytes);
+
+			// Allocation on the I/O thread since its last completed request is
+			// counted against this one
+			result.set(index, scheduled, start, System.nanoTime(), check.finish(),
+				AllocationCounter.sinceLast());
+			try
+			{
+				result.report(reporter);
+			}
+			finally
+			{
+				finished(this);
+			}
+		}
+
+		@Override
+		public void failed(IOException e)
+		{
+			result.clearPhases();
+			result.set(index, scheduled, start, System.nanoTime(), false,
+				AllocationCounter.sinceLast());
+			try
+			{
+				result.report(reporter);
+			}
+			finally
+			{
+				finished(this);
+			}
+		}
+	}
+
+	/**
+	 * @param maxTasks Maximum number of requests in flight, including any run
+	 *   on threads (0 = unlimited)
+	 * @param pipelineDepth Maximum requests in progress on each connection
+	 *   (1 = no pipelining)
+	 * @param reporter Reporter for task results
+	 */
+	public NioDispatcher(int maxTasks, int pipelineDepth,
+		ThreadHandler.Reporter reporter)
+	{
+		this.maxTasks = maxTasks;
+		this.pipelineDepth = pipelineDepth;
+		this.reporter = reporter;
+		// The limit is checked here for both kinds of request
+		fallback = new VirtualThreadDispatcher(0, reporter);
+	}
+
+	@Override
+	public boolean runTask(int index, long scheduled, Runnable task)
+	{
+		if(!(task instanceof LoadTestTask) ||
+			!((LoadTestTask)task).getUrl().getProtocol().equals("http"))
+		{
+			synchronized(this)
+			{
+				// The fallback counts the task before returning, so holding the
+				// lock keeps the total within the limit
+				if(isFull())
+				{
+					return false;
+				}
+				fallbackUsed = true;
+				return fallback.runTask(index, scheduled, task);
+			}
+		}
+		LoadTestTask loadTestTask = (LoadTestTask)task;
+
+		NioHttpEngine current;
+		Pending pending;
+		synchronized(this)
+		{
+			if(isFull())
+			{
+				return false;
+			}
+			if(!createEngine())
+			{
+				return false;
+			}
+			current = engine;
+			running++;
+			pending = free;
+			if(pending == null)
+			{
+				pending = new Pending();
+			}
+			else
+			{
+				free = pending.next;
+			}
+		}
+		pending.index = index;
+		pending.scheduled = scheduled;
+		pending.bytes = 0;
+		pending.task = loadTestTask;
+
+		// With sessions, each request has its own cookies so the data cannot be
+		// shared; the body always is
+		SessionPool sessions = loadTestTask.getSessions();
+		RequestTemplate template = loadTestTask.getTemplate();
+		byte[] data;
+		if(sessions == null)
+		{
+			data = loadTestTask.getRequestData();
+		}
+		else
+		{
+			pending.jar = sessions.take();
+			data = NioHttpEngine.buildRequest(loadTestTask.getUrl(), template,
+				pending.jar.getHeader());
+		}
+
+		pending.start = System.nanoTime();
+		current.request(loadTestTask.getUrl(), data,
+			template == null ? null : template.getBodyBuffer(), pending);
+		return true;
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 * @return True if the number of requests in flight is at the limit
+	 */
+	private boolean isFull()
+	{
+		if(maxTasks == 0)
+		{
+			return false;
+		}
+		int total = running;
+		if(fallbackUsed)
+		{
+			total += fallback.getRunning();
+		}
+		return total >= maxTasks;
+	}
+
+	/**
+	 * Creates the engine if it does not exist.
+	 * @return True if the engine exists
+	 */
+	private synchronized boolean createEngine()
+	{
+		if(engine == null)
+		{
+			try
+			{
+				engine = new NioHttpEngine(
+					Runtime.getRuntime().availableProcessors(), pipelineDepth);
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void prestart()
+	{
+		createEngine();
+		fallback.prestart();
+	}
+
+	/**
+	 * Called when a request has finished and been reported.
+	 * @param pending Request, which can now be reused
+	 */
+	private void finished(Pending pending)
+	{
+		if(pending.jar != null)
+		{
+			pending.task.getSessions().give(pending.jar);
+			pending.jar = null;
+		}
+		if(pending.check != null)
+		{
+			pending.check.release();
+		}
+		synchronized(this)
+		{
+			pending.task = null;
+			pending.check = null;
+			pending.next = free;
+			free = pending;
+			running--;
+			notifyAll();
+		}
+		CapacityListener current = capacityListener;
+		if(current != null)
+		{
+			current.capacityAvailable();
+		}
+	}
+
+	@Override
+	public void setCapacityListener(CapacityListener listener)
+	{
+		capacityListener = listener;
+		fallback.setCapacityListener(listener);
+	}
+
+	@Override
+	public int getRunning()
+	{
+		int nioRunning;
+		synchronized(this)
+		{
+			nioRunning = running;
+		}
+		return nioRunning + fallback.getRunning();
+	}
+
+	@Override
+	public void waitForIdle()
+	{
+		synchronized(this)
+		{
+			while(running > 0)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+		fallback.waitForIdle();
+	}
+
+	@Override
+	public void stop()
+	{
+		NioHttpEngine exEngine;
+		synchronized(this)
+		{
+			exEngine = engine;
+			engine = null;
+		}
+		if(exEngine != null)
+		{
+			exEngine.stop();
+		}
+		fallback.stop();
+	}
+}
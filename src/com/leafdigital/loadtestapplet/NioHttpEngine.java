@@ -0,0 +1,1176 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.*;
+
+/**
+ * Non-blocking HTTP/1.1 client. Many keep-alive connections are multiplexed
+ * over a small number of I/O threads, so a request does not hold a thread
+ * while it waits for the server. Optionally, several requests can be
+ * pipelined on each connection.
+ * <p>
+ * Only plain http URLs are supported, and redirects are not followed.
+ * <p>
+ * A request body is written straight from a buffer that many requests can
+ * share (see {@link RequestTemplate}), after the request line and headers.
+ */
+public class NioHttpEngine
+{
+	private final static int BUFFER_SIZE = 65536;
+	private final static int MAX_LINE = 65536;
+	private final static int SELECT_TIMEOUT = 100;
+	private final static int MAX_RETRIES = 3;
+
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private final static Pattern STATUS_LINE = Pattern.compile(
+		"HTTP/1\\.([0-9]) ([0-9]{3}).*");
+
+	private final static int STATE_STATUS = 0, STATE_HEADERS = 1,
+		STATE_BODY_LENGTH = 2, STATE_BODY_CLOSE = 3, STATE_CHUNK_SIZE = 4,
+		STATE_CHUNK_DATA = 5, STATE_CHUNK_END = 6, STATE_TRAILERS = 7;
+
+	private int pipelineDepth;
+	private IoThread[] ioThreads;
+	private int nextIoThread;
+	private Map<String, HostPool> hosts = new HashMap<String, HostPool>();
+	/** Host pools by URL object, so that repeat requests need no lookup key */
+	private Map<URL, HostPool> urlHosts = new IdentityHashMap<URL, HostPool>();
+	private volatile boolean stop;
+
+	/**
+	 * Receives the result of a request. Methods are called on an I/O thread,
+	 * so they must not block. The body is passed on as it arrives and is not
+	 * kept by the engine.
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called when the response headers have been received.
+		 * @param status HTTP status code
+		 * @param charset Character set from Content-Type header, or ISO-8859-1
+		 *   if none
+		 */
+		public void started(int status, Charset charset);
+
+		/**
+		 * Called for each Set-Cookie header, before the headers are complete.
+		 * @param setCookie Value of header
+		 */
+		public void cookie(String setCookie);
+
+		/**
+		 * Called with each part of the response body. The data must not be kept
+		 * after the call returns.
+		 * @param data Buffer
+		 * @param offset Offset of data in buffer
+		 * @param length Length of data
+		 */
+		public void body(byte[] data, int offset, int length);
+
+		/**
+		 * Called when the whole response has been received. With pipelining,
+		 * time to first byte includes waiting for earlier responses.
+		 * @param dns Nanoseconds spent looking up the host name, or -1 if it
+		 *   was already known
+		 * @param connect Nanoseconds spent opening the connection, or -1 if an
+		 *   open connection was used
+		 * @param firstByte Nanoseconds from sending the request to the first
+		 *   byte of the response
+		 * @param transfer Nanoseconds from the first byte to the end of the
+		 *   response
+		 */
+		public void completed(long dns, long connect, long firstByte,
+			long transfer);
+
+		/**
+		 * Called if the request fails.
+		 * @param e Exception
+		 */
+		public void failed(IOException e);
+	}
+
+	/**
+	 * @param ioThreads Number of I/O threads
+	 * @param pipelineDepth Maximum requests in progress on each connection
+	 *   (1 = no pipelining)
+	 * @throws IOException If a selector cannot be opened
+	 */
+	public NioHttpEngine(int ioThreads, int pipelineDepth) throws IOException
+	{
+		this.pipelineDepth = pipelineDepth;
+		this.ioThreads = new IoThread[ioThreads];
+		for(int i=0; i<ioThreads; i++)
+		{
+			this.ioThreads[i] = new IoThread(i);
+		}
+		for(IoThread thread : this.ioThreads)
+		{
+			thread.start();
+		}
+	}
+
+	/**
+	 * Starts a request. The callback will be called exactly once.
+	 * @param url URL (must be http)
+	 * @param cookie Cookie (full value of header line) or null if none
+	 * @param callback Callback for result
+	 * @throws IllegalArgumentException If the URL is not http
+	 */
+	public void request(URL url, String cookie, Callback callback)
+		throws IllegalArgumentException
+	{
+		request(url, buildRequest(url, cookie), callback);
+	}
+
+	/**
+	 * Starts a request using request data built in advance, so that the same
+	 * data can be shared by many requests. The callback will be called
+	 * exactly once.
+	 * @param url URL (must be http)
+	 * @param request Request data from {@link #buildRequest(URL, String)};
+	 *   must not be changed
+	 * @param callback Callback for result
+	 * @throws IllegalArgumentException If the URL is not http
+	 */
+	public void request(URL url, byte[] request, Callback callback)
+		throws IllegalArgumentException
+	{
+		request(url, request, null, callback);
+	}
+
+	/**
+	 * Starts a request with a body, using request data built in advance. The
+	 * callback will be called exactly once.
+	 * @param url URL (must be http)
+	 * @param request Request data from
+	 *   {@link #buildRequest(URL, RequestTemplate, String)}; must not be changed
+	 * @param body Body to send after the request data, or null if none; its
+	 *   position is moved as it is sent, so each request needs its own (from
+	 *   {@link RequestTemplate#getBodyBuffer()})
+	 * @param callback Callback for result
+	 * @throws IllegalArgumentException If the URL is not http
+	 */
+	public void request(URL url, byte[] request, ByteBuffer body,
+		Callback callback) throws IllegalArgumentException
+	{
+		if(!url.getProtocol().equals("http"))
+		{
+			throw new IllegalArgumentException("Only http URLs are supported");
+		}
+		submit(new Request(url, request, body, callback));
+	}
+
+	/**
+	 * Builds the data for a GET request.
+	 * @param url URL
+	 * @param cookie Cookie (full value of header line) or null if none
+	 * @return Request data
+	 */
+	public static byte[] buildRequest(URL url, String cookie)
+	{
+		return buildRequest(url, null, cookie);
+	}
+
+	/**
+	 * Builds the request line and headers for a request. The body, if any, is
+	 * not included.
+	 * @param url URL
+	 * @param template Method, headers and body, or null for a plain GET
+	 * @param cookie Cookie (full value of header line) or null if none
+	 * @return Request data
+	 */
+	public static byte[] buildRequest(URL url, RequestTemplate template,
+		String cookie)
+	{
+		String path = url.getFile();
+		if(path.length() == 0)
+		{
+			path = "/";
+		}
+		StringBuilder out = new StringBuilder();
+		out.append(template == null ? "GET" : template.getMethod()).append(' ')
+			.append(path).append(" HTTP/1.1\r\n");
+		out.append("Host: ").append(url.getHost());
+		if(url.getPort() != -1)
+		{
+			out.append(':').append(url.getPort());
+		}
+		out.append("\r\n");
+		out.append("User-Agent: ").append(LoadTestTask.USER_AGENT).append("\r\n");
+		if(cookie != null)
+		{
+			out.append("Cookie: ").append(cookie).append("\r\n");
+		}
+		if(template != null)
+		{
+			for(String header : template.getHeaders())
+			{
+				out.append(header).append("\r\n");
+			}
+			if(template.getContentType() != null)
+			{
+				out.append("Content-Type: ").append(template.getContentType())
+					.append("\r\n");
+			}
+			if(template.hasBody())
+			{
+				out.append("Content-Length: ").append(template.getBodyLength())
+					.append("\r\n");
+			}
+		}
+		out.append("\r\n");
+		try
+		{
+			return out.toString().getBytes("ISO-8859-1");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * @param data Data
+	 * @param length Number of bytes from start of data
+	 * @return Text decoded as ISO-8859-1
+	 */
+	private static String latin1(byte[] data, int length)
+	{
+		try
+		{
+			return new String(data, 0, length, "ISO-8859-1");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+
+	private void submit(Request request)
+	{
+		if(stop)
+		{
+			request.callback.failed(new IOException("Engine stopped"));
+			return;
+		}
+
+		HostPool pool;
+		try
+		{
+			pool = getHostPool(request);
+		}
+		catch(IOException e)
+		{
+			request.callback.failed(e);
+			return;
+		}
+
+		Connection connection = pool.acquire();
+		if(connection == null)
+		{
+			IoThread thread;
+			synchronized(this)
+			{
+				thread = ioThreads[nextIoThread];
+				nextIoThread = (nextIoThread + 1) % ioThreads.length;
+			}
+			connection = new Connection(pool, thread);
+			pool.added(connection);
+		}
+		request.connection = connection;
+		connection.thread.post(request);
+	}
+
+	/**
+	 * Gets the pool for a request's host, looking up the host if necessary.
+	 * @param request Request; its DNS time is set if a lookup happens
+	 * @return Pool
+	 * @throws IOException If the host cannot be found
+	 */
+	private HostPool getHostPool(Request request) throws IOException
+	{
+		URL url = request.url;
+		synchronized(hosts)
+		{
+			HostPool pool = urlHosts.get(url);
+			if(pool != null)
+			{
+				return pool;
+			}
+			int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+			String key = url.getHost() + ":" + port;
+			pool = hosts.get(key);
+			if(pool == null)
+			{
+				// Resolve once so that DNS lookups do not block the I/O threads
+				long start = System.nanoTime();
+				InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+				request.dns = System.nanoTime() - start;
+				if(address.isUnresolved())
+				{
+					throw new UnknownHostException(url.getHost());
+				}
+				pool = new HostPool(address);
+				hosts.put(key, pool);
+			}
+			urlHosts.put(url, pool);
+			return pool;
+		}
+	}
+
+	/**
+	 * Stops all I/O threads; does not return until they are stopped. Any
+	 * requests in progress fail.
+	 */
+	public void stop()
+	{
+		stop = true;
+		for(IoThread thread : ioThreads)
+		{
+			thread.waitForStop();
+		}
+	}
+
+	/**
+	 * A single request.
+	 */
+	private static class Request
+	{
+		private URL url;
+		private Callback callback;
+		private ByteBuffer data, body;
+		/** Request data and body, for writing together; null if no body */
+		private ByteBuffer[] buffers;
+		private Connection connection;
+		private int retries;
+		/** True if the method is GET, HEAD or OPTIONS, so it can be repeated */
+		private boolean safe;
+
+		private boolean receivedAny;
+
+		/** Phase times (nanoseconds, -1 if the phase did not happen) */
+		private long dns = -1, connect = -1;
+		/** Times request was sent and first byte received (nanoTime) */
+		private long sent, firstByte;
+
+		private Request(URL url, byte[] request, ByteBuffer body,
+			Callback callback)
+		{
+			this.url = url;
+			this.callback = callback;
+			data = ByteBuffer.wrap(request);
+			String start = latin1(request, Math.min(request.length, 8));
+			safe = start.startsWith("GET ") || start.startsWith("HEAD ") ||
+				start.startsWith("OPTIONS ");
+			if(body != null)
+			{
+				this.body = body;
+				buffers = new ByteBuffer[] { data, body };
+			}
+		}
+
+		/**
+		 * @return True if any of the request remains to be sent
+		 */
+		private boolean hasRemaining()
+		{
+			return data.hasRemaining() || (body != null && body.hasRemaining());
+		}
+
+		/**
+		 * Prepares for the request to be sent again on a new connection.
+		 */
+		private void reset()
+		{
+			data.rewind();
+			if(body != null)
+			{
+				body.rewind();
+			}
+			receivedAny = false;
+			connect = -1;
+			retries++;
+		}
+	}
+
+	/**
+	 * Open connections to a single host and port.
+	 */
+	private class HostPool
+	{
+		private InetSocketAddress address;
+
+		/** Connections that can take another request. */
+		private Set<Connection> available = new LinkedHashSet<Connection>();
+
+		private HostPool(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		/**
+		 * @return Connection with space for another request, or null if none
+		 */
+		private synchronized Connection acquire()
+		{
+			Iterator<Connection> i = available.iterator();
+			if(!i.hasNext())
+			{
+				return null;
+			}
+			Connection connection = i.next();
+			connection.outstanding++;
+			if(connection.outstanding >= pipelineDepth)
+			{
+				i.remove();
+			}
+			return connection;
+		}
+
+		/**
+		 * @param connection New connection, which already has one request
+		 */
+		private synchronized void added(Connection connection)
+		{
+			connection.outstanding = 1;
+			if(pipelineDepth > 1)
+			{
+				available.add(connection);
+			}
+		}
+
+		/**
+		 * @param connection Connection that has completed a request
+		 */
+		private synchronized void released(Connection connection)
+		{
+			connection.outstanding--;
+			if(!connection.closed)
+			{
+				available.add(connection);
+			}
+		}
+
+		/**
+		 * @param connection Connection that has been closed
+		 */
+		private synchronized void closed(Connection connection)
+		{
+			connection.closed = true;
+			available.remove(connection);
+		}
+	}
+
+	/**
+	 * A single connection. Apart from the fields guarded by the host pool,
+	 * this is only used on its I/O thread.
+	 */
+	private class Connection
+	{
+		private HostPool pool;
+		private IoThread thread;
+
+		/** Guarded by pool. */
+		private int outstanding;
+		/** Set on I/O thread, guarded by pool. */
+		private boolean closed;
+
+		private SocketChannel channel;
+		private SelectionKey key;
+		private boolean connected;
+		private long connectStart;
+		private long lastActivity;
+		private int completed;
+
+		private LinkedList<Request> toSend = new LinkedList<Request>();
+		private LinkedList<Request> sent = new LinkedList<Request>();
+
+		private int state = STATE_STATUS;
+		private byte[] line = new byte[256];
+		private int lineLength;
+		private boolean lineComplete;
+		private int status;
+		private long remaining;
+		private boolean keepAlive, chunked;
+		private Charset charset;
+
+		private Connection(HostPool pool, IoThread thread)
+		{
+			this.pool = pool;
+			this.thread = thread;
+		}
+
+		/**
+		 * Adds a request, opening the connection if needed.
+		 * @param request Request
+		 * @throws IOException If the connection cannot be opened
+		 */
+		private void add(Request request) throws IOException
+		{
+			if(closed)
+			{
+				resubmit(request, new IOException("Connection closed"));
+				return;
+			}
+			toSend.add(request);
+			if(channel == null)
+			{
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				lastActivity = System.currentTimeMillis();
+				thread.connections.add(this);
+				connectStart = System.nanoTime();
+				if(channel.connect(pool.address))
+				{
+					connected();
+					key = channel.register(thread.selector,
+						SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+				}
+				else
+				{
+					key = channel.register(thread.selector, SelectionKey.OP_CONNECT, this);
+				}
+			}
+			else if(connected)
+			{
+				if(sent.isEmpty())
+				{
+					lastActivity = System.currentTimeMillis();
+				}
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void finishConnect() throws IOException
+		{
+			channel.finishConnect();
+			connected();
+			lastActivity = System.currentTimeMillis();
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		/**
+		 * Marks the connection as connected, and records the time against the
+		 * request that opened it.
+		 */
+		private void connected()
+		{
+			connected = true;
+			Request first = toSend.peek();
+			if(first != null)
+			{
+				first.connect = System.nanoTime() - connectStart;
+			}
+		}
+
+		private void write() throws IOException
+		{
+			while(!toSend.isEmpty())
+			{
+				Request request = toSend.getFirst();
+				long written = request.buffers == null ? channel.write(request.data)
+					: channel.write(request.buffers);
+				if(request.hasRemaining())
+				{
+					// A large body may take longer than the timeout to send
+					if(written > 0)
+					{
+						lastActivity = System.currentTimeMillis();
+					}
+					return;
+				}
+				toSend.removeFirst();
+				request.sent = System.nanoTime();
+				if(sent.isEmpty())
+				{
+					lastActivity = System.currentTimeMillis();
+				}
+				sent.add(request);
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private void read(ByteBuffer buffer) throws IOException
+		{
+			while(true)
+			{
+				buffer.clear();
+				int read = channel.read(buffer);
+				if(read == -1)
+				{
+					if(state == STATE_BODY_CLOSE)
+					{
+						complete();
+					}
+					close(new IOException("Connection closed by server"));
+					return;
+				}
+				if(read == 0)
+				{
+					return;
+				}
+				lastActivity = System.currentTimeMillis();
+				buffer.flip();
+				received(buffer);
+				if(closed)
+				{
+					return;
+				}
+			}
+		}
+
+		private void received(ByteBuffer buffer) throws IOException
+		{
+			while(buffer.hasRemaining())
+			{
+				Request request = sent.peek();
+				if(request == null)
+				{
+					throw new ProtocolException("Unexpected data from server");
+				}
+				if(!request.receivedAny)
+				{
+					request.receivedAny = true;
+					request.firstByte = System.nanoTime();
+				}
+
+				switch(state)
+				{
+				case STATE_STATUS:
+					if(readLine(buffer))
+					{
+						Matcher m = STATUS_LINE.matcher(latin1(line, lineLength));
+						if(!m.matches())
+						{
+							throw new ProtocolException("Invalid status line");
+						}
+						status = Integer.parseInt(m.group(2));
+						keepAlive = !m.group(1).equals("0");
+						chunked = false;
+						remaining = -1;
+						charset = ISO_8859_1;
+						state = STATE_HEADERS;
+					}
+					break;
+
+				case STATE_HEADERS:
+					if(readLine(buffer))
+					{
+						if(lineLength == 0)
+						{
+							endHeaders();
+						}
+						else
+						{
+							header(request, latin1(line, lineLength));
+						}
+					}
+					break;
+
+				case STATE_BODY_LENGTH:
+				case STATE_CHUNK_DATA:
+				{
+					int length = (int)Math.min(remaining, buffer.remaining());
+					body(request, buffer, length);
+					remaining -= length;
+					if(remaining == 0)
+					{
+						if(state == STATE_BODY_LENGTH)
+						{
+							complete();
+						}
+						else
+						{
+							state = STATE_CHUNK_END;
+						}
+					}
+					break;
+				}
+
+				case STATE_BODY_CLOSE:
+					body(request, buffer, buffer.remaining());
+					break;
+
+				case STATE_CHUNK_SIZE:
+					if(readLine(buffer))
+					{
+						String size = latin1(line, lineLength);
+						int semicolon = size.indexOf(';');
+						if(semicolon != -1)
+						{
+							size = size.substring(0, semicolon);
+						}
+						try
+						{
+							remaining = Long.parseLong(size.trim(), 16);
+						}
+						catch(NumberFormatException e)
+						{
+							throw new ProtocolException("Invalid chunk size");
+						}
+						state = remaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+					}
+					break;
+
+				case STATE_CHUNK_END:
+					if(readLine(buffer))
+					{
+						state = STATE_CHUNK_SIZE;
+					}
+					break;
+
+				case STATE_TRAILERS:
+					if(readLine(buffer) && lineLength == 0)
+					{
+						complete();
+					}
+					break;
+				}
+
+				if(closed)
+				{
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Reads bytes into the line buffer until end of line.
+		 * @param buffer Buffer
+		 * @return True if a whole line (excluding CRLF) is now in the buffer
+		 * @throws IOException If line is too long
+		 */
+		private boolean readLine(ByteBuffer buffer) throws IOException
+		{
+			if(lineComplete)
+			{
+				lineLength = 0;
+				lineComplete = false;
+			}
+			while(buffer.hasRemaining())
+			{
+				byte b = buffer.get();
+				if(b == '\n')
+				{
+					if(lineLength > 0 && line[lineLength - 1] == '\r')
+					{
+						lineLength--;
+					}
+					lineComplete = true;
+					return true;
+				}
+				if(lineLength == line.length)
+				{
+					if(line.length >= MAX_LINE)
+					{
+						throw new ProtocolException("Line too long");
+					}
+					byte[] newLine = new byte[line.length * 2];
+					System.arraycopy(line, 0, newLine, 0, lineLength);
+					line = newLine;
+				}
+				line[lineLength++] = b;
+			}
+			return false;
+		}
+
+		private void header(Request request, String header)
+		{
+			int colon = header.indexOf(':');
+			if(colon == -1)
+			{
+				return;
+			}
+			String name = header.substring(0, colon).trim(),
+				value = header.substring(colon + 1).trim();
+			if(name.equalsIgnoreCase("Content-Length"))
+			{
+				try
+				{
+					remaining = Long.parseLong(value);
+				}
+				catch(NumberFormatException e)
+				{
+					remaining = -1;
+				}
+			}
+			else if(name.equalsIgnoreCase("Transfer-Encoding"))
+			{
+				chunked = value.toLowerCase().indexOf("chunked") != -1;
+			}
+			else if(name.equalsIgnoreCase("Connection"))
+			{
+				if(value.equalsIgnoreCase("close"))
+				{
+					keepAlive = false;
+				}
+				else if(value.equalsIgnoreCase("keep-alive"))
+				{
+					keepAlive = true;
+				}
+			}
+			else if(name.equalsIgnoreCase("Content-Type"))
+			{
+				charset = ResponseValidator.getCharset(value);
+			}
+			else if(name.equalsIgnoreCase("Set-Cookie"))
+			{
+				request.callback.cookie(value);
+			}
+		}
+
+		/**
+		 * Passes part of the body to the request's callback.
+		 * @param request Request
+		 * @param buffer Buffer containing data at current position
+		 * @param length Length of data
+		 */
+		private void body(Request request, ByteBuffer buffer, int length)
+		{
+			try
+			{
+				request.callback.body(buffer.array(),
+					buffer.arrayOffset() + buffer.position(), length);
+			}
+			catch(Throwable t)
+			{
+				t.printStackTrace();
+			}
+			buffer.position(buffer.position() + length);
+		}
+
+		private void endHeaders() throws IOException
+		{
+			if(status >= 100 && status < 200)
+			{
+				// Informational response, real one follows
+				state = STATE_STATUS;
+				return;
+			}
+
+			try
+			{
+				sent.peek().callback.started(status, charset);
+			}
+			catch(Throwable t)
+			{
+				t.printStackTrace();
+			}
+			if(status == 204 || status == 304)
+			{
+				complete();
+			}
+			else if(chunked)
+			{
+				state = STATE_CHUNK_SIZE;
+			}
+			else if(remaining == 0)
+			{
+				complete();
+			}
+			else if(remaining > 0)
+			{
+				state = STATE_BODY_LENGTH;
+			}
+			else
+			{
+				keepAlive = false;
+				state = STATE_BODY_CLOSE;
+			}
+		}
+
+		private void complete() throws IOException
+		{
+			Request request = sent.removeFirst();
+			state = STATE_STATUS;
+			lineLength = 0;
+			lineComplete = false;
+			completed++;
+			lastActivity = System.currentTimeMillis();
+			pool.released(this);
+			try
+			{
+				request.callback.completed(request.dns, request.connect,
+					request.firstByte - request.sent,
+					System.nanoTime() - request.firstByte);
+			}
+			catch(Throwable t)
+			{
+				t.printStackTrace();
+			}
+			if(!keepAlive)
+			{
+				close(new IOException("Connection closed by server"));
+			}
+		}
+
+		/**
+		 * Closes the connection. If the server closed or reset a connection
+		 * that had already completed a response, it was probably a stale
+		 * keep-alive connection, so requests the server cannot have answered
+		 * are sent again on another connection: those not yet sent, and those
+		 * sent with a method that can safely be repeated. Otherwise (including
+		 * timeouts and invalid responses) all requests fail.
+		 * @param e Reason for closing
+		 */
+		private void close(IOException e)
+		{
+			if(closed)
+			{
+				return;
+			}
+			pool.closed(this);
+			thread.connections.remove(this);
+			if(key != null)
+			{
+				key.cancel();
+			}
+			if(channel != null)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch(IOException e2)
+				{
+				}
+			}
+
+			boolean stale = connected && completed > 0 &&
+				!(e instanceof SocketTimeoutException) &&
+				!(e instanceof ProtocolException);
+			for(Request request : sent)
+			{
+				if(stale && request.safe && !request.receivedAny)
+				{
+					resubmit(request, e);
+				}
+				else
+				{
+					request.callback.failed(e);
+				}
+			}
+			sent.clear();
+			for(Request request : toSend)
+			{
+				if(stale && request.data.position() == 0)
+				{
+					resubmit(request, e);
+				}
+				else
+				{
+					request.callback.failed(e);
+				}
+			}
+			toSend.clear();
+		}
+
+		private void resubmit(Request request, IOException e)
+		{
+			if(stop || request.retries >= MAX_RETRIES)
+			{
+				request.callback.failed(e);
+				return;
+			}
+			request.reset();
+			submit(request);
+		}
+
+		/**
+		 * Closes the connection if it has timed out.
+		 * @param now Current time
+		 */
+		private void checkTimeout(long now)
+		{
+			if(!connected)
+			{
+				if(now - lastActivity > LoadTestTask.CONNECT_TIMEOUT)
+				{
+					close(new SocketTimeoutException("Connect timed out"));
+				}
+			}
+			else if(!sent.isEmpty() || !toSend.isEmpty())
+			{
+				if(now - lastActivity > LoadTestTask.READ_TIMEOUT)
+				{
+					close(new SocketTimeoutException("Read timed out"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Thread that handles the selector for a set of connections.
+	 */
+	private class IoThread
+	{
+		private int index;
+		private Selector selector;
+		private ConcurrentLinkedQueue<Request> posted =
+			new ConcurrentLinkedQueue<Request>();
+		private Set<Connection> connections = new HashSet<Connection>();
+		private boolean stopped;
+
+		private IoThread(int index) throws IOException
+		{
+			this.index = index;
+			selector = Selector.open();
+		}
+
+		private void start()
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					thread();
+				}
+			}, "NIO HTTP thread " + index).start();
+		}
+
+		/**
+		 * Passes a request to this thread.
+		 * @param request Request (connection must be set)
+		 */
+		private void post(Request request)
+		{
+			posted.add(request);
+			selector.wakeup();
+		}
+
+		private void thread()
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			long lastCheck = System.currentTimeMillis();
+			try
+			{
+				while(!stop)
+				{
+					selector.select(SELECT_TIMEOUT);
+
+					// Add newly posted requests
+					while(true)
+					{
+						Request request = posted.poll();
+						if(request == null)
+						{
+							break;
+						}
+						try
+						{
+							request.connection.add(request);
+						}
+						catch(IOException e)
+						{
+							request.connection.close(e);
+						}
+					}
+
+					// Handle ready connections
+					for(Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+						i.hasNext();)
+					{
+						SelectionKey key = i.next();
+						i.remove();
+						Connection connection = (Connection)key.attachment();
+						try
+						{
+							if(key.isValid() && key.isConnectable())
+							{
+								connection.finishConnect();
+							}
+							if(key.isValid() && key.isWritable())
+							{
+								connection.write();
+							}
+							if(key.isValid() && key.isReadable())
+							{
+								connection.read(buffer);
+							}
+						}
+						catch(IOException e)
+						{
+							connection.close(e);
+						}
+						catch(CancelledKeyException e)
+						{
+							// Connection was closed while handling
+						}
+					}
+
+					// Check timeouts
+					long now = System.currentTimeMillis();
+					if(now - lastCheck >= SELECT_TIMEOUT)
+					{
+						lastCheck = now;
+						for(Connection connection :
+							connections.toArray(new Connection[connections.size()]))
+						{
+							connection.checkTimeout(now);
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				IOException stopError = new IOException("Engine stopped");
+				for(Connection connection :
+					connections.toArray(new Connection[connections.size()]))
+				{
+					connection.close(stopError);
+				}
+				while(true)
+				{
+					Request request = posted.poll();
+					if(request == null)
+					{
+						break;
+					}
+					request.callback.failed(stopError);
+				}
+				try
+				{
+					selector.close();
+				}
+				catch(IOException e)
+				{
+				}
+				synchronized(this)
+				{
+					this.stopped = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Wakes the thread and waits for it to stop.
+		 */
+		private synchronized void waitForStop()
+		{
+			selector.wakeup();
+			try
+			{
+				while(!stopped)
+				{
+					wait();
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+}
@@ -0,0 +1,510 @@
+package com.leafdigital.loadtestapplet;
+
+import java.util.Random;
+import java.util.regex.*;
+
+/**
+ * Generates request times for an arrival rate profile as the test runs, so
+ * that individual events do not need to be added in advance.
+ * <p>
+ * Profiles can be created from text:
+ * <ul>
+ * <li>constant &lt;duration&gt; &lt;rate&gt;</li>
+ * <li>ramp &lt;duration&gt; &lt;start rate&gt; &lt;end rate&gt;</li>
+ * <li>step &lt;step duration&gt; &lt;steps&gt; &lt;start rate&gt;
+ *   &lt;increase per step&gt;</li>
+ * <li>poisson &lt;duration&gt; &lt;rate&gt;</li>
+ * </ul>
+ * Durations are in milliseconds and rates in requests per second.
+ * <p>
+ * A profile can be shared between several load generators with
+ * {@link #share(int, int)}.
+ */
+public abstract class RateProfile
+{
+	private final static Pattern TEXT = Pattern.compile(
+		"([a-z]+)((?:\\s+[0-9]+(?:\\.[0-9]+)?)+)");
+
+	private int duration;
+	private boolean finished;
+
+	/**
+	 * @param duration Duration of profile in milliseconds
+	 */
+	protected RateProfile(int duration)
+	{
+		this.duration = duration;
+	}
+
+	/**
+	 * @return Duration of profile in milliseconds
+	 */
+	public int getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Gets the time of the next event.
+	 * @return Time in milliseconds from start of profile, or -1 if there are
+	 *   no more events
+	 */
+	public int next()
+	{
+		long nanos = nextNanos();
+		return nanos == -1 ? -1 : (int)(nanos / 1000000L);
+	}
+
+	/**
+	 * Gets the time of the next event, without rounding it to a millisecond
+	 * (so that events at high rates are spread out rather than sent together).
+	 * @return Time in nanoseconds from start of profile, or -1 if there are
+	 *   no more events
+	 */
+	public long nextNanos()
+	{
+		if(finished)
+		{
+			return -1;
+		}
+		double time = nextTime();
+		if(!(time < duration))
+		{
+			finished = true;
+			return -1;
+		}
+		return (long)(time * 1000000.0);
+	}
+
+	/**
+	 * Gets the part of this profile to be run by one of several load
+	 * generators, so that together they produce the whole profile. Must be
+	 * called before any events are taken.
+	 * @param part Index of this generator (0 to parts-1)
+	 * @param parts Number of generators
+	 * @return Profile for this generator
+	 */
+	public RateProfile share(int part, int parts)
+	{
+		if(parts == 1)
+		{
+			return this;
+		}
+		return new Share(this, part, parts);
+	}
+
+	/**
+	 * Splits this profile into parts that can be run by several threads in
+	 * the same process; each takes every nth event, so that together they
+	 * produce the whole profile. Unlike {@link #share(int, int)}, this
+	 * profile generates each event once and hands it to the part that runs
+	 * it. Must be called before any events are taken.
+	 * @param parts Number of parts
+	 * @return Profiles for each part
+	 */
+	public RateProfile[] split(int parts)
+	{
+		if(parts == 1)
+		{
+			return new RateProfile[] { this };
+		}
+		Splitter splitter = new Splitter(this, parts);
+		RateProfile[] result = new RateProfile[parts];
+		for(int i=0; i<parts; i++)
+		{
+			result[i] = new Split(splitter, i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Time of next event in milliseconds from start of profile; each
+	 *   call returns the following event. May return infinity if there are no
+	 *   more events.
+	 */
+	protected abstract double nextTime();
+
+	/**
+	 * Creates a profile from text.
+	 * @param text Profile description, e.g. 'constant 20000 5'
+	 * @return New profile
+	 * @throws IllegalArgumentException If the text is not valid
+	 */
+	public static RateProfile parse(String text) throws IllegalArgumentException
+	{
+		Matcher m = TEXT.matcher(text.trim());
+		if(!m.matches())
+		{
+			throw new IllegalArgumentException("Invalid profile: " + text);
+		}
+		String type = m.group(1);
+		String[] parts = m.group(2).trim().split("\\s+");
+		double[] values = new double[parts.length];
+		for(int i=0; i<parts.length; i++)
+		{
+			values[i] = Double.parseDouble(parts[i]);
+		}
+
+		if(type.equals("constant") && values.length == 2)
+		{
+			return new Constant((int)values[0], values[1]);
+		}
+		else if(type.equals("ramp") && values.length == 3)
+		{
+			return new Ramp((int)values[0], values[1], values[2]);
+		}
+		else if(type.equals("step") && values.length == 4)
+		{
+			return new Step((int)values[0], (int)values[1], values[2], values[3]);
+		}
+		else if(type.equals("poisson") && values.length == 2)
+		{
+			return new Poisson((int)values[0], values[1]);
+		}
+		throw new IllegalArgumentException("Invalid profile: " + text);
+	}
+
+	private static void checkRate(double rate) throws IllegalArgumentException
+	{
+		if(rate < 0)
+		{
+			throw new IllegalArgumentException("Rate cannot be negative");
+		}
+	}
+
+	/**
+	 * Events evenly spaced at a fixed rate, starting at time 0.
+	 */
+	public static class Constant extends RateProfile
+	{
+		private double interval;
+		private long count;
+
+		/**
+		 * @param duration Duration in milliseconds
+		 * @param rate Requests per second
+		 * @throws IllegalArgumentException If rate is negative
+		 */
+		public Constant(int duration, double rate) throws IllegalArgumentException
+		{
+			super(duration);
+			checkRate(rate);
+			interval = 1000.0 / rate;
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			return (count++) * interval;
+		}
+	}
+
+	/**
+	 * Rate changes linearly from start rate to end rate.
+	 */
+	public static class Ramp extends RateProfile
+	{
+		private double startRate, slope;
+		private long count;
+
+		/**
+		 * @param duration Duration in milliseconds
+		 * @param startRate Requests per second at start
+		 * @param endRate Requests per second at end
+		 * @throws IllegalArgumentException If either rate is negative
+		 */
+		public Ramp(int duration, double startRate, double endRate)
+			throws IllegalArgumentException
+		{
+			super(duration);
+			checkRate(startRate);
+			checkRate(endRate);
+			this.startRate = startRate;
+			slope = (endRate - startRate) / (duration / 1000.0);
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			// Events so far at time t (seconds) = startRate*t + slope*t*t/2; solve
+			// for the time at which that reaches the event count
+			double n = count++;
+			if(slope == 0)
+			{
+				return startRate == 0 ? Double.POSITIVE_INFINITY : 1000.0 * n / startRate;
+			}
+			double discriminant = startRate * startRate + 2 * slope * n;
+			if(discriminant < 0)
+			{
+				return Double.POSITIVE_INFINITY;
+			}
+			return 1000.0 * (Math.sqrt(discriminant) - startRate) / slope;
+		}
+	}
+
+	/**
+	 * Rate increases in steps, constant within each step.
+	 */
+	public static class Step extends RateProfile
+	{
+		private int stepDuration;
+		private double startRate, increase;
+		private int step;
+		private long countInStep;
+
+		/**
+		 * @param stepDuration Duration of each step in milliseconds
+		 * @param steps Number of steps
+		 * @param startRate Requests per second in first step
+		 * @param increase Increase in requests per second for each step
+		 * @throws IllegalArgumentException If start rate is negative
+		 */
+		public Step(int stepDuration, int steps, double startRate, double increase)
+			throws IllegalArgumentException
+		{
+			super(stepDuration * steps);
+			checkRate(startRate);
+			this.stepDuration = stepDuration;
+			this.startRate = startRate;
+			this.increase = increase;
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			while(step * (long)stepDuration < getDuration())
+			{
+				double rate = startRate + step * increase;
+				if(rate > 0)
+				{
+					double offset = (countInStep * 1000.0) / rate;
+					if(offset < stepDuration)
+					{
+						countInStep++;
+						return step * (double)stepDuration + offset;
+					}
+				}
+				step++;
+				countInStep = 0;
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Events evenly spaced at a rate that can be changed while the test runs.
+	 * A change takes effect from the event after the next one.
+	 */
+	public static class Variable extends RateProfile
+	{
+		private volatile double rate;
+		private double time;
+		private boolean first = true;
+
+		/**
+		 * @param duration Duration in milliseconds
+		 * @param rate Initial requests per second
+		 * @throws IllegalArgumentException If rate is not positive
+		 */
+		public Variable(int duration, double rate) throws IllegalArgumentException
+		{
+			super(duration);
+			setRate(rate);
+		}
+
+		/**
+		 * Changes the rate. May be called from any thread.
+		 * @param rate Requests per second
+		 * @throws IllegalArgumentException If rate is not positive
+		 */
+		public void setRate(double rate) throws IllegalArgumentException
+		{
+			if(!(rate > 0))
+			{
+				throw new IllegalArgumentException("Rate must be positive");
+			}
+			this.rate = rate;
+		}
+
+		/**
+		 * @return Current requests per second
+		 */
+		public double getRate()
+		{
+			return rate;
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			if(first)
+			{
+				first = false;
+				return 0;
+			}
+			time += 1000.0 / rate;
+			return time;
+		}
+	}
+
+	/**
+	 * Every nth event of another profile, starting from a given one.
+	 */
+	public static class Share extends RateProfile
+	{
+		private RateProfile profile;
+		private int part, parts;
+		private boolean first = true;
+
+		/**
+		 * @param profile Profile to share
+		 * @param part Index of this share (0 to parts-1)
+		 * @param parts Number of shares
+		 */
+		public Share(RateProfile profile, int part, int parts)
+		{
+			super(profile.getDuration());
+			this.profile = profile;
+			this.part = part;
+			this.parts = parts;
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			double time = 0;
+			for(int i = first ? part + 1 : parts; i > 0; i--)
+			{
+				time = profile.nextTime();
+			}
+			first = false;
+			return time;
+		}
+	}
+
+	/**
+	 * Hands events of a profile to parts in turn, holding events for parts that
+	 * have not taken them yet.
+	 */
+	private static class Splitter
+	{
+		private RateProfile profile;
+		private int parts, nextPart;
+		private double[][] waiting;
+		private int[] heads, counts;
+
+		private Splitter(RateProfile profile, int parts)
+		{
+			this.profile = profile;
+			this.parts = parts;
+			waiting = new double[parts][4];
+			heads = new int[parts];
+			counts = new int[parts];
+		}
+
+		/**
+		 * @param part Part
+		 * @return Time of the next event for that part
+		 */
+		private synchronized double nextTime(int part)
+		{
+			while(counts[part] == 0)
+			{
+				double time = profile.nextTime();
+				if(nextPart == part)
+				{
+					nextPart = (nextPart + 1) % parts;
+					return time;
+				}
+				add(nextPart, time);
+				nextPart = (nextPart + 1) % parts;
+			}
+			double[] queue = waiting[part];
+			double time = queue[heads[part]];
+			heads[part] = (heads[part] + 1) % queue.length;
+			counts[part]--;
+			return time;
+		}
+
+		private void add(int part, double time)
+		{
+			double[] queue = waiting[part];
+			if(counts[part] == queue.length)
+			{
+				double[] bigger = new double[queue.length * 2];
+				for(int i=0; i<counts[part]; i++)
+				{
+					bigger[i] = queue[(heads[part] + i) % queue.length];
+				}
+				waiting[part] = queue = bigger;
+				heads[part] = 0;
+			}
+			queue[(heads[part] + counts[part]) % queue.length] = time;
+			counts[part]++;
+		}
+	}
+
+	/**
+	 * One part of a profile split between threads.
+	 */
+	private static class Split extends RateProfile
+	{
+		private Splitter splitter;
+		private int part;
+
+		private Split(Splitter splitter, int part)
+		{
+			super(splitter.profile.getDuration());
+			this.splitter = splitter;
+			this.part = part;
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			return splitter.nextTime(part);
+		}
+	}
+
+	/**
+	 * Events arrive randomly (exponential gaps) at an average rate.
+	 */
+	public static class Poisson extends RateProfile
+	{
+		private double rate, time;
+		private Random random = new Random();
+
+		/**
+		 * @param duration Duration in milliseconds
+		 * @param rate Average requests per second
+		 * @throws IllegalArgumentException If rate is negative
+		 */
+		public Poisson(int duration, double rate) throws IllegalArgumentException
+		{
+			super(duration);
+			checkRate(rate);
+			this.rate = rate;
+		}
+
+		/**
+		 * Shares are independent random arrivals at a fraction of the rate, which
+		 * combine to give random arrivals at the full rate.
+		 */
+		@Override
+		public RateProfile share(int part, int parts)
+		{
+			return new Poisson(getDuration(), rate / parts);
+		}
+
+		@Override
+		protected double nextTime()
+		{
+			if(rate == 0)
+			{
+				return Double.POSITIVE_INFINITY;
+			}
+			time += -Math.log(1.0 - random.nextDouble()) * 1000.0 / rate;
+			return time;
+		}
+	}
+}
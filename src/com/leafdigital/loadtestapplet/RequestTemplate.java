@@ -0,0 +1,321 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.regex.*;
+
+/**
+ * Method, extra headers and body for requests other than a plain GET, such
+ * as form posts and uploads. The body is encoded to bytes once, when the
+ * template is created, and every request made from the template sends it
+ * straight from the same read-only data; request lines and headers built
+ * from the template are likewise cached by each task (see
+ * {@link LoadTestTask}), so high request rates are not limited by building
+ * the requests.
+ * <p>
+ * A body is described in one of these ways:
+ * <ul>
+ * <li>'text a=1&amp;b=2' - the rest of the text, in UTF-8</li>
+ * <li>'size 1048576' - that many bytes of filler text</li>
+ * <li>'file upload.bin' - the contents of a file</li>
+ * <li>'base64 SGVsbG8=' - data in base64 (used to send the contents of a
+ *   file to load test agents)</li>
+ * </ul>
+ * Only POST and PUT may have a body. Headers must be added before the
+ * template is first used.
+ */
+public class RequestTemplate
+{
+	private final static String[] METHODS = { "GET", "POST", "PUT", "DELETE" };
+
+	/** Largest body (bytes) */
+	public final static int MAX_BODY = 256 * 1024 * 1024;
+
+	private final static Pattern BODY = Pattern.compile(
+		"text\\s(.*)|size\\s+([0-9]{1,9})|file\\s+(.+)|base64(|\\s.*)",
+		Pattern.DOTALL);
+	private final static Pattern HEADER = Pattern.compile(
+		"([A-Za-z0-9-]+)\\s*:\\s*(.*)");
+	private final static String BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	private final static String FILLER =
+		"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789\r\n";
+
+	private String method, contentType;
+	private byte[] body;
+	private volatile String[] headers = new String[0];
+
+	/** Body for the NIO engine, created when first needed */
+	private volatile ByteBuffer bodyBuffer;
+
+	/**
+	 * @param method Method: GET, POST, PUT or DELETE
+	 * @param contentType Content type of body, or null if none
+	 * @param body Body description (see above), or null if none
+	 * @throws IllegalArgumentException If any parameter is not valid
+	 */
+	public RequestTemplate(String method, String contentType, String body)
+		throws IllegalArgumentException
+	{
+		boolean found = false;
+		for(String known : METHODS)
+		{
+			found |= known.equals(method);
+		}
+		if(!found)
+		{
+			throw new IllegalArgumentException("Unknown method: " + method);
+		}
+		this.method = method;
+		if(body != null)
+		{
+			if(!method.equals("POST") && !method.equals("PUT"))
+			{
+				throw new IllegalArgumentException(method + " cannot have a body");
+			}
+			if(contentType == null || !contentType.matches("[^\\s]+/[^\\s]+"))
+			{
+				throw new IllegalArgumentException("Invalid content type: " +
+					contentType);
+			}
+			this.contentType = contentType;
+			this.body = parseBody(body);
+		}
+	}
+
+	/**
+	 * @param body Body description
+	 * @return Body data
+	 * @throws IllegalArgumentException If the description is not valid or the
+	 *   file cannot be read
+	 */
+	private static byte[] parseBody(String body) throws IllegalArgumentException
+	{
+		Matcher m = BODY.matcher(body);
+		if(!m.matches())
+		{
+			throw new IllegalArgumentException("Invalid body: " + body);
+		}
+		if(m.group(1) != null)
+		{
+			try
+			{
+				return m.group(1).getBytes("UTF-8");
+			}
+			catch(UnsupportedEncodingException e)
+			{
+				throw new Error(e);
+			}
+		}
+		if(m.group(2) != null)
+		{
+			int size = Integer.parseInt(m.group(2));
+			if(size > MAX_BODY)
+			{
+				throw new IllegalArgumentException("Body too large: " + size);
+			}
+			byte[] data = new byte[size];
+			for(int i=0; i<size; i++)
+			{
+				data[i] = (byte)FILLER.charAt(i % FILLER.length());
+			}
+			return data;
+		}
+		if(m.group(4) != null)
+		{
+			return fromBase64(m.group(4).trim());
+		}
+
+		File file = new File(m.group(3).trim());
+		try
+		{
+			if(file.length() > MAX_BODY)
+			{
+				throw new IllegalArgumentException("Body too large: " + file);
+			}
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try
+			{
+				byte[] data = new byte[(int)file.length()];
+				in.readFully(data);
+				return data;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException("Cannot read body: " +
+				e.getMessage());
+		}
+	}
+
+	/**
+	 * Encodes data in base64, for a 'base64' body description.
+	 * @param data Data
+	 * @return Base64 text
+	 */
+	public static String toBase64(byte[] data)
+	{
+		StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+		for(int i=0; i<data.length; i+=3)
+		{
+			int bits = (data[i] & 0xff) << 16;
+			if(i + 1 < data.length)
+			{
+				bits |= (data[i + 1] & 0xff) << 8;
+			}
+			if(i + 2 < data.length)
+			{
+				bits |= data[i + 2] & 0xff;
+			}
+			out.append(BASE64.charAt(bits >> 18));
+			out.append(BASE64.charAt((bits >> 12) & 0x3f));
+			out.append(i + 1 < data.length
+				? BASE64.charAt((bits >> 6) & 0x3f) : '=');
+			out.append(i + 2 < data.length ? BASE64.charAt(bits & 0x3f) : '=');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param text Base64 text
+	 * @return Decoded data
+	 * @throws IllegalArgumentException If the text is not valid base64
+	 */
+	private static byte[] fromBase64(String text) throws IllegalArgumentException
+	{
+		int padding = text.endsWith("==") ? 2 : text.endsWith("=") ? 1 : 0;
+		if(text.length() % 4 != 0 || text.length() / 4 * 3L - padding > MAX_BODY)
+		{
+			throw new IllegalArgumentException("Invalid base64 body");
+		}
+		byte[] data = new byte[text.length() / 4 * 3 - padding];
+		int pos = 0;
+		for(int i=0; i<text.length(); i+=4)
+		{
+			int bits = 0;
+			for(int j=0; j<4; j++)
+			{
+				char c = text.charAt(i + j);
+				int value = BASE64.indexOf(c);
+				if(value == -1 && !(c == '=' && i + j >= text.length() - padding))
+				{
+					throw new IllegalArgumentException("Invalid base64 body");
+				}
+				bits = (bits << 6) | Math.max(value, 0);
+			}
+			for(int j=0; j<3 && pos < data.length; j++)
+			{
+				data[pos++] = (byte)(bits >> (16 - j * 8));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Adds a header to send with every request.
+	 * @param header Header line, e.g. 'X-Requested-With: XMLHttpRequest'
+	 * @throws IllegalArgumentException If the header is not valid, or is one
+	 *   that is set automatically (Host, Content-Length, Content-Type, Cookie)
+	 */
+	public synchronized void addHeader(String header)
+		throws IllegalArgumentException
+	{
+		Matcher m = HEADER.matcher(header);
+		if(!m.matches() || m.group(2).matches(".*[\r\n].*"))
+		{
+			throw new IllegalArgumentException("Invalid header: " + header);
+		}
+		String name = m.group(1);
+		for(String automatic : new String[] { "Host", "Content-Length",
+			"Content-Type", "Cookie", "Transfer-Encoding" })
+		{
+			if(automatic.equalsIgnoreCase(name))
+			{
+				throw new IllegalArgumentException("Header is set automatically: " +
+					name);
+			}
+		}
+		String[] newHeaders = new String[headers.length + 1];
+		System.arraycopy(headers, 0, newHeaders, 0, headers.length);
+		newHeaders[headers.length] = name + ": " + m.group(2).trim();
+		headers = newHeaders;
+	}
+
+	/**
+	 * @return Method
+	 */
+	public String getMethod()
+	{
+		return method;
+	}
+
+	/**
+	 * @return True if requests send a body (which may be empty); always true
+	 *   for POST and PUT
+	 */
+	public boolean hasBody()
+	{
+		return method.equals("POST") || method.equals("PUT");
+	}
+
+	/**
+	 * @return Content type of body, or null if none
+	 */
+	public String getContentType()
+	{
+		return contentType;
+	}
+
+	/**
+	 * @return Extra header lines (must not be changed)
+	 */
+	public String[] getHeaders()
+	{
+		return headers;
+	}
+
+	/**
+	 * @return Body data shared by all requests (must not be changed), or null
+	 *   if none
+	 */
+	public byte[] getBody()
+	{
+		return body;
+	}
+
+	/**
+	 * @return Length of body in bytes (0 if none)
+	 */
+	public int getBodyLength()
+	{
+		return body == null ? 0 : body.length;
+	}
+
+	/**
+	 * Gets the body for a request by the NIO engine. The data is held once,
+	 * outside the Java heap so that it can be written to sockets without
+	 * being copied; each request gets its own read-only view of it.
+	 * @return Body, with its own position, or null if none
+	 */
+	public ByteBuffer getBodyBuffer()
+	{
+		if(body == null)
+		{
+			return null;
+		}
+		ByteBuffer current = bodyBuffer;
+		if(current == null)
+		{
+			ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+			direct.put(body);
+			direct.flip();
+			current = direct.asReadOnlyBuffer();
+			bodyBuffer = current;
+		}
+		return current.duplicate();
+	}
+}
@@ -0,0 +1,971 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.regex.*;
+
+/**
+ * Checks a response as it arrives, without keeping the body. Once the result
+ * is known (for example, the text has been found) the rest of the body does
+ * not need to be checked.
+ * <p>
+ * Validators can be created from text:
+ * <ul>
+ * <li>status:200 or status:200-299 - status code must be in range</li>
+ * <li>length:1000 - body must be at least this many bytes</li>
+ * <li>literal:Finished OK - body must contain these bytes (UTF-8)</li>
+ * <li>anything else - regular expression which must be found in the body
+ *   (see {@link Regex} for how it is searched)</li>
+ * </ul>
+ * Except for status:, the status code must also be below 400.
+ */
+public abstract class ResponseValidator
+{
+	private final static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private final static Pattern CHARSET = Pattern.compile(
+		".*;\\s*charset=\"?([^\";]+)\"?.*", Pattern.CASE_INSENSITIVE);
+	private final static Pattern STATUS = Pattern.compile(
+		"([0-9]{3})(?:-([0-9]{3}))?");
+
+	/** Characters that have a special meaning in a regular expression */
+	private final static String REGEX_SPECIAL = "\\^$.|?*+()[]{}";
+
+	/**
+	 * Starts checking a response.
+	 * @param status HTTP status code
+	 * @param charset Character set of body
+	 * @return Check for this response
+	 */
+	public abstract Check start(int status, Charset charset);
+
+	/**
+	 * Checks a single response.
+	 */
+	public static abstract class Check
+	{
+		/**
+		 * Checks part of the body. Data is not kept after the call returns.
+		 * Should not be called once {@link #isComplete()} returns true.
+		 * @param data Buffer
+		 * @param offset Offset of data in buffer
+		 * @param length Length of data
+		 */
+		public abstract void update(byte[] data, int offset, int length);
+
+		/**
+		 * @return True if the result is already known, so no more of the body
+		 *   needs to be checked
+		 */
+		public abstract boolean isComplete();
+
+		/**
+		 * Called at the end of the body, or once the check is complete.
+		 * @return True if the response is valid
+		 */
+		public abstract boolean finish();
+
+		/**
+		 * Called when the check is no longer needed, whether or not the
+		 * response was complete, so that its buffers can be used for another
+		 * response. The check must not be used after this.
+		 */
+		public void release()
+		{
+		}
+	}
+
+	/**
+	 * Gets the character set from a Content-Type header.
+	 * @param contentType Header value (may be null)
+	 * @return Character set, or ISO-8859-1 if none or not known
+	 */
+	public static Charset getCharset(String contentType)
+	{
+		if(contentType != null)
+		{
+			Matcher m = CHARSET.matcher(contentType);
+			if(m.matches())
+			{
+				try
+				{
+					return Charset.forName(m.group(1));
+				}
+				catch(IllegalArgumentException e)
+				{
+					// Unknown charset, use default
+				}
+			}
+		}
+		return ISO_8859_1;
+	}
+
+	/**
+	 * Creates a validator from text.
+	 * @param text Validator description (see class description)
+	 * @return New validator
+	 * @throws IllegalArgumentException If the text is not valid
+	 * @throws PatternSyntaxException If a regular expression is not valid
+	 */
+	public static ResponseValidator parse(String text)
+		throws IllegalArgumentException, PatternSyntaxException
+	{
+		if(text.startsWith("status:"))
+		{
+			Matcher m = STATUS.matcher(text.substring(7));
+			if(!m.matches())
+			{
+				throw new IllegalArgumentException("Invalid status: " + text);
+			}
+			int min = Integer.parseInt(m.group(1));
+			return new Status(min, m.group(2) == null ? min :
+				Integer.parseInt(m.group(2)));
+		}
+		ResponseValidator body;
+		if(text.startsWith("length:"))
+		{
+			String length = text.substring(7);
+			if(!length.matches("[0-9]{1,9}"))
+			{
+				throw new IllegalArgumentException("Invalid length: " + text);
+			}
+			body = new MinLength(Integer.parseInt(length));
+		}
+		else if(text.startsWith("literal:"))
+		{
+			body = new Literal(getBytes(text.substring(8), "UTF-8"));
+		}
+		else
+		{
+			body = forPattern(Pattern.compile(text));
+		}
+		return new All(new Status(0, 399), body);
+	}
+
+	/**
+	 * Creates a validator that checks a regular expression is found in the
+	 * body. If the expression is plain ASCII text with no special characters,
+	 * the body is searched for its bytes without decoding.
+	 * @param pattern Regular expression
+	 * @return New validator
+	 */
+	public static ResponseValidator forPattern(Pattern pattern)
+	{
+		String text = pattern.pattern();
+		boolean literal = pattern.flags() == 0;
+		for(int i=0; literal && i<text.length(); i++)
+		{
+			char c = text.charAt(i);
+			literal = c >= 0x20 && c < 0x7f && REGEX_SPECIAL.indexOf(c) == -1;
+		}
+		if(literal)
+		{
+			return new Literal(getBytes(text, "ISO-8859-1"));
+		}
+		return new Regex(pattern);
+	}
+
+	/**
+	 * @param text Text
+	 * @param charset Name of a character set that every JVM supports
+	 * @return Encoded text
+	 */
+	private static byte[] getBytes(String text, String charset)
+	{
+		try
+		{
+			return text.getBytes(charset);
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Status code must be within a range.
+	 */
+	public static class Status extends ResponseValidator
+	{
+		private int min, max;
+
+		private Check valid = new Fixed(true), invalid = new Fixed(false);
+
+		/**
+		 * @param min Minimum status code
+		 * @param max Maximum status code
+		 */
+		public Status(int min, int max)
+		{
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public Check start(int status, Charset charset)
+		{
+			return (status >= min && status <= max) ? valid : invalid;
+		}
+	}
+
+	/**
+	 * Result known before any of the body. Has no state, so can be shared.
+	 */
+	private static class Fixed extends Check
+	{
+		private boolean result;
+
+		private Fixed(boolean result)
+		{
+			this.result = result;
+		}
+
+		@Override
+		public void update(byte[] data, int offset, int length)
+		{
+		}
+
+		@Override
+		public boolean isComplete()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean finish()
+		{
+			return result;
+		}
+	}
+
+	/**
+	 * Body must be at least a given number of bytes.
+	 */
+	public static class MinLength extends ResponseValidator
+	{
+		private int min;
+
+		/**
+		 * @param min Minimum length in bytes
+		 */
+		public MinLength(int min)
+		{
+			this.min = min;
+		}
+
+		@Override
+		public Check start(int status, Charset charset)
+		{
+			return new Check()
+			{
+				private long length;
+
+				@Override
+				public void update(byte[] data, int offset, int length)
+				{
+					this.length += length;
+				}
+
+				@Override
+				public boolean isComplete()
+				{
+					return length >= min;
+				}
+
+				@Override
+				public boolean finish()
+				{
+					return length >= min;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Body must contain a sequence of bytes. Uses Knuth-Morris-Pratt search,
+	 * so each byte of the body is looked at once.
+	 */
+	public static class Literal extends ResponseValidator
+	{
+		private byte[] bytes;
+		private int[] fallback;
+
+		/**
+		 * @param bytes Bytes to find
+		 */
+		public Literal(byte[] bytes)
+		{
+			this.bytes = bytes;
+			// fallback[i] = length of longest proper prefix of bytes[0..i] that
+			// is also a suffix of it
+			fallback = new int[bytes.length];
+			int k = 0;
+			for(int i=1; i<bytes.length; i++)
+			{
+				while(k > 0 && bytes[i] != bytes[k])
+				{
+					k = fallback[k - 1];
+				}
+				if(bytes[i] == bytes[k])
+				{
+					k++;
+				}
+				fallback[i] = k;
+			}
+		}
+
+		@Override
+		public Check start(int status, Charset charset)
+		{
+			return new Check()
+			{
+				/** Number of bytes matched so far */
+				private int matched;
+
+				@Override
+				public void update(byte[] data, int offset, int length)
+				{
+					int j = matched;
+					for(int i=offset, end=offset+length; i<end && j<bytes.length; i++)
+					{
+						byte b = data[i];
+						while(j > 0 && bytes[j] != b)
+						{
+							j = fallback[j - 1];
+						}
+						if(bytes[j] == b)
+						{
+							j++;
+						}
+					}
+					matched = j;
+				}
+
+				@Override
+				public boolean isComplete()
+				{
+					return matched == bytes.length;
+				}
+
+				@Override
+				public boolean finish()
+				{
+					return matched == bytes.length;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Regular expression must be found in the body. If the longest text the
+	 * expression can match (including any lookahead or lookbehind) is no more
+	 * than {@link #OVERLAP} characters, the body is decoded into a fixed-size
+	 * window and searched as it arrives. Otherwise, for example with '.*' or
+	 * a back-reference, the whole body is kept and searched at the end.
+	 * <p>
+	 * Checks (with their window and decoder) are kept in a pool when released
+	 * and reused for later responses, so a request does not allocate them.
+	 */
+	public static class Regex extends ResponseValidator
+	{
+		private final static int WINDOW = 16384;
+
+		/** Largest number of released checks kept for reuse */
+		private final static int MAX_FREE_CHECKS = 256;
+
+		/** Characters kept from the end of the window when it is full */
+		public final static int OVERLAP = 4096;
+
+		/** Length returned by {@link #maxLength(Pattern)} if there is no limit */
+		private final static long UNBOUNDED = -1;
+		/** Longest length worked out; anything longer counts as unbounded */
+		private final static long MAX_LENGTH = 1L << 30;
+
+		private final static Pattern REPEAT = Pattern.compile(
+			"\\{([0-9]{1,9})(,([0-9]{1,9})?)?\\}");
+		private final static Pattern FLAGS = Pattern.compile(
+			"([a-zA-Z]*(?:-[a-zA-Z]*)?)([:)])");
+
+		private Pattern pattern;
+		/** True if the whole body is kept and searched at the end */
+		private boolean whole;
+		private RingQueue<RegexCheck> free =
+			new RingQueue<RegexCheck>(MAX_FREE_CHECKS);
+
+		/**
+		 * @param pattern Regular expression
+		 */
+		public Regex(Pattern pattern)
+		{
+			this.pattern = pattern;
+			long length = maxLength(pattern);
+			whole = length == UNBOUNDED || length > OVERLAP;
+		}
+
+		/**
+		 * Works out the longest text a pattern can match, including text that
+		 * lookahead and lookbehind examine. Each character in the pattern
+		 * counts as two, in case it matches a surrogate pair. Anything not
+		 * understood counts as unbounded.
+		 * @param pattern Pattern
+		 * @return Largest number of characters, or UNBOUNDED
+		 */
+		static long maxLength(Pattern pattern)
+		{
+			if((pattern.flags() & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0)
+			{
+				return UNBOUNDED;
+			}
+			String regex = pattern.pattern();
+			if((pattern.flags() & Pattern.LITERAL) != 0)
+			{
+				return regex.length() * 2L;
+			}
+			int[] pos = { 0 };
+			long length = alternatives(regex, pos);
+			return pos[0] == regex.length() ? length : UNBOUNDED;
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position, updated to the end of the last alternative
+		 * @return Longest of the alternatives, or UNBOUNDED
+		 */
+		private static long alternatives(String regex, int[] pos)
+		{
+			long max = 0;
+			while(true)
+			{
+				long length = sequence(regex, pos);
+				if(length == UNBOUNDED)
+				{
+					return UNBOUNDED;
+				}
+				max = Math.max(max, length);
+				if(pos[0] < regex.length() && regex.charAt(pos[0]) == '|')
+				{
+					pos[0]++;
+				}
+				else
+				{
+					return max;
+				}
+			}
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position, updated to the end of the sequence
+		 * @return Longest match of the sequence, or UNBOUNDED
+		 */
+		private static long sequence(String regex, int[] pos)
+		{
+			long total = 0;
+			while(pos[0] < regex.length() && regex.charAt(pos[0]) != '|' &&
+				regex.charAt(pos[0]) != ')')
+			{
+				long length = atom(regex, pos);
+				if(length == UNBOUNDED)
+				{
+					return UNBOUNDED;
+				}
+				long repeat = quantifier(regex, pos);
+				if(repeat == UNBOUNDED)
+				{
+					if(length > 0)
+					{
+						return UNBOUNDED;
+					}
+				}
+				else
+				{
+					total += length * repeat;
+				}
+				if(total > MAX_LENGTH)
+				{
+					return UNBOUNDED;
+				}
+			}
+			return total;
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position, updated to after the atom
+		 * @return Longest match of the atom, or UNBOUNDED
+		 */
+		private static long atom(String regex, int[] pos)
+		{
+			char c = regex.charAt(pos[0]++);
+			if(c == '\\')
+			{
+				return escape(regex, pos);
+			}
+			if(c == '[')
+			{
+				return skipClass(regex, pos) ? 2 : UNBOUNDED;
+			}
+			if(c == '(')
+			{
+				return group(regex, pos);
+			}
+			if(c == '^' || c == '$')
+			{
+				return 0;
+			}
+			if(Character.isHighSurrogate(c) && pos[0] < regex.length() &&
+				Character.isLowSurrogate(regex.charAt(pos[0])))
+			{
+				pos[0]++;
+			}
+			return 2;
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position after the backslash, updated to after the escape
+		 * @return Longest match of the escape, or UNBOUNDED
+		 */
+		private static long escape(String regex, int[] pos)
+		{
+			if(pos[0] >= regex.length())
+			{
+				return UNBOUNDED;
+			}
+			char c = regex.charAt(pos[0]++);
+			if(c == 'Q')
+			{
+				int end = regex.indexOf("\\E", pos[0]);
+				if(end == -1)
+				{
+					end = regex.length();
+				}
+				long length = (end - pos[0]) * 2L;
+				pos[0] = Math.min(end + 2, regex.length());
+				return length;
+			}
+			if("bBAzZG".indexOf(c) != -1)
+			{
+				return 0;
+			}
+			if((c >= '1' && c <= '9') || c == 'k' || c == 'X')
+			{
+				// Back-reference or grapheme cluster
+				return UNBOUNDED;
+			}
+			if((c == 'p' || c == 'P' || c == 'x' || c == 'N') &&
+				pos[0] < regex.length() && regex.charAt(pos[0]) == '{')
+			{
+				int end = regex.indexOf('}', pos[0]);
+				if(end == -1)
+				{
+					return UNBOUNDED;
+				}
+				pos[0] = end + 1;
+			}
+			else if(c == 'p' || c == 'P' || c == 'c')
+			{
+				pos[0]++;
+			}
+			else if(c == 'x')
+			{
+				pos[0] += 2;
+			}
+			else if(c == 'u')
+			{
+				pos[0] += 4;
+			}
+			else if(c == '0')
+			{
+				for(int i=0; i<3 && pos[0] < regex.length() &&
+					regex.charAt(pos[0]) >= '0' && regex.charAt(pos[0]) <= '7'; i++)
+				{
+					pos[0]++;
+				}
+			}
+			pos[0] = Math.min(pos[0], regex.length());
+			// \R can match \r\n; other escapes match a character
+			return 2;
+		}
+
+		/**
+		 * Moves past a character class.
+		 * @param regex Expression
+		 * @param pos Position after the '[', updated to after the ']'
+		 * @return True if the class was understood
+		 */
+		private static boolean skipClass(String regex, int[] pos)
+		{
+			int depth = 1;
+			boolean start = true;
+			while(pos[0] < regex.length())
+			{
+				char c = regex.charAt(pos[0]++);
+				if(start && c == '^')
+				{
+					continue;
+				}
+				if(start && c == ']')
+				{
+					// ']' at the start of a class is literal
+					start = false;
+					continue;
+				}
+				start = false;
+				if(c == '\\')
+				{
+					if(regex.startsWith("Q", pos[0]))
+					{
+						return false;
+					}
+					pos[0]++;
+				}
+				else if(c == '[')
+				{
+					depth++;
+					start = true;
+				}
+				else if(c == ']' && --depth == 0)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position after the '(', updated to after the ')'
+		 * @return Longest match of the group, or UNBOUNDED
+		 */
+		private static long group(String regex, int[] pos)
+		{
+			if(regex.startsWith("?", pos[0]))
+			{
+				pos[0]++;
+				if(regex.startsWith("<=", pos[0]) || regex.startsWith("<!", pos[0]))
+				{
+					pos[0] += 2;
+				}
+				else if(regex.startsWith("<", pos[0]))
+				{
+					// Named group
+					int end = regex.indexOf('>', pos[0]);
+					if(end == -1)
+					{
+						return UNBOUNDED;
+					}
+					pos[0] = end + 1;
+				}
+				else if(pos[0] < regex.length() &&
+					":=!>".indexOf(regex.charAt(pos[0])) != -1)
+				{
+					pos[0]++;
+				}
+				else
+				{
+					// Flags for the rest of the enclosing group, or for this group
+					Matcher flags = FLAGS.matcher(regex);
+					flags.region(pos[0], regex.length());
+					if(!flags.lookingAt() || flags.group(1).indexOf('x') != -1)
+					{
+						return UNBOUNDED;
+					}
+					pos[0] = flags.end();
+					if(flags.group(2).equals(")"))
+					{
+						return 0;
+					}
+				}
+			}
+			long length = alternatives(regex, pos);
+			if(length == UNBOUNDED || pos[0] >= regex.length())
+			{
+				return UNBOUNDED;
+			}
+			pos[0]++;
+			return length;
+		}
+
+		/**
+		 * @param regex Expression
+		 * @param pos Position after an atom, updated to after any quantifier
+		 * @return Most repeats of the atom, or UNBOUNDED
+		 */
+		private static long quantifier(String regex, int[] pos)
+		{
+			if(pos[0] >= regex.length())
+			{
+				return 1;
+			}
+			char c = regex.charAt(pos[0]);
+			long repeat;
+			if(c == '?')
+			{
+				repeat = 1;
+				pos[0]++;
+			}
+			else if(c == '*' || c == '+')
+			{
+				repeat = UNBOUNDED;
+				pos[0]++;
+			}
+			else if(c == '{')
+			{
+				Matcher m = REPEAT.matcher(regex);
+				m.region(pos[0], regex.length());
+				if(!m.lookingAt())
+				{
+					return UNBOUNDED;
+				}
+				pos[0] = m.end();
+				repeat = m.group(2) == null ? Long.parseLong(m.group(1))
+					: m.group(3) == null ? UNBOUNDED : Long.parseLong(m.group(3));
+			}
+			else
+			{
+				return 1;
+			}
+			// Lazy or possessive
+			if(pos[0] < regex.length() &&
+				(regex.charAt(pos[0]) == '?' || regex.charAt(pos[0]) == '+'))
+			{
+				pos[0]++;
+			}
+			return repeat;
+		}
+
+		@Override
+		public Check start(int status, Charset charset)
+		{
+			RegexCheck check = free.poll();
+			if(check == null)
+			{
+				check = new RegexCheck();
+			}
+			check.reset(charset);
+			return check;
+		}
+
+		/**
+		 * Check for one response; reused once released.
+		 */
+		private class RegexCheck extends Check
+		{
+			private CharsetDecoder decoder;
+			private char[] chars = new char[WINDOW];
+			private CharBuffer out = CharBuffer.wrap(chars);
+			/** Bytes of a character split between calls */
+			private ByteBuffer partial = ByteBuffer.allocate(16);
+			private int searched;
+			private boolean found, released;
+
+			/**
+			 * Prepares the check for a new response.
+			 * @param charset Character set of body
+			 */
+			private void reset(Charset charset)
+			{
+				if(decoder == null || !decoder.charset().equals(charset))
+				{
+					decoder = charset.newDecoder().onMalformedInput(
+						CodingErrorAction.REPLACE).onUnmappableCharacter(
+						CodingErrorAction.REPLACE);
+				}
+				else
+				{
+					decoder.reset();
+				}
+				out.clear();
+				partial.clear();
+				searched = 0;
+				found = false;
+				released = false;
+			}
+
+			@Override
+			public void update(byte[] data, int offset, int length)
+			{
+				ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+				while(partial.position() > 0 && in.hasRemaining() && !found)
+				{
+					// Add bytes one at a time until the character is complete
+					partial.put(in.get());
+					partial.flip();
+					decode(partial, false);
+					partial.compact();
+				}
+				decode(in, false);
+				if(!found)
+				{
+					partial.put(in);
+					if(!whole)
+					{
+						search(false);
+					}
+				}
+			}
+
+			private void decode(ByteBuffer in, boolean end)
+			{
+				while(!found && decoder.decode(in, out, end).isOverflow())
+				{
+					if(whole)
+					{
+						// Keep all the text, to search at the end
+						char[] grown = new char[chars.length * 2];
+						System.arraycopy(chars, 0, grown, 0, out.position());
+						int position = out.position();
+						chars = grown;
+						out = CharBuffer.wrap(chars);
+						out.position(position);
+						continue;
+					}
+					search(false);
+					if(!found)
+					{
+						// Keep the end of the window in case a match spans it
+						int keep = Math.min(OVERLAP, out.position());
+						System.arraycopy(chars, out.position() - keep, chars, 0, keep);
+						out.position(keep);
+						searched = keep;
+					}
+				}
+			}
+
+			/**
+			 * Searches the text in the window.
+			 * @param last True if this is the end of the body
+			 */
+			private void search(boolean last)
+			{
+				int end = out.position();
+				Matcher m = pattern.matcher(CharBuffer.wrap(chars, 0, end));
+				m.useTransparentBounds(true);
+				m.useAnchoringBounds(false);
+				m.region(Math.max(0, searched - OVERLAP), end);
+				// A match that reached the end of the text so far (e.g. 'foo\b' or
+				// 'foo(?!bar)') might not match once more text arrives, so it only
+				// counts at the end of the body
+				found = m.find() && (last || !m.hitEnd());
+				searched = end;
+			}
+
+			@Override
+			public boolean isComplete()
+			{
+				return found;
+			}
+
+			@Override
+			public boolean finish()
+			{
+				if(!found)
+				{
+					partial.flip();
+					decode(partial, true);
+					if(!found)
+					{
+						search(true);
+					}
+				}
+				return found;
+			}
+
+			@Override
+			public void release()
+			{
+				if(!released)
+				{
+					released = true;
+					if(chars.length > WINDOW)
+					{
+						// Do not keep a large body's buffer in the pool
+						chars = new char[WINDOW];
+						out = CharBuffer.wrap(chars);
+					}
+					free.offer(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * All of several validators must pass.
+	 */
+	public static class All extends ResponseValidator
+	{
+		private ResponseValidator[] validators;
+
+		/**
+		 * @param validators Validators
+		 */
+		public All(ResponseValidator... validators)
+		{
+			this.validators = validators;
+		}
+
+		@Override
+		public Check start(int status, Charset charset)
+		{
+			final Check[] checks = new Check[validators.length];
+			for(int i=0; i<checks.length; i++)
+			{
+				checks[i] = validators[i].start(status, charset);
+			}
+			return new Check()
+			{
+				@Override
+				public void update(byte[] data, int offset, int length)
+				{
+					for(Check check : checks)
+					{
+						if(!check.isComplete())
+						{
+							check.update(data, offset, length);
+						}
+					}
+				}
+
+				@Override
+				public boolean isComplete()
+				{
+					boolean complete = true;
+					for(Check check : checks)
+					{
+						if(!check.isComplete())
+						{
+							complete = false;
+						}
+						else if(!check.finish())
+						{
+							// Failed already, so no need to check the rest
+							return true;
+						}
+					}
+					return complete;
+				}
+
+				@Override
+				public boolean finish()
+				{
+					boolean valid = true;
+					for(Check check : checks)
+					{
+						valid &= check.finish();
+					}
+					return valid;
+				}
+
+				@Override
+				public void release()
+				{
+					for(Check check : checks)
+					{
+						check.release();
+					}
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,357 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of every result in a binary file, for looking at a long run
+ * afterwards (see {@link ResultLogReader}).
+ * <p>
+ * Threads that finish tasks copy each result into a record from a pool and
+ * pass it through a queue to a single writer thread, which copies it into a
+ * memory-mapped part of the file. Neither side locks or makes a system call
+ * for each record; the writer maps a new part of the file every
+ * {@link #CHUNK_SIZE} bytes. If the writer falls so far behind that the pool
+ * is empty, results are not logged and are counted as lost, as are results
+ * added once the log is closing.
+ * <p>
+ * The file is a header of {@link #HEADER_SIZE} bytes followed by records of
+ * {@link #RECORD_SIZE} bytes, all big-endian:
+ * <pre>
+ * Header
+ *  0 int    magic number ({@link #MAGIC})
+ *  4 int    record size
+ *  8 long   time log was opened (System.currentTimeMillis())
+ * 16 long   number of records, or 0 if the log was not closed
+ * 24 long   number of results lost
+ *
+ * Record
+ *  0 int    task index
+ *  4 byte   outcome (OUTCOME_xx constant; 0 marks the end of the log)
+ *  5 byte   unused
+ *  6 short  HTTP status code, or -1 if not known
+ *  8 long   scheduled time (nanoseconds since log was opened)
+ * 16 long   start delay (nanoseconds from scheduled time to actual start)
+ * 24 long   service time (nanoseconds from actual start to finish)
+ * 32 long   bytes in response body, or -1 if not known
+ * 40 int[5] phase times (microseconds, or -1; see TaskResult.PHASE_xx)
+ * 60 int    unused
+ * </pre>
+ */
+public class ResultLog implements ThreadHandler.ResultReporter
+{
+	/** Magic number at the start of the file ('LTR1') */
+	public final static int MAGIC = 0x4c545231;
+
+	/** Size of file header in bytes */
+	public final static int HEADER_SIZE = 64;
+
+	/** Size of each record in bytes */
+	public final static int RECORD_SIZE = 64;
+
+	/** Outcome: task was not attempted */
+	public final static int OUTCOME_DROPPED = 1;
+	/** Outcome: task succeeded */
+	public final static int OUTCOME_SUCCESS = 2;
+	/** Outcome: task failed */
+	public final static int OUTCOME_FAILURE = 3;
+
+	/** Size of each mapped part of the file in bytes */
+	final static int CHUNK_SIZE = 64 * 1024 * 1024;
+
+	/** Number of records that can wait for the writer */
+	private final static int POOL_SIZE = 65536;
+
+	/** Time the writer sleeps when it has nothing to do, in nanoseconds */
+	private final static long IDLE_NANOS = 1000000L;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer header, chunk;
+	private long chunkStart;
+
+	private long startTime, startNanos;
+	private RingQueue<Record> free, filled;
+	private AtomicLong lost = new AtomicLong();
+	/** Number of calls to completed that are adding a record now */
+	private AtomicInteger adding = new AtomicInteger();
+	private long written;
+
+	private Thread writer;
+	private volatile boolean closing;
+	private IOException error;
+
+	/**
+	 * A result waiting for the writer.
+	 */
+	private static class Record
+	{
+		private int index, outcome, status;
+		private long scheduled, delay, service, bytes;
+		private int[] phases = new int[TaskResult.PHASES];
+	}
+
+	/**
+	 * Creates the file (replacing any existing file) and starts the writer.
+	 * @param file File
+	 * @throws IOException If the file cannot be created
+	 */
+	public ResultLog(File file) throws IOException
+	{
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(0);
+			channel = raf.getChannel();
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			chunkStart = HEADER_SIZE;
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart,
+				CHUNK_SIZE);
+		}
+		catch(IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+
+		startTime = System.currentTimeMillis();
+		startNanos = System.nanoTime();
+		header.putInt(0, MAGIC);
+		header.putInt(4, RECORD_SIZE);
+		header.putLong(8, startTime);
+
+		free = new RingQueue<Record>(POOL_SIZE);
+		filled = new RingQueue<Record>(POOL_SIZE);
+		for(int i=0; i<POOL_SIZE; i++)
+		{
+			free.offer(new Record());
+		}
+
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				write();
+			}
+		}, "Result log writer");
+		writer.start();
+	}
+
+	/**
+	 * @return File being written
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Adds a result to the log. Can be called from any thread.
+	 * @param result Result
+	 */
+	@Override
+	public void completed(TaskResult result)
+	{
+		adding.incrementAndGet();
+		try
+		{
+			add(result);
+		}
+		finally
+		{
+			adding.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param result Result to pass to the writer
+	 */
+	private void add(TaskResult result)
+	{
+		// Checked after adding is increased, so either the writer waits for
+		// this record or the result is counted here
+		Record record = closing ? null : free.poll();
+		if(record == null)
+		{
+			lost.incrementAndGet();
+			return;
+		}
+		record.index = result.getIndex();
+		record.outcome = !result.isAttempted() ? OUTCOME_DROPPED
+			: result.isSuccess() ? OUTCOME_SUCCESS : OUTCOME_FAILURE;
+		record.status = result.getStatus();
+		record.scheduled = result.getScheduledTime() - startNanos;
+		record.delay = result.getStartDelayNanos();
+		record.service = result.getServiceNanos();
+		record.bytes = result.getBytes();
+		for(int i=0; i<TaskResult.PHASES; i++)
+		{
+			record.phases[i] = (int)Math.min(result.getPhaseMicros(i),
+				Integer.MAX_VALUE);
+		}
+		// Cannot fail, since there are only as many records as filled can hold
+		filled.offer(record);
+	}
+
+	@Override
+	public void succeeded(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void failed(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	/**
+	 * Writer thread: copies records into the file until closed.
+	 */
+	private void write()
+	{
+		try
+		{
+			while(true)
+			{
+				Record record = filled.poll();
+				if(record == null)
+				{
+					if(closing && adding.get() == 0)
+					{
+						// Nothing can be added now, so stop once the rest are written
+						record = filled.poll();
+						if(record == null)
+						{
+							return;
+						}
+					}
+					else
+					{
+						LockSupport.parkNanos(IDLE_NANOS);
+						continue;
+					}
+				}
+
+				if(chunk.remaining() < RECORD_SIZE)
+				{
+					chunkStart += chunk.position();
+					chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkStart,
+						CHUNK_SIZE);
+				}
+				chunk.putInt(record.index);
+				chunk.put((byte)record.outcome);
+				chunk.put((byte)0);
+				chunk.putShort((short)record.status);
+				chunk.putLong(record.scheduled);
+				chunk.putLong(record.delay);
+				chunk.putLong(record.service);
+				chunk.putLong(record.bytes);
+				for(int i=0; i<TaskResult.PHASES; i++)
+				{
+					chunk.putInt(record.phases[i]);
+				}
+				chunk.putInt(0);
+				written++;
+				free.offer(record);
+			}
+		}
+		catch(IOException e)
+		{
+			synchronized(this)
+			{
+				error = e;
+			}
+			// Stop taking results so that they are counted as lost
+			while(free.poll() != null)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Writes the remaining records, completes the header, and closes the file.
+	 * Results added after this are lost.
+	 * @throws IOException If there was an error writing the file
+	 */
+	public void close() throws IOException
+	{
+		closing = true;
+		while(true)
+		{
+			try
+			{
+				writer.join();
+				break;
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+		// If the writer failed, records it did not write are lost
+		while(adding.get() > 0)
+		{
+			Thread.yield();
+		}
+		while(filled.poll() != null)
+		{
+			lost.incrementAndGet();
+		}
+
+		IOException e;
+		synchronized(this)
+		{
+			e = error;
+		}
+		try
+		{
+			header.putLong(16, written);
+			header.putLong(24, lost.get());
+			header.force();
+			chunk.force();
+			if(e == null)
+			{
+				try
+				{
+					channel.truncate(HEADER_SIZE + written * RECORD_SIZE);
+				}
+				catch(IOException truncateError)
+				{
+					// Some systems do not allow this while the file is mapped; the
+					// header has the number of records, so it does not matter
+				}
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+		if(e != null)
+		{
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Number of records written (only up to date once closed)
+	 */
+	public long getWritten()
+	{
+		return written;
+	}
+
+	/**
+	 * @return Number of results that were not logged because the writer was
+	 *   too far behind
+	 */
+	public long getLost()
+	{
+		return lost.get();
+	}
+}
@@ -0,0 +1,333 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Reads a file written by {@link ResultLog}, one record at a time, so that
+ * logs of any size can be read without holding them in memory.
+ * <p>
+ * The file is mapped a part at a time. Logs that were not closed (for
+ * example, if the test was killed) can be read up to the last complete
+ * record.
+ * <p>
+ * Run from the command line, this prints the statistics for a log, or all
+ * its records as CSV.
+ */
+public class ResultLogReader
+{
+	private final static String CONSOLE_TAG = "leafdigital ResultLogReader: ";
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer chunk;
+	private long chunkStart, fileSize;
+
+	private long startTime, count, lost, read;
+
+	private int index, outcome, status;
+	private long scheduled, delay, service, bytes;
+	private int[] phases = new int[TaskResult.PHASES];
+
+	/**
+	 * Opens a log.
+	 * @param file File
+	 * @throws IOException If the file cannot be read or is not a result log
+	 */
+	public ResultLogReader(File file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "r");
+		try
+		{
+			channel = raf.getChannel();
+			fileSize = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(ResultLog.HEADER_SIZE);
+			while(header.hasRemaining())
+			{
+				if(channel.read(header, header.position()) == -1)
+				{
+					throw new IOException("Not a result log: " + file);
+				}
+			}
+			if(header.getInt(0) != ResultLog.MAGIC ||
+				header.getInt(4) != ResultLog.RECORD_SIZE)
+			{
+				throw new IOException("Not a result log: " + file);
+			}
+			startTime = header.getLong(8);
+			count = header.getLong(16);
+			lost = header.getLong(24);
+			if(count == 0)
+			{
+				// Not closed, so read until the records stop
+				count = (fileSize - ResultLog.HEADER_SIZE) / ResultLog.RECORD_SIZE;
+			}
+			chunkStart = ResultLog.HEADER_SIZE;
+		}
+		catch(IOException e)
+		{
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Time the log was opened (System.currentTimeMillis())
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	/**
+	 * @return Number of results that were not logged
+	 */
+	public long getLost()
+	{
+		return lost;
+	}
+
+	/**
+	 * Moves to the next record.
+	 * @return True if there is a record, false at the end of the log
+	 * @throws IOException If there is an error reading the file
+	 */
+	public boolean next() throws IOException
+	{
+		if(read >= count)
+		{
+			return false;
+		}
+		if(chunk == null || chunk.remaining() < ResultLog.RECORD_SIZE)
+		{
+			if(chunk != null)
+			{
+				chunkStart += chunk.position();
+			}
+			long size = Math.min(ResultLog.CHUNK_SIZE, fileSize - chunkStart);
+			if(size < ResultLog.RECORD_SIZE)
+			{
+				count = read;
+				return false;
+			}
+			chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, size);
+		}
+
+		index = chunk.getInt();
+		outcome = chunk.get();
+		chunk.get();
+		status = chunk.getShort();
+		scheduled = chunk.getLong();
+		delay = chunk.getLong();
+		service = chunk.getLong();
+		bytes = chunk.getLong();
+		for(int i=0; i<TaskResult.PHASES; i++)
+		{
+			phases[i] = chunk.getInt();
+		}
+		chunk.getInt();
+		if(outcome == 0)
+		{
+			// Rest of a log that was not closed
+			count = read;
+			return false;
+		}
+		read++;
+		return true;
+	}
+
+	/**
+	 * @return Task index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return Outcome (ResultLog.OUTCOME_xx constant)
+	 */
+	public int getOutcome()
+	{
+		return outcome;
+	}
+
+	/**
+	 * @return HTTP status code, or -1 if not known
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return Scheduled time in nanoseconds since the log was opened
+	 */
+	public long getScheduledNanos()
+	{
+		return scheduled;
+	}
+
+	/**
+	 * @return Nanoseconds between scheduled time and actual start
+	 */
+	public long getStartDelayNanos()
+	{
+		return delay;
+	}
+
+	/**
+	 * @return Nanoseconds from actual start to finish
+	 */
+	public long getServiceNanos()
+	{
+		return service;
+	}
+
+	/**
+	 * @return Bytes in response body, or -1 if not known
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @param phase Phase (TaskResult.PHASE_xx constant)
+	 * @return Time taken by phase in microseconds, or -1 if not measured
+	 */
+	public int getPhaseMicros(int phase)
+	{
+		return phases[phase];
+	}
+
+	/**
+	 * Gets the current record as a result, for example to add it to
+	 * {@link ResultStatistics}. Scheduled times are relative to the start of
+	 * the log rather than System.nanoTime().
+	 * @param result Result to fill in if the task was attempted
+	 * @return The given result, or a new one if the task was not attempted
+	 */
+	public TaskResult getResult(TaskResult result)
+	{
+		if(outcome == ResultLog.OUTCOME_DROPPED)
+		{
+			return new TaskResult(index, scheduled, scheduled + delay);
+		}
+		result.set(index, scheduled, scheduled + delay,
+			scheduled + delay + service, outcome == ResultLog.OUTCOME_SUCCESS, -1);
+		result.clearPhases();
+		for(int i=0; i<TaskResult.PHASES; i++)
+		{
+			if(phases[i] != -1)
+			{
+				result.setPhase(i, phases[i] * 1000L);
+			}
+		}
+		result.setResponse(status, bytes);
+		return result;
+	}
+
+	/**
+	 * Closes the file.
+	 * @throws IOException If there is an error closing it
+	 */
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+
+	/**
+	 * Writes the current record as a line of CSV.
+	 * @param out Output
+	 */
+	private void writeCsv(PrintWriter out)
+	{
+		StringBuilder line = new StringBuilder();
+		line.append(index).append(',');
+		line.append(outcome == ResultLog.OUTCOME_SUCCESS ? "success"
+			: outcome == ResultLog.OUTCOME_FAILURE ? "failure" : "dropped");
+		line.append(',').append(status);
+		line.append(',').append(String.format(Locale.US, "%.3f,%.3f,%.3f",
+			scheduled / 1000000.0, delay / 1000000.0, service / 1000000.0));
+		line.append(',').append(bytes);
+		for(int i=0; i<TaskResult.PHASES; i++)
+		{
+			line.append(',').append(phases[i]);
+		}
+		out.println(line);
+	}
+
+	/**
+	 * Prints a summary of a log, or its records as CSV.
+	 * @param args Log file, optionally followed by 'csv'
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length < 1 || args.length > 2 ||
+			(args.length == 2 && !args[1].equals("csv")))
+		{
+			System.err.println("Usage: java " + ResultLogReader.class.getName() +
+				" <log file> [csv]");
+			System.exit(1);
+		}
+		boolean csv = args.length == 2;
+
+		try
+		{
+			ResultLogReader reader = new ResultLogReader(new File(args[0]));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out,
+				"UTF-8"));
+			try
+			{
+				ResultStatistics statistics = new ResultStatistics();
+				TaskResult result = new TaskResult();
+				long last = 0;
+				if(csv)
+				{
+					StringBuilder line = new StringBuilder("index,outcome,status," +
+						"scheduled_ms,delay_ms,service_ms,bytes");
+					for(int i=0; i<TaskResult.PHASES; i++)
+					{
+						line.append(',').append(TaskResult.getPhaseName(i)).append("_us");
+					}
+					out.println(line);
+				}
+				while(reader.next())
+				{
+					if(csv)
+					{
+						reader.writeCsv(out);
+					}
+					else
+					{
+						statistics.completed(reader.getResult(result));
+						last = Math.max(last, reader.getScheduledNanos());
+					}
+				}
+				if(!csv)
+				{
+					out.println("Log started:   " + new java.util.Date(
+						reader.getStartTime()));
+					out.println("Records:       " + reader.read + " over " +
+						(last / 1000000L) + " ms");
+					out.println("Lost:          " + reader.getLost());
+					statistics.write(out);
+				}
+			}
+			finally
+			{
+				reader.close();
+				out.flush();
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println(CONSOLE_TAG + e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
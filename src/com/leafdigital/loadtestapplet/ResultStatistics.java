@@ -0,0 +1,365 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Collects summary statistics for task results: counts, and histograms of
+ * service and response time and of each phase of a request. Memory use is
+ * constant however many results are recorded.
+ * <p>
+ * Statistics can be sent to another process as deltas and merged there,
+ * for distributed tests.
+ */
+public class ResultStatistics implements ThreadHandler.ResultReporter
+{
+	private final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private final static String[] PERCENTILE_NAMES =
+		{ "p50", "p90", "p99", "p999" };
+	private final static String[] PHASE_TITLES =
+		{ "DNS", "Connect", "TLS", "First byte", "Transfer" };
+
+	private AtomicInteger successes = new AtomicInteger(),
+		failures = new AtomicInteger(), dropped = new AtomicInteger();
+	private LatencyHistogram serviceTimes = new LatencyHistogram(),
+		responseTimes = new LatencyHistogram();
+	private LatencyHistogram[] phaseTimes =
+		new LatencyHistogram[TaskResult.PHASES];
+	private AtomicLong allocatedBytes = new AtomicLong(),
+		allocationCount = new AtomicLong();
+
+	/**
+	 * Keeps track of the totals already sent by
+	 * {@link ResultStatistics#writeDelta(DataOutput, DeltaState)}.
+	 */
+	public static class DeltaState
+	{
+		private int successes, failures, dropped;
+		private long allocatedBytes, allocationCount;
+		private long[][] histograms = new long[2 + TaskResult.PHASES][];
+
+		/**
+		 * Constructs state for statistics from which nothing has been sent.
+		 */
+		public DeltaState()
+		{
+			for(int i=0; i<histograms.length; i++)
+			{
+				histograms[i] = LatencyHistogram.createDeltaState();
+			}
+		}
+	}
+
+	/**
+	 * Constructs empty statistics.
+	 */
+	public ResultStatistics()
+	{
+		for(int i=0; i<phaseTimes.length; i++)
+		{
+			phaseTimes[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public void succeeded(int taskIndex, int ms)
+	{
+		successes.incrementAndGet();
+		serviceTimes.record(ms * 1000L);
+		responseTimes.record(ms * 1000L);
+	}
+
+	@Override
+	public void failed(int taskIndex, int ms)
+	{
+		if(ms == -1)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		failures.incrementAndGet();
+		serviceTimes.record(ms * 1000L);
+		responseTimes.record(ms * 1000L);
+	}
+
+	@Override
+	public void completed(TaskResult result)
+	{
+		if(!result.isAttempted())
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		if(result.isSuccess())
+		{
+			successes.incrementAndGet();
+		}
+		else
+		{
+			failures.incrementAndGet();
+		}
+		serviceTimes.record(result.getServiceMicros());
+		responseTimes.record(result.getResponseMicros());
+		for(int i=0; i<phaseTimes.length; i++)
+		{
+			long micros = result.getPhaseMicros(i);
+			if(micros >= 0)
+			{
+				phaseTimes[i].record(micros);
+			}
+		}
+		long allocated = result.getAllocatedBytes();
+		if(allocated >= 0)
+		{
+			allocatedBytes.addAndGet(allocated);
+			allocationCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Clears all statistics.
+	 */
+	public void reset()
+	{
+		successes.set(0);
+		failures.set(0);
+		dropped.set(0);
+		serviceTimes.reset();
+		responseTimes.reset();
+		for(LatencyHistogram histogram : phaseTimes)
+		{
+			histogram.reset();
+		}
+		allocatedBytes.set(0);
+		allocationCount.set(0);
+	}
+
+	/**
+	 * Writes the changes since the last call with the same state, so that
+	 * another object can add them with {@link #readDelta(DataInput)}.
+	 * @param out Output
+	 * @param state State, used with these statistics only
+	 * @throws IOException If there is an error writing
+	 */
+	public void writeDelta(DataOutput out, DeltaState state) throws IOException
+	{
+		int now = successes.get();
+		out.writeInt(now - state.successes);
+		state.successes = now;
+		now = failures.get();
+		out.writeInt(now - state.failures);
+		state.failures = now;
+		now = dropped.get();
+		out.writeInt(now - state.dropped);
+		state.dropped = now;
+
+		long nowLong = allocatedBytes.get();
+		out.writeLong(nowLong - state.allocatedBytes);
+		state.allocatedBytes = nowLong;
+		nowLong = allocationCount.get();
+		out.writeLong(nowLong - state.allocationCount);
+		state.allocationCount = nowLong;
+
+		serviceTimes.writeDelta(out, state.histograms[0]);
+		responseTimes.writeDelta(out, state.histograms[1]);
+		for(int i=0; i<phaseTimes.length; i++)
+		{
+			phaseTimes[i].writeDelta(out, state.histograms[2 + i]);
+		}
+	}
+
+	/**
+	 * Adds changes written by {@link #writeDelta(DataOutput, DeltaState)}.
+	 * @param in Input
+	 * @throws IOException If there is an error reading or the data is invalid
+	 */
+	public void readDelta(DataInput in) throws IOException
+	{
+		successes.addAndGet(in.readInt());
+		failures.addAndGet(in.readInt());
+		dropped.addAndGet(in.readInt());
+		allocatedBytes.addAndGet(in.readLong());
+		allocationCount.addAndGet(in.readLong());
+		serviceTimes.readDelta(in);
+		responseTimes.readDelta(in);
+		for(LatencyHistogram histogram : phaseTimes)
+		{
+			histogram.readDelta(in);
+		}
+	}
+
+	/**
+	 * @return Number of tasks that succeeded
+	 */
+	public int getSuccesses()
+	{
+		return successes.get();
+	}
+
+	/**
+	 * @return Number of tasks that ran and failed
+	 */
+	public int getFailures()
+	{
+		return failures.get();
+	}
+
+	/**
+	 * @return Number of tasks that were not run
+	 */
+	public int getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return Total number of tasks, including those not run
+	 */
+	public int getCount()
+	{
+		return successes.get() + failures.get() + dropped.get();
+	}
+
+	/**
+	 * @return Percentage of all tasks that succeeded (100 if there are none)
+	 */
+	public double getSuccessRate()
+	{
+		int count = getCount();
+		return count == 0 ? 100.0 : successes.get() * 100.0 / count;
+	}
+
+	/**
+	 * @return Mean bytes allocated per request by the thread handling it, or
+	 *   -1 if not known
+	 */
+	public long getAllocatedPerRequest()
+	{
+		long count = allocationCount.get();
+		return count == 0 ? -1 : allocatedBytes.get() / count;
+	}
+
+	/**
+	 * @return Histogram of service times (microseconds)
+	 */
+	public LatencyHistogram getServiceTimes()
+	{
+		return serviceTimes;
+	}
+
+	/**
+	 * @return Histogram of response times (microseconds)
+	 */
+	public LatencyHistogram getResponseTimes()
+	{
+		return responseTimes;
+	}
+
+	/**
+	 * @param phase Phase (TaskResult.PHASE_xx constant)
+	 * @return Histogram of time taken by phase (microseconds), for requests
+	 *   where the phase happened
+	 */
+	public LatencyHistogram getPhaseTimes(int phase)
+	{
+		return phaseTimes[phase];
+	}
+
+	/**
+	 * Gets the statistics as a JSON object. Times are in milliseconds.
+	 * @return JSON text
+	 */
+	public String toJson()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("{\"count\":").append(getCount());
+		out.append(",\"successes\":").append(getSuccesses());
+		out.append(",\"failures\":").append(getFailures());
+		out.append(",\"dropped\":").append(getDropped());
+		out.append(",\"successRate\":").append(format(getSuccessRate()));
+		out.append(",\"allocatedPerRequest\":").append(getAllocatedPerRequest());
+		out.append(",\"service\":");
+		appendJson(out, serviceTimes);
+		out.append(",\"response\":");
+		appendJson(out, responseTimes);
+		out.append(",\"phases\":{");
+		for(int i=0; i<phaseTimes.length; i++)
+		{
+			if(i > 0)
+			{
+				out.append(',');
+			}
+			out.append('"').append(TaskResult.getPhaseName(i)).append("\":");
+			appendJson(out, phaseTimes[i]);
+		}
+		out.append("}}");
+		return out.toString();
+	}
+
+	private static void appendJson(StringBuilder out, LatencyHistogram histogram)
+	{
+		out.append("{\"count\":").append(histogram.getCount());
+		out.append(",\"min\":").append(ms(histogram.getMin()));
+		out.append(",\"mean\":").append(format(histogram.getMean() / 1000.0));
+		out.append(",\"max\":").append(ms(histogram.getMax()));
+		for(int i=0; i<PERCENTILES.length; i++)
+		{
+			out.append(",\"").append(PERCENTILE_NAMES[i]).append("\":").append(
+				ms(histogram.getValueAtPercentile(PERCENTILES[i])));
+		}
+		out.append('}');
+	}
+
+	/**
+	 * Writes the statistics as text.
+	 * @param out Output
+	 */
+	public void write(PrintWriter out)
+	{
+		out.println("Successful:    " + getSuccesses());
+		out.println("Failed:        " + getFailures());
+		out.println("Not attempted: " + getDropped());
+		out.println("Success rate:  " + format(getSuccessRate()) + "%");
+		long allocated = getAllocatedPerRequest();
+		if(allocated >= 0)
+		{
+			out.println("Allocated:     " + allocated + " bytes/request");
+		}
+		write(out, "Service", serviceTimes);
+		write(out, "Response", responseTimes);
+		for(int i=0; i<phaseTimes.length; i++)
+		{
+			write(out, PHASE_TITLES[i], phaseTimes[i]);
+		}
+	}
+
+	private static void write(PrintWriter out, String name,
+		LatencyHistogram histogram)
+	{
+		if(histogram.getCount() == 0)
+		{
+			return;
+		}
+		StringBuilder line = new StringBuilder(name + " time (ms): min " +
+			ms(histogram.getMin()) + ", mean " +
+			format(histogram.getMean() / 1000.0));
+		for(int i=0; i<PERCENTILES.length; i++)
+		{
+			line.append(", ").append(PERCENTILE_NAMES[i]).append(' ').append(
+				ms(histogram.getValueAtPercentile(PERCENTILES[i])));
+		}
+		line.append(", max ").append(ms(histogram.getMax()));
+		out.println(line);
+	}
+
+	private static String ms(long micros)
+	{
+		return format(micros / 1000.0);
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.US, "%.1f", value);
+	}
+}
@@ -0,0 +1,112 @@
+package com.leafdigital.loadtestapplet;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded first-in first-out queue that any number of threads can add to
+ * and take from without locking. Based on Dmitry Vyukov's bounded MPMC
+ * queue: each slot has a sequence number that tells producers and consumers
+ * whether it is ready for them, so one compare-and-set claims a slot.
+ * Adding and taking do not allocate.
+ * @param <T> Type of item
+ */
+public class RingQueue<T>
+{
+	private int mask;
+	private AtomicReferenceArray<T> items;
+	private AtomicLongArray sequences;
+	private AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+	/**
+	 * @param minCapacity Minimum number of items the queue can hold; the
+	 *   capacity is rounded up to a power of two
+	 */
+	public RingQueue(int minCapacity)
+	{
+		int capacity = 2;
+		while(capacity < minCapacity)
+		{
+			capacity <<= 1;
+		}
+		mask = capacity - 1;
+		items = new AtomicReferenceArray<T>(capacity);
+		sequences = new AtomicLongArray(capacity);
+		for(int i=0; i<capacity; i++)
+		{
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return Number of items the queue can hold
+	 */
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+	/**
+	 * Adds an item to the end of the queue.
+	 * @param item Item (not null)
+	 * @return True if added, false if the queue is full
+	 */
+	public boolean offer(T item)
+	{
+		while(true)
+		{
+			long position = tail.get();
+			int slot = (int)position & mask;
+			long difference = sequences.get(slot) - position;
+			if(difference == 0)
+			{
+				if(tail.compareAndSet(position, position + 1))
+				{
+					items.set(slot, item);
+					sequences.set(slot, position + 1);
+					return true;
+				}
+			}
+			else if(difference < 0)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Takes the item at the start of the queue.
+	 * @return Item, or null if the queue is empty
+	 */
+	public T poll()
+	{
+		while(true)
+		{
+			long position = head.get();
+			int slot = (int)position & mask;
+			long difference = sequences.get(slot) - (position + 1);
+			if(difference == 0)
+			{
+				if(head.compareAndSet(position, position + 1))
+				{
+					T item = items.get(slot);
+					items.set(slot, null);
+					sequences.set(slot, position + mask + 1);
+					return item;
+				}
+			}
+			else if(difference < 0)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of items in the queue; only approximate if other threads
+	 *   are changing it
+	 */
+	public int size()
+	{
+		return (int)Math.max(0, tail.get() - head.get());
+	}
+}
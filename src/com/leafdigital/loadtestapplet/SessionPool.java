@@ -0,0 +1,103 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of independent sessions (cookie jars), so that requests in progress
+ * at the same time do not share a session. Servers that lock each session
+ * (such as PHP with file sessions) would otherwise run them one at a time,
+ * and the test would measure the lock rather than the server.
+ * <p>
+ * A request takes a session from the pool and gives it back when it
+ * finishes; a virtual user keeps one session for as long as it runs.
+ * Sessions can be loaded in advance (for example, cookies of users who are
+ * already logged in). If none is free, a new session is created, holding
+ * the shared cookie if there is one; cookies the server sets are kept in it.
+ * Taking and giving back do not lock.
+ */
+public class SessionPool
+{
+	/** Largest number of sessions kept in the pool */
+	private final static int MAX_SESSIONS = 65536;
+
+	private RingQueue<CookieJar> free = new RingQueue<CookieJar>(MAX_SESSIONS);
+	private AtomicInteger loaded = new AtomicInteger(),
+		created = new AtomicInteger();
+	private volatile String cookie;
+
+	/**
+	 * Sets the cookie that new sessions start with.
+	 * @param cookie Cookie (full value of header line) or null if none
+	 */
+	public void setCookie(String cookie)
+	{
+		this.cookie = cookie;
+	}
+
+	/**
+	 * Adds an existing session.
+	 * @param sessionCookie Cookies for the session (full value of header line)
+	 * @throws IllegalStateException If the pool is full
+	 */
+	public void add(String sessionCookie) throws IllegalStateException
+	{
+		if(!free.offer(new CookieJar(sessionCookie)))
+		{
+			throw new IllegalStateException("Too many sessions");
+		}
+		loaded.incrementAndGet();
+	}
+
+	/**
+	 * Takes a session that no other request is using, creating one if
+	 * necessary.
+	 * @return Session
+	 */
+	public CookieJar take()
+	{
+		CookieJar jar = free.poll();
+		if(jar == null)
+		{
+			created.incrementAndGet();
+			jar = new CookieJar(cookie);
+		}
+		return jar;
+	}
+
+	/**
+	 * Gives back a session from {@link #take()}.
+	 * @param jar Session
+	 */
+	public void give(CookieJar jar)
+	{
+		// If the pool is full, the session is not kept
+		free.offer(jar);
+	}
+
+	/**
+	 * @return Number of sessions loaded in advance
+	 */
+	public int getLoaded()
+	{
+		return loaded.get();
+	}
+
+	/**
+	 * @return Number of sessions created because none was free
+	 */
+	public int getCreated()
+	{
+		return created.get();
+	}
+
+	/**
+	 * Writes the session statistics as text.
+	 * @param out Output
+	 */
+	public void write(PrintWriter out)
+	{
+		out.println("Sessions:      " + getLoaded() + " loaded, " + getCreated() +
+			" created");
+	}
+}
@@ -0,0 +1,58 @@
+package com.leafdigital.loadtestapplet;
+
+/**
+ * Runs tasks as they are scheduled, reporting the results.
+ */
+public interface TaskDispatcher
+{
+	/**
+	 * Told when a dispatcher that was at its limit may be able to run another
+	 * task.
+	 */
+	public interface CapacityListener
+	{
+		/**
+		 * Called after a task finishes, on the thread that ran or reported it,
+		 * with no dispatcher locks held.
+		 */
+		public void capacityAvailable();
+	}
+
+	/**
+	 * Starts running a task.
+	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start (nanoTime)
+	 * @param task Task to run
+	 * @return True if task is now running, false if it could not be run
+	 *   because the dispatcher is at its limit
+	 */
+	public boolean runTask(int index, long scheduled, Runnable task);
+
+	/**
+	 * Sets the listener told whenever a task finishes. Must be called before
+	 * any tasks are run.
+	 * @param listener Listener, or null for none
+	 */
+	public void setCapacityListener(CapacityListener listener);
+
+	/**
+	 * Creates threads and other resources in advance, so that the first tasks
+	 * of a test do not pay for creating them.
+	 */
+	public void prestart();
+
+	/**
+	 * @return Number of tasks running now (may be approximate)
+	 */
+	public int getRunning();
+
+	/**
+	 * Waits until all tasks that have been started are finished.
+	 */
+	public void waitForIdle();
+
+	/**
+	 * Stops all tasks. The dispatcher can be used again afterwards.
+	 */
+	public void stop();
+}
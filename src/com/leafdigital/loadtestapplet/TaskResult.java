@@ -0,0 +1,295 @@
+package com.leafdigital.loadtestapplet;
+
+/**
+ * Result of a single task, including the time it was scheduled to start so
+ * that delays before the task ran are not hidden. Times are from
+ * System.nanoTime().
+ * <p>
+ * Result objects may be reused for another task once they have been
+ * reported, so reporters must not keep them.
+ */
+public class TaskResult
+{
+	/** Phase of a request: looking up host name */
+	public final static int PHASE_DNS = 0;
+	/** Phase of a request: opening connection (includes TLS if not separate) */
+	public final static int PHASE_CONNECT = 1;
+	/** Phase of a request: TLS handshake */
+	public final static int PHASE_TLS = 2;
+	/** Phase of a request: from request sent to first byte of response */
+	public final static int PHASE_FIRST_BYTE = 3;
+	/** Phase of a request: from first byte to end of response */
+	public final static int PHASE_TRANSFER = 4;
+	/** Number of phases */
+	public final static int PHASES = 5;
+
+	private final static String[] PHASE_NAMES =
+		{ "dns", "connect", "tls", "ttfb", "transfer" };
+
+	private int index;
+	private boolean attempted, success;
+	private long scheduled, started, finished;
+	private long allocated = -1;
+	private int status = -1;
+	private long bytes = -1;
+	private long[] phases = { -1, -1, -1, -1, -1 };
+
+	/**
+	 * Constructs an empty result, to be filled in by
+	 * {@link #set(int, long, long, long, boolean, long)}.
+	 */
+	public TaskResult()
+	{
+	}
+
+	/**
+	 * Constructs a result for a task that was run.
+	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start
+	 * @param started Time task actually started
+	 * @param finished Time task finished
+	 * @param success True if task succeeded
+	 */
+	public TaskResult(int index, long scheduled, long started, long finished,
+		boolean success)
+	{
+		set(index, scheduled, started, finished, success, -1);
+	}
+
+	/**
+	 * Constructs a result for a task that was not run because there was no
+	 * capacity to run it.
+	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start
+	 * @param dropped Time task was dropped
+	 */
+	public TaskResult(int index, long scheduled, long dropped)
+	{
+		this.index = index;
+		this.scheduled = scheduled;
+		this.started = dropped;
+		this.finished = dropped;
+	}
+
+	/**
+	 * Sets this result for a task that was run, so that the object can be
+	 * reused.
+	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start
+	 * @param started Time task actually started
+	 * @param finished Time task finished
+	 * @param success True if task succeeded
+	 * @param allocated Bytes allocated while running the task, or -1 if not
+	 *   known
+	 */
+	public void set(int index, long scheduled, long started, long finished,
+		boolean success, long allocated)
+	{
+		this.index = index;
+		this.scheduled = scheduled;
+		this.started = started;
+		this.finished = finished;
+		this.success = success;
+		this.allocated = allocated;
+		this.attempted = true;
+	}
+
+	/**
+	 * @return Task index
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * @return True if the task was run, false if it was dropped
+	 */
+	public boolean isAttempted()
+	{
+		return attempted;
+	}
+
+	/**
+	 * @return True if the task ran and succeeded
+	 */
+	public boolean isSuccess()
+	{
+		return success;
+	}
+
+	/**
+	 * @return Time task was scheduled to start (nanoTime)
+	 */
+	public long getScheduledTime()
+	{
+		return scheduled;
+	}
+
+	/**
+	 * @return Milliseconds between scheduled time and actual start
+	 */
+	public int getStartDelay()
+	{
+		return toMs(started - scheduled);
+	}
+
+	/**
+	 * @return Service time: milliseconds from actual start to finish
+	 */
+	public int getServiceTime()
+	{
+		return toMs(finished - started);
+	}
+
+	/**
+	 * @return Response time: milliseconds from scheduled start to finish,
+	 *   including any delay before the task actually started
+	 */
+	public int getResponseTime()
+	{
+		return toMs(finished - scheduled);
+	}
+
+	/**
+	 * @return Nanoseconds between scheduled time and actual start
+	 */
+	public long getStartDelayNanos()
+	{
+		return Math.max(started - scheduled, 0);
+	}
+
+	/**
+	 * @return Service time in nanoseconds
+	 */
+	public long getServiceNanos()
+	{
+		return Math.max(finished - started, 0);
+	}
+
+	/**
+	 * @return Service time in microseconds
+	 */
+	public long getServiceMicros()
+	{
+		return Math.max(finished - started, 0) / 1000L;
+	}
+
+	/**
+	 * @return Response time in microseconds
+	 */
+	public long getResponseMicros()
+	{
+		return Math.max(finished - scheduled, 0) / 1000L;
+	}
+
+	/**
+	 * @param phase Phase (PHASE_xx constant)
+	 * @return Short name of phase, e.g. 'ttfb'
+	 */
+	public static String getPhaseName(int phase)
+	{
+		return PHASE_NAMES[phase];
+	}
+
+	/**
+	 * Clears all phase times, and the response status and size.
+	 */
+	public void clearPhases()
+	{
+		for(int i=0; i<PHASES; i++)
+		{
+			phases[i] = -1;
+		}
+		status = -1;
+		bytes = -1;
+	}
+
+	/**
+	 * Records the response to a request.
+	 * @param status HTTP status code
+	 * @param bytes Bytes in response body
+	 */
+	public void setResponse(int status, long bytes)
+	{
+		this.status = status;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return HTTP status code, or -1 if there was no response or it is not
+	 *   known
+	 */
+	public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return Bytes in response body, or -1 if there was no response or it is
+	 *   not known
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Records the time taken by a phase of the request.
+	 * @param phase Phase (PHASE_xx constant)
+	 * @param nanos Time in nanoseconds
+	 */
+	public void setPhase(int phase, long nanos)
+	{
+		phases[phase] = Math.max(nanos, 0);
+	}
+
+	/**
+	 * @param phase Phase (PHASE_xx constant)
+	 * @return Time taken by phase in microseconds, or -1 if the phase did not
+	 *   happen or was not measured
+	 */
+	public long getPhaseMicros(int phase)
+	{
+		return phases[phase] < 0 ? -1 : phases[phase] / 1000L;
+	}
+
+	/**
+	 * @return Bytes allocated while running the task, or -1 if not known
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocated;
+	}
+
+	private static int toMs(long nanos)
+	{
+		return (int)(Math.max(nanos, 0) / 1000000L);
+	}
+
+	/**
+	 * Sends this result to a reporter. If the reporter is a
+	 * {@link ThreadHandler.ResultReporter} it receives the whole result;
+	 * otherwise it receives the service time, or -1 if the task was dropped.
+	 * @param reporter Reporter
+	 */
+	public void report(ThreadHandler.Reporter reporter)
+	{
+		if(reporter instanceof ThreadHandler.ResultReporter)
+		{
+			((ThreadHandler.ResultReporter)reporter).completed(this);
+		}
+		else if(!attempted)
+		{
+			reporter.failed(index, -1);
+		}
+		else if(success)
+		{
+			reporter.succeeded(index, getServiceTime());
+		}
+		else
+		{
+			reporter.failed(index, getServiceTime());
+		}
+	}
+}
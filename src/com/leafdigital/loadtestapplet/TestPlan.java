@@ -0,0 +1,1174 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Test plan read from a text file, for running without the applet.
+ * <p>
+ * Each line is a setting or an event. Blank lines and lines beginning
+ * with # are ignored.
+ * <pre>
+ * engine nio
+ * pipeline 4
+ * mode virtual
+ * threads 20
+ * overflow queue
+ * backlog 1000
+ * catchup skip 10
+ * shards auto
+ * prestart true
+ * warmup 5000
+ * log results.bin
+ * metrics csv metrics.csv
+ * metrics prometheus 9464
+ * cookie MoodleSession=abc123
+ * sessions file sessions.txt
+ * request upload PUT application/octet-stream size 1048576
+ * request form POST application/x-www-form-urlencoded text a=1&amp;b=2
+ * header form X-Requested-With: XMLHttpRequest
+ * event 0 http://example.org/test.php Finished OK
+ * event 0 form http://example.org/save.php status:200
+ * event 500 http://example.org/test.php Finished OK
+ * profile 1000 ramp 60000 5 50 http://example.org/test.php Finished OK
+ * users 0 10 30000 exponential 2000 http://example.org/test.php Finished OK
+ * </pre>
+ * Instead of events, a plan can contain a capacity search (see
+ * {@link CapacitySearch}), with a start rate, step time in milliseconds,
+ * URL and pattern, and optionally criteria for a step to pass:
+ * <pre>
+ * search 1 10000 http://example.org/test.php Finished OK
+ * slo success 99.5
+ * slo p99 3
+ * </pre>
+ * The pattern for an event is the rest of the line after the URL. It is
+ * normally a regular expression which must be found in the response, but
+ * can be another check such as 'status:200' (see {@link ResponseValidator}).
+ * A regular expression whose matches are short is searched for as the
+ * response arrives; one that can match any amount of text, such as
+ * '(?s)&lt;div&gt;.*&lt;/div&gt;', is searched for once the whole response has
+ * been read, so the response is kept in memory until then.
+ * <p>
+ * Requests are GETs unless the URL is preceded by the name of a request
+ * line, which gives a method (GET, POST, PUT or DELETE) and optionally a
+ * content type and body (see {@link RequestTemplate}); header lines add
+ * headers to a request. A request must be given before it is used, and its
+ * body is read and encoded once however many events use it.
+ * <p>
+ * A profile line generates many events from a start time, a rate profile
+ * (see {@link RateProfile}), a URL and a pattern; the events are created as
+ * the test runs.
+ * <p>
+ * A users line starts a group of virtual users at a given time: the number
+ * of users, how long they keep making requests, a think time between each
+ * response and the next request (see {@link ThinkTime}), a URL and a
+ * pattern. Several groups with different numbers of users can be run one
+ * after another, and each is reported separately.
+ * <p>
+ * Mode is 'platform' (default; one handler thread per concurrent request, up
+ * to 9999) or 'virtual' (each request on its own virtual thread; the threads
+ * setting is optional and limits requests in flight).
+ * <p>
+ * Engine is 'blocking' (default; HttpURLConnection on the threads chosen by
+ * mode) or 'nio' (non-blocking keep-alive connections shared by a few I/O
+ * threads; mode is ignored and threads limits requests in flight). Pipeline
+ * sets how many requests the NIO engine may send on one connection before
+ * the first response arrives (default 1, no pipelining).
+ * <p>
+ * Overflow decides what happens to a request when all threads are busy:
+ * 'drop' (default; it is not attempted), 'block' (the schedule waits until
+ * a thread is free) or 'queue' (it waits in a backlog of up to 'backlog'
+ * requests, default 1000, and is not attempted if that is full).
+ * <p>
+ * Catchup decides what happens to requests when the schedule falls behind
+ * (see {@link WorkScheduler}): 'burst' (default; late requests are sent at
+ * once), 'skip' (requests more than a tolerance late are not attempted) or
+ * 'shift' (the rest of the schedule moves later), optionally followed by the
+ * tolerance in milliseconds (default 10).
+ * <p>
+ * Shards splits the schedule between several scheduler threads (default 1),
+ * so that more requests can be sent each second than one thread can manage;
+ * 'auto' uses one per processor.
+ * <p>
+ * Prestart creates all handler threads (or the NIO engine) before the test
+ * starts. Warmup is a number of milliseconds from the start of the test;
+ * results of requests scheduled before then are reported separately, so
+ * that time spent while the JVM compiles the request code does not affect
+ * the main statistics.
+ * <p>
+ * Cookie is sent with every request. Sessions gives requests independent
+ * sessions instead (see {@link SessionPool}), so that a server that locks
+ * each session can run them at the same time: 'sessions new' starts each
+ * session from the cookie and keeps cookies the server sets, while 'sessions
+ * file' loads sessions from a file (one Cookie header value per line) and
+ * each 'session' line adds one.
+ * <p>
+ * Log is a file to which every result is written as the test runs (see
+ * {@link ResultLog}), so that long runs can be looked at afterwards with
+ * {@link ResultLogReader}.
+ * <p>
+ * Metrics lines record throughput, errors, requests in flight and response
+ * time percentiles for each second (see {@link TimeSeries}): 'csv' or
+ * 'json' and a file to write them to as the test runs, or 'prometheus' and
+ * a local port on which to serve the latest values at /metrics.
+ * <p>
+ * A plan sent to a load test agent (see {@link LoadTestAgent}) may not
+ * contain log, metrics or 'sessions file' lines, or request bodies read from
+ * files: the controller sends the plan as {@link #getRemoteText()}, which
+ * includes the sessions and bodies it has read, and each agent takes its
+ * output files from its own command line.
+ */
+public class TestPlan
+{
+	private final static Pattern LINE = Pattern.compile(
+		"([a-z]+)(?:\\s+(.*))?");
+	/** Optional request name, then URL (two groups) */
+	private final static String REQUEST_URL =
+		"(?:([a-z][a-z0-9_-]*)\\s+)?(\\S+)";
+	private final static Pattern EVENT = Pattern.compile(
+		"([0-9]{1,9})\\s+" + REQUEST_URL + "\\s+(.+)");
+	private final static Pattern PROFILE = Pattern.compile(
+		"([0-9]{1,9})\\s+([a-z]+(?:\\s+[0-9]+(?:\\.[0-9]+)?)+)" +
+		"\\s+" + REQUEST_URL + "\\s+(.+)");
+	private final static Pattern SEARCH = Pattern.compile(
+		"([0-9]+(?:\\.[0-9]+)?)\\s+([0-9]{1,9})\\s+" + REQUEST_URL +
+		"\\s+(.+)");
+	private final static Pattern REQUEST = Pattern.compile(
+		"([a-z][a-z0-9_-]*)\\s+([A-Z]+)(?:\\s+(\\S+)\\s+(.+))?");
+	private final static Pattern HEADER = Pattern.compile(
+		"([a-z][a-z0-9_-]*)\\s+(.+)");
+	private final static Pattern SLO = Pattern.compile(
+		"([a-z0-9]+)\\s+([0-9]+(?:\\.[0-9]+)?)");
+	private final static Pattern CATCHUP = Pattern.compile(
+		"([a-z]+)(?:\\s+([0-9]{1,6}))?");
+	private final static Pattern METRICS = Pattern.compile(
+		"(csv|json)\\s+(.+)|prometheus\\s+([1-9][0-9]{0,4})");
+	private final static Pattern USERS = Pattern.compile(
+		"([0-9]{1,9})\\s+([1-9][0-9]{0,5})\\s+([0-9]{1,9})" +
+		"\\s+([a-z]+(?:\\s+[0-9]+(?:\\.[0-9]+)?)+)\\s+" + REQUEST_URL +
+		"\\s+(.+)");
+
+	private final static int DEFAULT_THREADS = 20;
+	private final static int MAX_PLATFORM_THREADS = 9999;
+
+	private int maxThreads = -1;
+	private boolean virtual, nio, prestart;
+	private int pipeline = 1, warmup;
+	private int overflow = BacklogDispatcher.OVERFLOW_DROP,
+		backlog = BacklogDispatcher.DEFAULT_BACKLOG;
+	private int catchUp = WorkScheduler.CATCHUP_BURST,
+		catchUpTolerance = WorkScheduler.DEFAULT_TOLERANCE, shards = 1;
+	private String cookie;
+	private boolean sessions;
+	private List<String> sessionCookies = new LinkedList<String>();
+	private Map<String, RequestTemplate> requests =
+		new HashMap<String, RequestTemplate>();
+	private File log;
+	private List<Metrics> metrics = new LinkedList<Metrics>();
+	private List<Event> events = new LinkedList<Event>();
+	private List<Profile> profiles = new LinkedList<Profile>();
+	private List<Users> users = new LinkedList<Users>();
+	private Search search;
+	private Map<String, Double> criteria = new LinkedHashMap<String, Double>();
+	private boolean remote;
+	private StringBuilder remoteText = new StringBuilder();
+
+	/**
+	 * A single event within the plan.
+	 */
+	public static class Event
+	{
+		private int time;
+		private RequestTemplate request;
+		private URL url;
+		private ResponseValidator validator;
+
+		private Event(int time, RequestTemplate request, URL url,
+			ResponseValidator validator)
+		{
+			this.time = time;
+			this.request = request;
+			this.url = url;
+			this.validator = validator;
+		}
+
+		/**
+		 * @return Time in milliseconds since test start
+		 */
+		public int getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * @return Method, headers and body, or null for a plain GET
+		 */
+		public RequestTemplate getRequest()
+		{
+			return request;
+		}
+
+		/**
+		 * @return URL to request
+		 */
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return Validator for response
+		 */
+		public ResponseValidator getValidator()
+		{
+			return validator;
+		}
+	}
+
+	/**
+	 * A rate profile within the plan.
+	 */
+	public static class Profile
+	{
+		private int time;
+		private String profile;
+		private RequestTemplate request;
+		private URL url;
+		private ResponseValidator validator;
+
+		private Profile(int time, String profile, RequestTemplate request,
+			URL url, ResponseValidator validator)
+		{
+			this.time = time;
+			this.profile = profile;
+			this.request = request;
+			this.url = url;
+			this.validator = validator;
+		}
+
+		/**
+		 * @return Time in milliseconds since test start at which profile begins
+		 */
+		public int getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * @return New generator for the profile's events
+		 */
+		public RateProfile createRateProfile()
+		{
+			return RateProfile.parse(profile);
+		}
+
+		/**
+		 * @return Method, headers and body, or null for a plain GET
+		 */
+		public RequestTemplate getRequest()
+		{
+			return request;
+		}
+
+		/**
+		 * @return URL to request
+		 */
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return Validator for response
+		 */
+		public ResponseValidator getValidator()
+		{
+			return validator;
+		}
+	}
+
+	/**
+	 * An output for metrics each second.
+	 */
+	public static class Metrics
+	{
+		private int format, port;
+		private File file;
+
+		private Metrics(int format, File file, int port)
+		{
+			this.format = format;
+			this.file = file;
+			this.port = port;
+		}
+
+		/**
+		 * Adds this output to a time series.
+		 * @param series Time series
+		 * @throws IOException If the file or port cannot be opened
+		 */
+		public void open(TimeSeries series) throws IOException
+		{
+			if(file == null)
+			{
+				series.listen(port);
+			}
+			else
+			{
+				series.addFile(file, format);
+			}
+		}
+	}
+
+	/**
+	 * A group of virtual users within the plan.
+	 */
+	public static class Users
+	{
+		private int time, count, duration;
+		private String thinkTime;
+		private RequestTemplate request;
+		private URL url;
+		private ResponseValidator validator;
+
+		private Users(int time, int count, int duration, String thinkTime,
+			RequestTemplate request, URL url, ResponseValidator validator)
+		{
+			this.time = time;
+			this.count = count;
+			this.duration = duration;
+			this.thinkTime = thinkTime;
+			this.request = request;
+			this.url = url;
+			this.validator = validator;
+		}
+
+		/**
+		 * @return Time in milliseconds since test start at which users begin
+		 */
+		public int getTime()
+		{
+			return time;
+		}
+
+		/**
+		 * @return Number of users
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * @return Milliseconds for which users make requests
+		 */
+		public int getDuration()
+		{
+			return duration;
+		}
+
+		/**
+		 * @return New think time distribution
+		 */
+		public ThinkTime createThinkTime()
+		{
+			return ThinkTime.parse(thinkTime);
+		}
+
+		/**
+		 * @return Method, headers and body, or null for a plain GET
+		 */
+		public RequestTemplate getRequest()
+		{
+			return request;
+		}
+
+		/**
+		 * @return URL to request
+		 */
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return Validator for response
+		 */
+		public ResponseValidator getValidator()
+		{
+			return validator;
+		}
+	}
+
+	/**
+	 * A capacity search within the plan.
+	 */
+	public class Search
+	{
+		private double startRate;
+		private int stepTime;
+		private RequestTemplate request;
+		private URL url;
+		private ResponseValidator validator;
+
+		private Search(double startRate, int stepTime, RequestTemplate request,
+			URL url, ResponseValidator validator)
+		{
+			this.startRate = startRate;
+			this.stepTime = stepTime;
+			this.request = request;
+			this.url = url;
+			this.validator = validator;
+		}
+
+		/**
+		 * @return Method, headers and body, or null for a plain GET
+		 */
+		public RequestTemplate getRequest()
+		{
+			return request;
+		}
+
+		/**
+		 * @return URL to request
+		 */
+		public URL getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * @return Validator for response
+		 */
+		public ResponseValidator getValidator()
+		{
+			return validator;
+		}
+
+		/**
+		 * Applies the search settings and criteria from the plan.
+		 * @param capacitySearch Search to set up
+		 */
+		public void configure(CapacitySearch capacitySearch)
+		{
+			capacitySearch.setStartRate(startRate);
+			capacitySearch.setStepTime(stepTime, stepTime / 5);
+			for(Map.Entry<String, Double> criterion : criteria.entrySet())
+			{
+				capacitySearch.setCriterion(criterion.getKey(), criterion.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Reads a plan from a file.
+	 * @param file File to read
+	 * @throws IOException If there is an error reading the file or it is not
+	 *   a valid plan
+	 */
+	public TestPlan(File file) throws IOException
+	{
+		this(new InputStreamReader(new FileInputStream(file), "UTF-8"),
+			file.toString());
+	}
+
+	/**
+	 * Reads a plan from text, such as a plan sent to a load test agent.
+	 * @param source Source of text; will be closed
+	 * @param name Name of source for error messages
+	 * @throws IOException If there is an error reading or it is not a valid
+	 *   plan
+	 */
+	public TestPlan(Reader source, String name) throws IOException
+	{
+		this(source, name, false);
+	}
+
+	/**
+	 * Reads a plan from text.
+	 * @param source Source of text; will be closed
+	 * @param name Name of source for error messages
+	 * @param remote True if the plan was received by a load test agent, so
+	 *   that it may not read or write local files
+	 * @throws IOException If there is an error reading or it is not a valid
+	 *   plan
+	 */
+	public TestPlan(Reader source, String name, boolean remote)
+		throws IOException
+	{
+		this.remote = remote;
+		BufferedReader reader = new BufferedReader(source);
+		try
+		{
+			int lineNumber = 0;
+			while(true)
+			{
+				String line = reader.readLine();
+				if(line == null)
+				{
+					break;
+				}
+				lineNumber++;
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				try
+				{
+					String remoteLine = parseLine(line);
+					if(remoteLine != null)
+					{
+						remoteText.append(remoteLine).append('\n');
+					}
+				}
+				catch(IllegalArgumentException e)
+				{
+					throw new IOException(name + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		if(search != null)
+		{
+			if(!events.isEmpty() || !profiles.isEmpty() || !users.isEmpty())
+			{
+				throw new IOException(name + ": A search cannot have other events");
+			}
+		}
+		else if(events.isEmpty() && profiles.isEmpty() && users.isEmpty())
+		{
+			throw new IOException(name + ": No events in plan");
+		}
+		if(maxThreads == -1)
+		{
+			maxThreads = (virtual || nio) ? 0 : DEFAULT_THREADS;
+		}
+		else if(!virtual && !nio && maxThreads > MAX_PLATFORM_THREADS)
+		{
+			throw new IOException(name + ": Thread count over " +
+				MAX_PLATFORM_THREADS + " requires virtual mode");
+		}
+	}
+
+	/**
+	 * @param line Line to parse
+	 * @return Line to send to load test agents instead, or null if the line
+	 *   is not sent to them
+	 * @throws IllegalArgumentException If the line is not valid
+	 */
+	private String parseLine(String line) throws IllegalArgumentException
+	{
+		Matcher m = LINE.matcher(line);
+		if(!m.matches())
+		{
+			throw new IllegalArgumentException("Unrecognised line");
+		}
+		String command = m.group(1), value = m.group(2);
+		if(value == null)
+		{
+			value = "";
+		}
+		if(remote && (command.equals("log") || command.equals("metrics") ||
+			(command.equals("sessions") && value.startsWith("file"))))
+		{
+			throw new IllegalArgumentException(
+				"Not allowed in a plan sent to an agent: " + command);
+		}
+
+		String remoteLine = line;
+		if(command.equals("threads"))
+		{
+			if(!value.matches("[1-9][0-9]{0,8}"))
+			{
+				throw new IllegalArgumentException("Invalid thread count: " + value);
+			}
+			maxThreads = Integer.parseInt(value);
+		}
+		else if(command.equals("mode"))
+		{
+			if(value.equals("virtual"))
+			{
+				virtual = true;
+			}
+			else if(value.equals("platform"))
+			{
+				virtual = false;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown mode: " + value);
+			}
+		}
+		else if(command.equals("engine"))
+		{
+			if(value.equals("nio"))
+			{
+				nio = true;
+			}
+			else if(value.equals("blocking"))
+			{
+				nio = false;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown engine: " + value);
+			}
+		}
+		else if(command.equals("pipeline"))
+		{
+			if(!value.matches("[1-9][0-9]{0,2}"))
+			{
+				throw new IllegalArgumentException("Invalid pipeline depth: " + value);
+			}
+			pipeline = Integer.parseInt(value);
+		}
+		else if(command.equals("overflow"))
+		{
+			overflow = BacklogDispatcher.parsePolicy(value);
+		}
+		else if(command.equals("backlog"))
+		{
+			if(!value.matches("[1-9][0-9]{0,6}"))
+			{
+				throw new IllegalArgumentException("Invalid backlog size: " + value);
+			}
+			backlog = Integer.parseInt(value);
+		}
+		else if(command.equals("catchup"))
+		{
+			Matcher catchUpLine = CATCHUP.matcher(value);
+			if(!catchUpLine.matches())
+			{
+				throw new IllegalArgumentException("Invalid catch-up: " + value);
+			}
+			catchUp = WorkScheduler.parsePolicy(catchUpLine.group(1));
+			if(catchUpLine.group(2) != null)
+			{
+				catchUpTolerance = Integer.parseInt(catchUpLine.group(2));
+			}
+		}
+		else if(command.equals("shards"))
+		{
+			shards = WorkScheduler.parseShards(value);
+		}
+		else if(command.equals("prestart"))
+		{
+			if(value.equals("true"))
+			{
+				prestart = true;
+			}
+			else if(value.equals("false"))
+			{
+				prestart = false;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Invalid prestart: " + value);
+			}
+		}
+		else if(command.equals("warmup"))
+		{
+			if(!value.matches("[0-9]{1,9}"))
+			{
+				throw new IllegalArgumentException("Invalid warm-up time: " + value);
+			}
+			warmup = Integer.parseInt(value);
+		}
+		else if(command.equals("log"))
+		{
+			log = value.equals("") ? null : new File(value);
+			remoteLine = null;
+		}
+		else if(command.equals("metrics"))
+		{
+			metrics.add(parseMetrics(value));
+			remoteLine = null;
+		}
+		else if(command.equals("cookie"))
+		{
+			cookie = value.equals("") ? null : value;
+		}
+		else if(command.equals("sessions"))
+		{
+			if(value.equals("new"))
+			{
+				sessions = true;
+			}
+			else if(value.startsWith("file ") && value.length() > 5)
+			{
+				remoteLine = "sessions new";
+				File file = new File(value.substring(5).trim());
+				for(String read : readSessions(file))
+				{
+					remoteLine += "\nsession " + read;
+				}
+				sessions = true;
+			}
+			else
+			{
+				throw new IllegalArgumentException("Invalid sessions: " + value);
+			}
+		}
+		else if(command.equals("session"))
+		{
+			if(value.equals(""))
+			{
+				throw new IllegalArgumentException("Session must have a cookie");
+			}
+			sessionCookies.add(value);
+			sessions = true;
+		}
+		else if(command.equals("request"))
+		{
+			Matcher request = REQUEST.matcher(value);
+			if(!request.matches())
+			{
+				throw new IllegalArgumentException(
+					"Request must have name and method");
+			}
+			if(requests.containsKey(request.group(1)))
+			{
+				throw new IllegalArgumentException("Duplicate request: " +
+					request.group(1));
+			}
+			boolean file = request.group(4) != null &&
+				request.group(4).matches("file\\s.*");
+			if(remote && file)
+			{
+				throw new IllegalArgumentException(
+					"Not allowed in a plan sent to an agent: request body file");
+			}
+			RequestTemplate template = new RequestTemplate(request.group(2),
+				request.group(3), request.group(4));
+			requests.put(request.group(1), template);
+			if(file)
+			{
+				remoteLine = "request " + request.group(1) + " " +
+					request.group(2) + " " + request.group(3) + " base64 " +
+					RequestTemplate.toBase64(template.getBody());
+			}
+		}
+		else if(command.equals("header"))
+		{
+			Matcher header = HEADER.matcher(value);
+			if(!header.matches())
+			{
+				throw new IllegalArgumentException(
+					"Header must have request name and header");
+			}
+			getRequest(header.group(1)).addHeader(header.group(2));
+		}
+		else if(command.equals("event"))
+		{
+			Matcher event = EVENT.matcher(value);
+			if(!event.matches())
+			{
+				throw new IllegalArgumentException(
+					"Event must have time, URL, and pattern");
+			}
+			try
+			{
+				events.add(new Event(Integer.parseInt(event.group(1)),
+					getRequest(event.group(2)), new URL(event.group(3)),
+					ResponseValidator.parse(event.group(4))));
+			}
+			catch(MalformedURLException e)
+			{
+				throw new IllegalArgumentException("Invalid URL: " + event.group(3));
+			}
+			catch(PatternSyntaxException e)
+			{
+				throw new IllegalArgumentException("Invalid pattern: " +
+					e.getDescription());
+			}
+		}
+		else if(command.equals("profile"))
+		{
+			Matcher profile = PROFILE.matcher(value);
+			if(!profile.matches())
+			{
+				throw new IllegalArgumentException(
+					"Profile must have time, profile, URL, and pattern");
+			}
+			try
+			{
+				// Check the profile is valid now rather than at test start
+				RateProfile.parse(profile.group(2));
+				profiles.add(new Profile(Integer.parseInt(profile.group(1)),
+					profile.group(2), getRequest(profile.group(3)),
+					new URL(profile.group(4)),
+					ResponseValidator.parse(profile.group(5))));
+			}
+			catch(MalformedURLException e)
+			{
+				throw new IllegalArgumentException("Invalid URL: " + profile.group(4));
+			}
+			catch(PatternSyntaxException e)
+			{
+				throw new IllegalArgumentException("Invalid pattern: " +
+					e.getDescription());
+			}
+		}
+		else if(command.equals("search"))
+		{
+			Matcher searchLine = SEARCH.matcher(value);
+			if(!searchLine.matches())
+			{
+				throw new IllegalArgumentException(
+					"Search must have start rate, step time, URL, and pattern");
+			}
+			double startRate = Double.parseDouble(searchLine.group(1));
+			int stepTime = Integer.parseInt(searchLine.group(2));
+			CapacitySearch.checkStartRate(startRate);
+			CapacitySearch.checkStepTime(stepTime, stepTime / 5);
+			try
+			{
+				search = new Search(startRate, stepTime,
+					getRequest(searchLine.group(3)), new URL(searchLine.group(4)),
+					ResponseValidator.parse(searchLine.group(5)));
+			}
+			catch(MalformedURLException e)
+			{
+				throw new IllegalArgumentException("Invalid URL: " +
+					searchLine.group(4));
+			}
+			catch(PatternSyntaxException e)
+			{
+				throw new IllegalArgumentException("Invalid pattern: " +
+					e.getDescription());
+			}
+		}
+		else if(command.equals("slo"))
+		{
+			Matcher criterion = SLO.matcher(value);
+			if(!criterion.matches())
+			{
+				throw new IllegalArgumentException("Invalid criterion: " + value);
+			}
+			double criterionValue = Double.parseDouble(criterion.group(2));
+			CapacitySearch.checkCriterion(criterion.group(1), criterionValue);
+			criteria.put(criterion.group(1), criterionValue);
+		}
+		else if(command.equals("users"))
+		{
+			Matcher group = USERS.matcher(value);
+			if(!group.matches())
+			{
+				throw new IllegalArgumentException("Users must have time, count, " +
+					"duration, think time, URL, and pattern");
+			}
+			try
+			{
+				// Check the think time is valid now rather than at test start
+				ThinkTime.parse(group.group(4));
+				users.add(new Users(Integer.parseInt(group.group(1)),
+					Integer.parseInt(group.group(2)), Integer.parseInt(group.group(3)),
+					group.group(4), getRequest(group.group(5)), new URL(group.group(6)),
+					ResponseValidator.parse(group.group(7))));
+			}
+			catch(MalformedURLException e)
+			{
+				throw new IllegalArgumentException("Invalid URL: " + group.group(6));
+			}
+			catch(PatternSyntaxException e)
+			{
+				throw new IllegalArgumentException("Invalid pattern: " +
+					e.getDescription());
+			}
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown setting: " + command);
+		}
+		return remoteLine;
+	}
+
+	/**
+	 * @param name Name of request line, or null if none
+	 * @return Request, or null if the name is null
+	 * @throws IllegalArgumentException If there is no request with the name
+	 */
+	private RequestTemplate getRequest(String name)
+		throws IllegalArgumentException
+	{
+		if(name == null)
+		{
+			return null;
+		}
+		RequestTemplate request = requests.get(name);
+		if(request == null)
+		{
+			throw new IllegalArgumentException("Unknown request: " + name);
+		}
+		return request;
+	}
+
+	/**
+	 * @return Maximum number of threads (0 = unlimited, virtual mode only)
+	 */
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * @return True if requests should run on virtual threads
+	 */
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	/**
+	 * @return True if requests should use the NIO engine
+	 */
+	public boolean isNio()
+	{
+		return nio;
+	}
+
+	/**
+	 * @return Maximum requests in progress on each NIO connection
+	 */
+	public int getPipeline()
+	{
+		return pipeline;
+	}
+
+	/**
+	 * @return Overflow policy (BacklogDispatcher.OVERFLOW_xx constant)
+	 */
+	public int getOverflow()
+	{
+		return overflow;
+	}
+
+	/**
+	 * @return Maximum number of requests waiting in the backlog
+	 */
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * @return Catch-up policy (WorkScheduler.CATCHUP_xx constant)
+	 */
+	public int getCatchUp()
+	{
+		return catchUp;
+	}
+
+	/**
+	 * @return Milliseconds a request may be late before the catch-up policy
+	 *   applies
+	 */
+	public int getCatchUpTolerance()
+	{
+		return catchUpTolerance;
+	}
+
+	/**
+	 * @return Number of scheduler threads
+	 */
+	public int getShards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @return True if threads should be created before the test starts
+	 */
+	public boolean isPrestart()
+	{
+		return prestart;
+	}
+
+	/**
+	 * @return Warm-up time in milliseconds (0 = none)
+	 */
+	public int getWarmup()
+	{
+		return warmup;
+	}
+
+	/**
+	 * @return File for result log, or null if none
+	 */
+	public File getLog()
+	{
+		return log;
+	}
+
+	/**
+	 * Sets the result log, replacing any from the plan.
+	 * @param log File for result log, or null if none
+	 */
+	public void setLog(File log)
+	{
+		this.log = log;
+	}
+
+	/**
+	 * @return Outputs for metrics each second, in file order
+	 */
+	public List<Metrics> getMetrics()
+	{
+		return Collections.unmodifiableList(metrics);
+	}
+
+	/**
+	 * Adds an output for metrics each second.
+	 * @param output Output
+	 */
+	public void addMetrics(Metrics output)
+	{
+		metrics.add(output);
+	}
+
+	/**
+	 * Parses an output for metrics.
+	 * @param value Output as in a metrics line, e.g. 'csv metrics.csv'
+	 * @return Output
+	 * @throws IllegalArgumentException If the output is not valid
+	 */
+	public static Metrics parseMetrics(String value)
+		throws IllegalArgumentException
+	{
+		Matcher metricsLine = METRICS.matcher(value);
+		if(!metricsLine.matches())
+		{
+			throw new IllegalArgumentException("Invalid metrics: " + value);
+		}
+		if(metricsLine.group(3) != null)
+		{
+			int port = Integer.parseInt(metricsLine.group(3));
+			if(port > 65535)
+			{
+				throw new IllegalArgumentException("Invalid port: " + port);
+			}
+			return new Metrics(-1, null, port);
+		}
+		return new Metrics(metricsLine.group(1).equals("csv")
+			? TimeSeries.FORMAT_CSV : TimeSeries.FORMAT_JSON,
+			new File(metricsLine.group(2)), 0);
+	}
+
+	/**
+	 * Gets the plan as it is sent to load test agents: sessions and request
+	 * bodies read from files are included in it, and log and metrics lines
+	 * are left out.
+	 * @return Plan text
+	 */
+	public String getRemoteText()
+	{
+		return remoteText.toString();
+	}
+
+	/**
+	 * Reads session cookies from a file, one per line.
+	 * @param file File
+	 * @return Cookies read
+	 * @throws IllegalArgumentException If the file cannot be read
+	 */
+	private List<String> readSessions(File file)
+		throws IllegalArgumentException
+	{
+		List<String> read = new LinkedList<String>();
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try
+			{
+				while(true)
+				{
+					String line = reader.readLine();
+					if(line == null)
+					{
+						break;
+					}
+					line = line.trim();
+					if(line.length() > 0 && !line.startsWith("#"))
+					{
+						read.add(line);
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch(IOException e)
+		{
+			throw new IllegalArgumentException("Cannot read sessions: " +
+				e.getMessage());
+		}
+		sessionCookies.addAll(read);
+		return read;
+	}
+
+	/**
+	 * @return Cookie (full value of header line) or null if none
+	 */
+	public String getCookie()
+	{
+		return cookie;
+	}
+
+	/**
+	 * @return True if requests use independent sessions
+	 */
+	public boolean isSessions()
+	{
+		return sessions;
+	}
+
+	/**
+	 * @return Cookies of sessions to load in advance
+	 */
+	public List<String> getSessionCookies()
+	{
+		return Collections.unmodifiableList(sessionCookies);
+	}
+
+	/**
+	 * @return All events in file order
+	 */
+	public List<Event> getEvents()
+	{
+		return Collections.unmodifiableList(events);
+	}
+
+	/**
+	 * @return All rate profiles in file order
+	 */
+	public List<Profile> getProfiles()
+	{
+		return Collections.unmodifiableList(profiles);
+	}
+
+	/**
+	 * @return Capacity search, or null if this plan does not have one
+	 */
+	public Search getSearch()
+	{
+		return search;
+	}
+
+	/**
+	 * @return All virtual user groups in file order
+	 */
+	public List<Users> getUsers()
+	{
+		return Collections.unmodifiableList(users);
+	}
+}
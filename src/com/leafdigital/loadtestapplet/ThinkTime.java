@@ -0,0 +1,135 @@
+package com.leafdigital.loadtestapplet;
+
+import java.util.Random;
+import java.util.regex.*;
+
+/**
+ * Distribution of the time a virtual user waits between receiving a response
+ * and making its next request.
+ * <p>
+ * Distributions can be created from text:
+ * <ul>
+ * <li>constant &lt;time&gt;</li>
+ * <li>uniform &lt;min&gt; &lt;max&gt;</li>
+ * <li>exponential &lt;mean&gt;</li>
+ * </ul>
+ * Times are in milliseconds.
+ */
+public abstract class ThinkTime
+{
+	private final static Pattern TEXT = Pattern.compile(
+		"([a-z]+)((?:\\s+[0-9]+(?:\\.[0-9]+)?)+)");
+
+	/**
+	 * Gets a think time.
+	 * @param random Random number generator (not shared between threads)
+	 * @return Time in milliseconds
+	 */
+	public abstract long next(Random random);
+
+	/**
+	 * Creates a distribution from text.
+	 * @param text Description, e.g. 'exponential 5000'
+	 * @return New distribution
+	 * @throws IllegalArgumentException If the text is not valid
+	 */
+	public static ThinkTime parse(String text) throws IllegalArgumentException
+	{
+		Matcher m = TEXT.matcher(text.trim());
+		if(!m.matches())
+		{
+			throw new IllegalArgumentException("Invalid think time: " + text);
+		}
+		String type = m.group(1);
+		String[] parts = m.group(2).trim().split("\\s+");
+		double[] values = new double[parts.length];
+		for(int i=0; i<parts.length; i++)
+		{
+			values[i] = Double.parseDouble(parts[i]);
+		}
+
+		if(type.equals("constant") && values.length == 1)
+		{
+			return new Constant((long)values[0]);
+		}
+		else if(type.equals("uniform") && values.length == 2 &&
+			values[0] <= values[1])
+		{
+			return new Uniform((long)values[0], (long)values[1]);
+		}
+		else if(type.equals("exponential") && values.length == 1)
+		{
+			return new Exponential(values[0]);
+		}
+		throw new IllegalArgumentException("Invalid think time: " + text);
+	}
+
+	/**
+	 * The same time every time.
+	 */
+	public static class Constant extends ThinkTime
+	{
+		private long time;
+
+		/**
+		 * @param time Time in milliseconds
+		 */
+		public Constant(long time)
+		{
+			this.time = time;
+		}
+
+		@Override
+		public long next(Random random)
+		{
+			return time;
+		}
+	}
+
+	/**
+	 * Any time in a range, equally likely.
+	 */
+	public static class Uniform extends ThinkTime
+	{
+		private long min, max;
+
+		/**
+		 * @param min Shortest time in milliseconds
+		 * @param max Longest time in milliseconds
+		 */
+		public Uniform(long min, long max)
+		{
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		public long next(Random random)
+		{
+			return min + (long)(random.nextDouble() * (max - min + 1));
+		}
+	}
+
+	/**
+	 * Random times with a given mean, mostly short with a few long ones, as
+	 * with users who act independently.
+	 */
+	public static class Exponential extends ThinkTime
+	{
+		private double mean;
+
+		/**
+		 * @param mean Mean time in milliseconds
+		 */
+		public Exponential(double mean)
+		{
+			this.mean = mean;
+		}
+
+		@Override
+		public long next(Random random)
+		{
+			return (long)(-Math.log(1.0 - random.nextDouble()) * mean);
+		}
+	}
+}
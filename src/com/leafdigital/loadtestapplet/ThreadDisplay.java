@@ -81,45 +81,51 @@ public class ThreadDisplay extends JComponent
 	}
 
 	/**
-	 * Updates and repaints this display.
+	 * Updates and repaints this display, if anything has changed. Must be
+	 * called on the Swing thread.
+	 * @param newThisTime Time into current task or 0 if none
+	 * @param newLastTime Time for last task or 0 if none
+	 * @param newBeforeTime Time for task before last or 0 if none
 	 */
-	public void update()
+	public void update(int newThisTime, int newLastTime, int newBeforeTime)
 	{
-		SwingUtilities.invokeLater(new Runnable()
+		if(newThisTime == thisTime && newLastTime == lastTime &&
+			newBeforeTime == beforeTime)
 		{
-			@Override
-			public void run()
+			return;
+		}
+		int oldThisTime = thisTime, oldLastTime = lastTime;
+		thisTime = newThisTime;
+		lastTime = newLastTime;
+		beforeTime = newBeforeTime;
+
+		// Set up text labels (only if changed, to avoid building strings)
+		if(thisTime != oldThisTime)
+		{
+			if(thisTime == 0)
+			{
+				thisLabel.setText("");
+			}
+			else
+			{
+				thisLabel.setText(LABEL_THIS + " " + thisTime + LABEL_MS);
+			}
+		}
+
+		if(lastTime != oldLastTime)
+		{
+			if(lastTime == 0)
 			{
-				synchronized(handler)
-				{
-					thisTime = handler.getThisTime();
-					lastTime = handler.getLastTime();
-					beforeTime = handler.getBeforeTime();
-				}
-
-				// Set up text labels
-				if(thisTime == 0)
-				{
-					thisLabel.setText("");
-				}
-				else
-				{
-					thisLabel.setText(LABEL_THIS + " " + thisTime + LABEL_MS);
-				}
-
-				if(lastTime == 0)
-				{
-					lastLabel.setText("");
-				}
-				else
-				{
-					lastLabel.setText(LABEL_LAST + " " + lastTime + LABEL_MS);
-				}
-
-				// Repaint for bars (this will probably happen anyhow but)
-				repaint();
+				lastLabel.setText("");
 			}
-		});
+			else
+			{
+				lastLabel.setText(LABEL_LAST + " " + lastTime + LABEL_MS);
+			}
+		}
+
+		// Repaint for bars
+		repaint();
 	}
 
 	@Override
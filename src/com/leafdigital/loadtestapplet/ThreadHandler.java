@@ -11,13 +11,20 @@ public class ThreadHandler
 	private boolean started, stop, stopped;
 	private Runnable currentTask;
 	private int taskIndex;
-	private long currentStart;
+	private long taskScheduled;
 
-	private int lastTime, beforeTime;
+	// Display state, read by the tracker without locking
+	private volatile long currentStart;
+	private volatile int lastTime, beforeTime;
+
+	/** Result object, reused for each task */
+	private TaskResult result = new TaskResult();
 
 	private Reporter reporter;
-	private ThreadDisplay threadDisplay;
+	private volatile ThreadDisplay threadDisplay;
 	private ThreadTracker tracker;
+	private int scale;
+	private IdleListener idleListener;
 
 	/**
 	 * Called to report progress (success or failure).
@@ -39,6 +46,33 @@ public class ThreadHandler
 		public void failed(int taskIndex, int ms);
 	}
 
+	/**
+	 * Reporter that receives the full result of each task, including the time
+	 * it was scheduled for. Results are passed to {@link #completed(TaskResult)}
+	 * instead of the succeeded and failed methods.
+	 */
+	public interface ResultReporter extends Reporter
+	{
+		/**
+		 * A task completed, failed, or was not attempted. For requests, the
+		 * result includes the time taken by each phase.
+		 * @param result Result; this may be reused after the call returns
+		 */
+		public void completed(TaskResult result);
+	}
+
+	/**
+	 * Told when a handler has finished a task and can take another.
+	 */
+	public interface IdleListener
+	{
+		/**
+		 * Called on the handler's thread after it finishes a task.
+		 * @param handler Handler that is now idle
+		 */
+		public void handlerIdle(ThreadHandler handler);
+	}
+
 	/**
 	 * @param index Index of this thread
 	 * @param reporter Reporter for task results
@@ -50,7 +84,17 @@ public class ThreadHandler
 		this.index = index;
 		this.reporter = reporter;
 		this.tracker = tracker;
-		this.threadDisplay = new ThreadDisplay(this, scale);
+		this.scale = scale;
+	}
+
+	/**
+	 * Constructs a handler with no display, for running without Swing.
+	 * @param index Index of this thread
+	 * @param reporter Reporter for task results
+	 */
+	public ThreadHandler(int index, Reporter reporter)
+	{
+		this(index, reporter, null, 0);
 	}
 
 	/**
@@ -61,6 +105,16 @@ public class ThreadHandler
 		return index;
 	}
 
+	/**
+	 * Sets the listener told when this handler becomes idle. Must be called
+	 * before start.
+	 * @param idleListener Listener, or null for none
+	 */
+	public void setIdleListener(IdleListener idleListener)
+	{
+		this.idleListener = idleListener;
+	}
+
 	/**
 	 * Initialises thread (must call before it does anything)
 	 * @throws IllegalStateException If already started
@@ -88,7 +142,8 @@ public class ThreadHandler
 			while(true)
 			{
 				Runnable task;
-				long startTime;
+				int thisTaskIndex;
+				long scheduled;
 				synchronized(this)
 				{
 					while(currentTask == null && !stop)
@@ -100,32 +155,63 @@ public class ThreadHandler
 						break;
 					}
 					task = currentTask;
-					startTime = System.currentTimeMillis();
-					currentStart = startTime;
+					thisTaskIndex = taskIndex;
+					scheduled = taskScheduled;
+				}
+				currentStart = System.currentTimeMillis();
+				if(tracker != null)
+				{
+					tracker.startActivity();
 				}
-				tracker.startActivity(this);
+				AllocationCounter.sinceLast();
+				result.clearPhases();
+				long start = System.nanoTime();
+				boolean success;
 				try
 				{
-					task.run();
-					beforeTime = lastTime;
-					lastTime = (int)(System.currentTimeMillis() - currentStart);
-					reporter.succeeded(taskIndex, lastTime);
+					if(task instanceof TimedTask)
+					{
+						((TimedTask)task).run(result);
+					}
+					else
+					{
+						task.run();
+					}
+					success = true;
 				}
 				catch(Throwable e)
+				{
+					success = false;
+				}
+				result.set(thisTaskIndex, scheduled, start, System.nanoTime(), success,
+					AllocationCounter.sinceLast());
+				try
 				{
 					beforeTime = lastTime;
-					lastTime = (int)(System.currentTimeMillis() - currentStart);
-					reporter.failed(taskIndex, lastTime);
+					lastTime = result.getServiceTime();
+					currentStart = 0;
+					result.report(reporter);
+				}
+				catch(Throwable e)
+				{
+					e.printStackTrace();
 				}
 				finally
 				{
-					tracker.stopActivity(this);
+					if(tracker != null)
+					{
+						tracker.stopActivity();
+					}
 					synchronized(this)
 					{
 						currentTask = null;
 						notifyAll();
 					}
 				}
+				if(idleListener != null)
+				{
+					idleListener.handlerIdle(this);
+				}
 			}
 		}
 		catch(InterruptedException e)
@@ -160,13 +246,17 @@ public class ThreadHandler
 	}
 
 	/**
-	 * @return Tine (milliseconds) into current task or 0 if no current task
+	 * Gets the time into the current task. Does not lock, so it can be called
+	 * while the handler is busy.
+	 * @param now Current time (System.currentTimeMillis())
+	 * @return Time (milliseconds) into current task or 0 if no current task
 	 */
-	public synchronized int getThisTime()
+	public int getThisTime(long now)
 	{
-		if(currentTask != null)
+		long start = currentStart;
+		if(start != 0)
 		{
-			return (int)(System.currentTimeMillis() - currentStart);
+			return (int)Math.max(now - start, 1);
 		}
 		else
 		{
@@ -177,7 +267,7 @@ public class ThreadHandler
 	/**
 	 * @return Time (milliseconds) for last request or 0 if none
 	 */
-	public synchronized int getLastTime()
+	public int getLastTime()
 	{
 		return lastTime;
 	}
@@ -185,7 +275,7 @@ public class ThreadHandler
 	/**
 	 * @return Time (milliseconds) for request before last or 0 if none
 	 */
-	public synchronized int getBeforeTime()
+	public int getBeforeTime()
 	{
 		return beforeTime;
 	}
@@ -193,17 +283,21 @@ public class ThreadHandler
 	/**
 	 * Runs a task on this thread handler if there is no current task.
 	 * @param index Task index
+	 * @param scheduled Time task was scheduled to start (nanoTime)
 	 * @param runnable Task
-	 * @return True if this task is now running, false if thread is busy
+	 * @return True if this task is now running, false if thread is busy or
+	 *   has been stopped
 	 */
-	public synchronized boolean task(int index, Runnable runnable)
+	public synchronized boolean task(int index, long scheduled,
+		Runnable runnable)
 	{
-		if(currentTask != null)
+		if(currentTask != null || stop)
 		{
 			return false;
 		}
 		currentTask = runnable;
 		taskIndex = index;
+		taskScheduled = scheduled;
 		currentStart = 0;
 		notifyAll();
 		return true;
@@ -214,6 +308,10 @@ public class ThreadHandler
 	 */
 	public synchronized void stop()
 	{
+		if(tracker != null)
+		{
+			tracker.removeHandler(this);
+		}
 		stop = true;
 		notifyAll();
 		try
@@ -229,18 +327,37 @@ public class ThreadHandler
 	}
 
 	/**
+	 * Gets the display component, creating it the first time. Must be called
+	 * on the Swing thread.
 	 * @return Display component for thread
+	 * @throws IllegalStateException If this handler has no tracker
 	 */
-	public JComponent getComponent()
+	public JComponent getComponent() throws IllegalStateException
 	{
+		if(tracker == null)
+		{
+			throw new IllegalStateException("Handler has no display");
+		}
+		if(threadDisplay == null)
+		{
+			threadDisplay = new ThreadDisplay(this, scale);
+			tracker.addHandler(this);
+		}
 		return threadDisplay;
 	}
 
 	/**
-	 * Called by tracker to update display
+	 * Called by tracker on the Swing thread to update the display.
+	 * @param thisTime Time into current task or 0 if none
+	 * @param lastTime Time for last task or 0 if none
+	 * @param beforeTime Time for task before last or 0 if none
 	 */
-	public void tick()
+	public void update(int thisTime, int lastTime, int beforeTime)
 	{
-		threadDisplay.update();
+		ThreadDisplay display = threadDisplay;
+		if(display != null)
+		{
+			display.update(thisTime, lastTime, beforeTime);
+		}
 	}
 }
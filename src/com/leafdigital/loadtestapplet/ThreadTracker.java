@@ -1,26 +1,77 @@
 package com.leafdigital.loadtestapplet;
 
-import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.swing.SwingUtilities;
 
 /**
- * Tracking thread periodically monitors status of all handling threads.
+ * Tracking thread that periodically updates the display of all handler
+ * threads. Each frame it reads the state of every handler without locking
+ * into a snapshot, and posts one update to the Swing thread for all of
+ * them. A frame is skipped if the last one has not been shown yet, and the
+ * frame rate is lowered while the Swing thread is slow to show them, so
+ * the display cannot hold up the test.
  */
 public class ThreadTracker
 {
+	/** Default frames per second */
+	public final static int DEFAULT_FRAME_RATE = 40;
+
+	/** Longest time between frames when slowed down, in milliseconds */
+	private final static int MAX_INTERVAL = 1000;
+
 	private boolean started, stop, stopped;
-	private Set<ThreadHandler> handlers = new HashSet<ThreadHandler>();
-	private Set<ThreadHandler> removeHandlers = new HashSet<ThreadHandler>();
+	private int interval = 1000 / DEFAULT_FRAME_RATE, minInterval = interval;
+
+	/** Handlers with a display; replaced (not changed) when handlers change */
+	private volatile ThreadHandler[] handlers = new ThreadHandler[0];
+
+	/** Number of handlers running a task */
+	private AtomicInteger active = new AtomicInteger();
+
+	/** True while a frame is waiting for the Swing thread */
+	private AtomicBoolean pending = new AtomicBoolean();
+
+	/** Milliseconds the Swing thread took to show the last frame */
+	private volatile long lastFrameTime;
+
+	// State of all handlers at one moment, for the Swing thread to show; only
+	// filled while no frame is pending
+	private ThreadHandler[] snapshotHandlers = new ThreadHandler[0];
+	private int[] thisTimes = new int[0], lastTimes = new int[0],
+		beforeTimes = new int[0];
+	private int snapshotCount;
+
+	/** Runs on the Swing thread to show a frame; one object is used for all */
+	private Runnable updater = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			long start = System.currentTimeMillis();
+			for(int i=0; i<snapshotCount; i++)
+			{
+				snapshotHandlers[i].update(thisTimes[i], lastTimes[i],
+					beforeTimes[i]);
+			}
+			lastFrameTime = System.currentTimeMillis() - start;
+			pending.set(false);
+		}
+	};
 
 	/**
 	 * Starts tracking thread.
-	 * @throws IllegalStateException If already started
+	 * @throws IllegalStateException If already running
 	 */
 	public synchronized void start() throws IllegalStateException
 	{
-		if(started)
+		if(started && !stopped)
 		{
 			throw new IllegalStateException("Already started");
 		}
+		started = true;
+		stop = false;
+		stopped = false;
 		new Thread(new Runnable()
 		{
 			@Override
@@ -40,7 +91,7 @@ public class ThreadTracker
 		notifyAll();
 		try
 		{
-			while(!stopped)
+			while(started && !stopped)
 			{
 				wait();
 			}
@@ -50,60 +101,54 @@ public class ThreadTracker
 		}
 	}
 
+	/**
+	 * Sets the highest frame rate. The rate is lowered automatically if the
+	 * Swing thread cannot keep up.
+	 * @param framesPerSecond Frames per second (1-100), or 0 to pause updates
+	 */
+	public synchronized void setFrameRate(int framesPerSecond)
+	{
+		minInterval = framesPerSecond <= 0 ? 0
+			: 1000 / Math.min(framesPerSecond, 100);
+		interval = minInterval;
+		notifyAll();
+	}
+
 	private void thread()
 	{
 		try
 		{
+			boolean idleFrame = false;
 			while(true)
 			{
-				// Wait for action
+				int wait;
 				synchronized(this)
 				{
-					while(!stop && handlers.isEmpty())
+					// Wait for action (one more frame after the last task ends, so
+					// that finished tasks are shown)
+					while(!stop && (minInterval == 0 ||
+						(active.get() == 0 && idleFrame)))
 					{
 						wait();
+						idleFrame = false;
 					}
 					if(stop)
 					{
 						return;
 					}
+					wait = interval;
 				}
 
-				// Now that we have handlers, enter timing loop where we tick every
-				// 25ms
-				while(true)
+				synchronized(this)
 				{
-					ThreadHandler[] handlerArray;
-					synchronized(this)
-					{
-						wait(25);
-						if(stop)
-						{
-							return;
-						}
-						handlerArray = handlers.toArray(new ThreadHandler[handlers.size()]);
-						// Remove things from array if removed, provided they were there
-						// once
-						for(ThreadHandler handler : handlerArray)
-						{
-							if(removeHandlers.contains(handler))
-							{
-								handlers.remove(handler);
-							}
-						}
-						removeHandlers.clear();
-					}
-
-					for(ThreadHandler handler : handlerArray)
-					{
-						handler.tick();
-					}
-
-					if(handlerArray.length == 0)
+					wait(wait);
+					if(stop)
 					{
-						break;
+						return;
 					}
 				}
+				idleFrame = active.get() == 0;
+				frame();
 			}
 		}
 		catch(InterruptedException e)
@@ -111,30 +156,123 @@ public class ThreadTracker
 		}
 		finally
 		{
-			stopped = true;
+			synchronized(this)
+			{
+				stopped = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot and posts it to the Swing thread, unless the last one
+	 * has not been shown.
+	 */
+	private void frame()
+	{
+		if(!pending.compareAndSet(false, true))
+		{
+			// Swing thread is behind, so slow down
+			slower();
+			return;
+		}
+
+		long frameTime = lastFrameTime;
+		synchronized(this)
+		{
+			if(frameTime * 2 > interval)
+			{
+				interval = Math.min(interval * 2, MAX_INTERVAL);
+			}
+			else if(interval > minInterval && frameTime * 8 < interval)
+			{
+				interval = Math.max(interval * 3 / 4, minInterval);
+			}
+		}
+
+		// The pending flag orders these writes before the Swing thread reads
+		ThreadHandler[] current = handlers;
+		if(snapshotHandlers.length < current.length)
+		{
+			snapshotHandlers = new ThreadHandler[current.length];
+			thisTimes = new int[current.length];
+			lastTimes = new int[current.length];
+			beforeTimes = new int[current.length];
+		}
+		long now = System.currentTimeMillis();
+		for(int i=0; i<current.length; i++)
+		{
+			ThreadHandler handler = current[i];
+			snapshotHandlers[i] = handler;
+			thisTimes[i] = handler.getThisTime(now);
+			lastTimes[i] = handler.getLastTime();
+			beforeTimes[i] = handler.getBeforeTime();
+		}
+		for(int i=current.length; i<snapshotCount; i++)
+		{
+			snapshotHandlers[i] = null;
+		}
+		snapshotCount = current.length;
+
+		SwingUtilities.invokeLater(updater);
+	}
+
+	private synchronized void slower()
+	{
+		interval = Math.min(Math.max(interval * 2, 1), MAX_INTERVAL);
+	}
+
+	/**
+	 * Adds a handler whose display should be updated.
+	 * @param handler Handler
+	 */
+	public synchronized void addHandler(ThreadHandler handler)
+	{
+		ThreadHandler[] newHandlers = new ThreadHandler[handlers.length + 1];
+		System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+		newHandlers[handlers.length] = handler;
+		handlers = newHandlers;
+	}
+
+	/**
+	 * Removes a handler added with {@link #addHandler(ThreadHandler)}.
+	 * @param handler Handler
+	 */
+	public synchronized void removeHandler(ThreadHandler handler)
+	{
+		for(int i=0; i<handlers.length; i++)
+		{
+			if(handlers[i] == handler)
+			{
+				ThreadHandler[] newHandlers = new ThreadHandler[handlers.length - 1];
+				System.arraycopy(handlers, 0, newHandlers, 0, i);
+				System.arraycopy(handlers, i + 1, newHandlers, i,
+					newHandlers.length - i);
+				handlers = newHandlers;
+				return;
+			}
 		}
 	}
 
 	/**
-	 * Called by handler when it's doing something and needs to be ticked.
-	 * @param handler Active handler
+	 * Called by handler when it starts a task.
 	 */
-	public synchronized void startActivity(ThreadHandler handler)
+	public void startActivity()
 	{
-		handlers.add(handler);
-		if(handlers.size() == 1)
+		if(active.getAndIncrement() == 0)
 		{
-			notifyAll();
+			synchronized(this)
+			{
+				notifyAll();
+			}
 		}
 	}
 
 	/**
-	 * Called by handler when it finishes doing something and can stop being
-	 * ticked (after next tick).
-	 * @param handler Inactive handler
+	 * Called by handler when it finishes a task.
 	 */
-	public synchronized void stopActivity(ThreadHandler handler)
+	public void stopActivity()
 	{
-		removeHandlers.add(handler);
+		active.decrementAndGet();
 	}
 }
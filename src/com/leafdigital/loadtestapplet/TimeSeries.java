@@ -0,0 +1,529 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics for each second of a test: throughput, errors, requests in
+ * flight and response time percentiles. Each second can be written to
+ * files as it finishes (CSV, or JSON with one object per line), and the
+ * latest values served over HTTP in Prometheus text format, so that the
+ * load can be lined up with graphs of the server.
+ * <p>
+ * Seconds are counted from the start of the test, and results are counted
+ * in the second in which they finish. Each second is written one second
+ * after it ends, so that results still being recorded are included.
+ * Recording a result is lock-free and does not allocate.
+ */
+public class TimeSeries implements ThreadHandler.ResultReporter
+{
+	/** Output format: comma-separated values with a header line */
+	public final static int FORMAT_CSV = 0;
+	/** Output format: a JSON object per line */
+	public final static int FORMAT_JSON = 1;
+
+	/** Most seconds kept for {@link #toJson()} */
+	private final static int MAX_HISTORY = 60 * 60;
+
+	private final static String CSV_HEADER = "time,second,throughput," +
+		"successes,failures,dropped,errorRate,running,queued," +
+		"p50,p90,p99,max";
+
+	private BacklogDispatcher dispatcher;
+
+	// Windows are reused in turn. A window is only read a second after it
+	// stops being current, so that results from threads that fetched it just
+	// before it changed are counted, and only cleared after that
+	private Window[] windows = { new Window(), new Window(), new Window() };
+	private volatile Window current = windows[0];
+	private int currentIndex;
+
+	private List<PrintWriter> outputs = new LinkedList<PrintWriter>();
+	private List<Integer> formats = new LinkedList<Integer>();
+	private ServerSocket server;
+
+	private LinkedList<Second> history = new LinkedList<Second>();
+	private Second latest;
+	private long totalSuccesses, totalFailures, totalDropped, totalMicros;
+
+	private boolean started, stop, stopped;
+	private long startTime;
+
+	/**
+	 * Results that finished during one second.
+	 */
+	private static class Window
+	{
+		private AtomicInteger successes = new AtomicInteger(),
+			failures = new AtomicInteger(), dropped = new AtomicInteger();
+		private LatencyHistogram responseTimes = new LatencyHistogram();
+
+		private void reset()
+		{
+			successes.set(0);
+			failures.set(0);
+			dropped.set(0);
+			responseTimes.reset();
+		}
+	}
+
+	/**
+	 * Metrics for one second.
+	 */
+	private static class Second
+	{
+		/** Window with the results, until they are read */
+		private Window window;
+		private long time;
+		private int second, successes, failures, dropped, running, queued;
+		private long p50, p90, p99, max, totalMicros;
+
+		private double getErrorRate()
+		{
+			int attempted = successes + failures;
+			return attempted == 0 ? 0 : failures * 100.0 / attempted;
+		}
+
+		private String toCsv()
+		{
+			return time + "," + second + "," + (successes + failures) + "," +
+				successes + "," + failures + "," + dropped + "," +
+				format(getErrorRate()) + "," + running + "," + queued + "," +
+				ms(p50) + "," + ms(p90) + "," + ms(p99) + "," + ms(max);
+		}
+
+		private String toJson()
+		{
+			return "{\"time\":" + time + ",\"second\":" + second +
+				",\"throughput\":" + (successes + failures) + ",\"successes\":" +
+				successes + ",\"failures\":" + failures + ",\"dropped\":" + dropped +
+				",\"errorRate\":" + format(getErrorRate()) + ",\"running\":" +
+				running + ",\"queued\":" + queued + ",\"p50\":" + ms(p50) +
+				",\"p90\":" + ms(p90) + ",\"p99\":" + ms(p99) + ",\"max\":" +
+				ms(max) + "}";
+		}
+	}
+
+	/**
+	 * @param dispatcher Dispatcher, for the number of requests running and
+	 *   queued
+	 */
+	public TimeSeries(BacklogDispatcher dispatcher)
+	{
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Adds a file to which each second is written. Must be called before
+	 * {@link #start(long)}.
+	 * @param file File (replaced if it exists)
+	 * @param format FORMAT_xx constant
+	 * @throws IOException If the file cannot be created
+	 */
+	public synchronized void addFile(File file, int format) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+			new FileOutputStream(file), "UTF-8"));
+		if(format == FORMAT_CSV)
+		{
+			out.println(CSV_HEADER);
+		}
+		outputs.add(out);
+		formats.add(format);
+	}
+
+	/**
+	 * Serves the latest metrics in Prometheus text format at /metrics on a
+	 * local port, until stopped.
+	 * @param port Port number
+	 * @throws IOException If the port cannot be opened
+	 */
+	public synchronized void listen(int port) throws IOException
+	{
+		server = new ServerSocket(port, 50, InetAddress.getByName(null));
+		final ServerSocket current = server;
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				serve(current);
+			}
+		}, "Time series server").start();
+	}
+
+	/**
+	 * Starts counting seconds.
+	 * @param startTime Test start time (System.currentTimeMillis()); this can
+	 *   be in the future
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start(long startTime) throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		this.startTime = startTime;
+		new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				tick();
+			}
+		}, "Time series").start();
+	}
+
+	/**
+	 * Stops counting, writes the last (partial) second, and closes files and
+	 * the server.
+	 */
+	public void stop()
+	{
+		ServerSocket exServer;
+		synchronized(this)
+		{
+			stop = true;
+			notifyAll();
+			while(started && !stopped)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+			for(PrintWriter out : outputs)
+			{
+				out.close();
+			}
+			outputs.clear();
+			formats.clear();
+			exServer = server;
+			server = null;
+		}
+		if(exServer != null)
+		{
+			try
+			{
+				exServer.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+
+	@Override
+	public void completed(TaskResult result)
+	{
+		Window window = current;
+		if(!result.isAttempted())
+		{
+			window.dropped.incrementAndGet();
+			return;
+		}
+		if(result.isSuccess())
+		{
+			window.successes.incrementAndGet();
+		}
+		else
+		{
+			window.failures.incrementAndGet();
+		}
+		window.responseTimes.record(result.getResponseMicros());
+	}
+
+	@Override
+	public void succeeded(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	@Override
+	public void failed(int taskIndex, int ms)
+	{
+		// Not used; results arrive through completed
+	}
+
+	/**
+	 * Thread that ends each second.
+	 */
+	private void tick()
+	{
+		Second pending = null;
+		for(int second = 0; ; second++)
+		{
+			boolean last;
+			synchronized(this)
+			{
+				long end = startTime + (second + 1) * 1000L;
+				while(!stop && System.currentTimeMillis() < end)
+				{
+					try
+					{
+						wait(Math.max(1, end - System.currentTimeMillis()));
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+				last = stop;
+			}
+
+			// Results before the test starts count in the first second
+			if(!last || System.currentTimeMillis() >= startTime)
+			{
+				Second finished = endSecond(second);
+				if(pending != null)
+				{
+					record(pending);
+				}
+				pending = finished;
+			}
+			if(last)
+			{
+				// All requests have finished, so the last second is complete now
+				if(pending != null)
+				{
+					record(pending);
+				}
+				synchronized(this)
+				{
+					stopped = true;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next window, clearing it; it was last read when the
+	 * previous second was recorded.
+	 * @param second Second that has finished
+	 * @return Metrics for the second, to be recorded a second later
+	 */
+	private Second endSecond(int second)
+	{
+		Second metrics = new Second();
+		metrics.window = windows[currentIndex];
+		currentIndex = (currentIndex + 1) % windows.length;
+		windows[currentIndex].reset();
+		current = windows[currentIndex];
+
+		metrics.time = startTime + second * 1000L;
+		metrics.second = second;
+		metrics.running = dispatcher.getRunning();
+		metrics.queued = dispatcher.getDepth();
+		return metrics;
+	}
+
+	/**
+	 * Reads the results of a second from its window and writes it.
+	 * @param metrics Metrics from {@link #endSecond(int)}
+	 */
+	private void record(Second metrics)
+	{
+		Window window = metrics.window;
+		metrics.window = null;
+		metrics.successes = window.successes.get();
+		metrics.failures = window.failures.get();
+		metrics.dropped = window.dropped.get();
+		LatencyHistogram times = window.responseTimes;
+		if(times.getCount() > 0)
+		{
+			metrics.p50 = times.getValueAtPercentile(50);
+			metrics.p90 = times.getValueAtPercentile(90);
+			metrics.p99 = times.getValueAtPercentile(99);
+			metrics.max = times.getMax();
+		}
+		metrics.totalMicros = Math.round(times.getMean() * times.getCount());
+
+		synchronized(this)
+		{
+			latest = metrics;
+			history.add(metrics);
+			if(history.size() > MAX_HISTORY)
+			{
+				history.removeFirst();
+			}
+			totalSuccesses += metrics.successes;
+			totalFailures += metrics.failures;
+			totalDropped += metrics.dropped;
+			totalMicros += metrics.totalMicros;
+
+			Iterator<Integer> format = formats.iterator();
+			for(PrintWriter out : outputs)
+			{
+				out.println(format.next() == FORMAT_CSV ? metrics.toCsv()
+					: metrics.toJson());
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Server thread: answers requests until the socket is closed.
+	 * @param server Server socket
+	 */
+	private void serve(ServerSocket server)
+	{
+		while(true)
+		{
+			Socket socket;
+			try
+			{
+				socket = server.accept();
+			}
+			catch(IOException e)
+			{
+				// Closed
+				return;
+			}
+			try
+			{
+				socket.setSoTimeout(5000);
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream(), "US-ASCII"));
+				String request = in.readLine();
+				while(true)
+				{
+					String header = in.readLine();
+					if(header == null || header.equals(""))
+					{
+						break;
+					}
+				}
+				String body;
+				String status;
+				if(request != null && request.matches("GET /metrics(\\?.*)? .*"))
+				{
+					status = "200 OK";
+					body = toPrometheus();
+				}
+				else
+				{
+					status = "404 Not Found";
+					body = "Not found\n";
+				}
+				byte[] data = body.getBytes("UTF-8");
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.0 " + status + "\r\n" +
+					"Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+					"Content-Length: " + data.length + "\r\n\r\n").getBytes("US-ASCII"));
+				out.write(data);
+				out.flush();
+			}
+			catch(IOException e)
+			{
+				// Ignore clients that go away
+			}
+			finally
+			{
+				try
+				{
+					socket.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the latest metrics in Prometheus text format. Request counts are
+	 * totals since the start; other values are for the last complete second.
+	 * @return Text
+	 */
+	public synchronized String toPrometheus()
+	{
+		Second metrics = latest == null ? new Second() : latest;
+		StringBuilder out = new StringBuilder();
+		out.append("# HELP loadtest_requests_total Requests finished, by " +
+			"outcome (dropped = not attempted).\n");
+		out.append("# TYPE loadtest_requests_total counter\n");
+		out.append("loadtest_requests_total{outcome=\"success\"} ").append(
+			totalSuccesses).append('\n');
+		out.append("loadtest_requests_total{outcome=\"failure\"} ").append(
+			totalFailures).append('\n');
+		out.append("loadtest_requests_total{outcome=\"dropped\"} ").append(
+			totalDropped).append('\n');
+		out.append("# HELP loadtest_throughput Requests finished in the last " +
+			"second.\n");
+		out.append("# TYPE loadtest_throughput gauge\n");
+		out.append("loadtest_throughput ").append(
+			metrics.successes + metrics.failures).append('\n');
+		out.append("# HELP loadtest_error_ratio Failed requests in the last " +
+			"second, as a fraction of those attempted.\n");
+		out.append("# TYPE loadtest_error_ratio gauge\n");
+		out.append("loadtest_error_ratio ").append(String.format(Locale.US,
+			"%.4f", metrics.getErrorRate() / 100.0)).append('\n');
+		out.append("# HELP loadtest_running Requests in flight.\n");
+		out.append("# TYPE loadtest_running gauge\n");
+		out.append("loadtest_running ").append(metrics.running).append('\n');
+		out.append("# HELP loadtest_queued Requests waiting for a thread.\n");
+		out.append("# TYPE loadtest_queued gauge\n");
+		out.append("loadtest_queued ").append(metrics.queued).append('\n');
+		out.append("# HELP loadtest_response_seconds Response time, including " +
+			"any delay before the request started (quantiles for the last " +
+			"second).\n");
+		out.append("# TYPE loadtest_response_seconds summary\n");
+		appendQuantile(out, "0.5", metrics.p50);
+		appendQuantile(out, "0.9", metrics.p90);
+		appendQuantile(out, "0.99", metrics.p99);
+		appendQuantile(out, "1", metrics.max);
+		out.append("loadtest_response_seconds_sum ").append(
+			String.format(Locale.US, "%.6f", totalMicros / 1000000.0)).append('\n');
+		out.append("loadtest_response_seconds_count ").append(
+			totalSuccesses + totalFailures).append('\n');
+		return out.toString();
+	}
+
+	private static void appendQuantile(StringBuilder out, String quantile,
+		long micros)
+	{
+		out.append("loadtest_response_seconds{quantile=\"").append(quantile).append(
+			"\"} ").append(String.format(Locale.US, "%.6f", micros / 1000000.0)).append(
+			'\n');
+	}
+
+	/**
+	 * Gets the metrics for each second so far (up to the last hour).
+	 * @return JSON array of objects with time (System.currentTimeMillis() at
+	 *   start of second), second (from test start), throughput (requests
+	 *   finished), successes, failures, dropped, errorRate (percentage of
+	 *   attempted requests), running and queued (at end of second), and p50,
+	 *   p90, p99 and max response time (milliseconds)
+	 */
+	public synchronized String toJson()
+	{
+		StringBuilder out = new StringBuilder("[");
+		for(Second metrics : history)
+		{
+			if(out.length() > 1)
+			{
+				out.append(',');
+			}
+			out.append(metrics.toJson());
+		}
+		return out.append(']').toString();
+	}
+
+	private static String ms(long micros)
+	{
+		return format(micros / 1000.0);
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.US, "%.1f", value);
+	}
+}
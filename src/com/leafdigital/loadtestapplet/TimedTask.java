@@ -0,0 +1,14 @@
+package com.leafdigital.loadtestapplet;
+
+/**
+ * Task that can record how long each phase of its work took.
+ */
+public interface TimedTask extends Runnable
+{
+	/**
+	 * Runs the task, recording phase times.
+	 * @param result Result in which to record phase times with
+	 *   {@link TaskResult#setPhase(int, long)}
+	 */
+	public void run(TaskResult result);
+}
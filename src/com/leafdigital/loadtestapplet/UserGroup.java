@@ -0,0 +1,286 @@
+package com.leafdigital.loadtestapplet;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * A fixed number of virtual users, each of which makes a request, waits for
+ * the response, waits for a think time, and repeats until the group's time
+ * is up. This is a closed loop: a slow server gets fewer requests, so the
+ * load generator cannot fall behind, and the throughput shows what the
+ * server can do with that many users.
+ * <p>
+ * Each user has its own thread. Results go to the group's own statistics
+ * as well as to a reporter, so that groups with different numbers of users
+ * can be compared. If the task uses sessions, each user keeps its own
+ * session from the pool while it runs.
+ */
+public class UserGroup
+{
+	private int time, users, duration;
+	private ThinkTime thinkTime;
+	private Runnable task;
+	private ThreadHandler.Reporter reporter;
+	private WorkScheduler scheduler;
+
+	private ResultStatistics statistics = new ResultStatistics();
+
+	private boolean started, stop;
+	private int running;
+	private long startAt, endAt, finishedAt;
+
+	/**
+	 * @param time Time in milliseconds from test start at which users begin
+	 * @param users Number of users
+	 * @param duration Milliseconds for which users make requests
+	 * @param thinkTime Think time between requests
+	 * @param task Task each user runs for a request
+	 * @param reporter Reporter for results
+	 * @param scheduler Scheduler of the test, from which results take their
+	 *   indexes
+	 */
+	public UserGroup(int time, int users, int duration, ThinkTime thinkTime,
+		Runnable task, ThreadHandler.Reporter reporter, WorkScheduler scheduler)
+	{
+		this.time = time;
+		this.users = users;
+		this.duration = duration;
+		this.thinkTime = thinkTime;
+		this.task = task;
+		this.reporter = reporter;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return Time in milliseconds from test start at which users begin
+	 */
+	public int getTime()
+	{
+		return time;
+	}
+
+	/**
+	 * @return Number of users
+	 */
+	public int getUsers()
+	{
+		return users;
+	}
+
+	/**
+	 * @return Milliseconds for which users make requests
+	 */
+	public int getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Starts the user threads.
+	 * @param testStart Test start time (System.currentTimeMillis()); users
+	 *   begin at this plus the group's time
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start(long testStart) throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Already started");
+		}
+		started = true;
+		startAt = testStart + time;
+		endAt = startAt + duration;
+		running = users;
+		for(int i=0; i<users; i++)
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					user();
+				}
+			}, "Virtual user " + time + "/" + i).start();
+		}
+	}
+
+	private void user()
+	{
+		Random random = new Random();
+		TaskResult result = new TaskResult();
+		SessionPool sessions = task instanceof LoadTestTask
+			? ((LoadTestTask)task).getSessions() : null;
+		CookieJar jar = sessions == null ? null : sessions.take();
+		try
+		{
+			synchronized(this)
+			{
+				while(!stop && System.currentTimeMillis() < startAt)
+				{
+					wait(Math.max(1, startAt - System.currentTimeMillis()));
+				}
+			}
+			while(true)
+			{
+				synchronized(this)
+				{
+					if(stop || System.currentTimeMillis() >= endAt)
+					{
+						break;
+					}
+				}
+
+				AllocationCounter.sinceLast();
+				result.clearPhases();
+				long start = System.nanoTime();
+				boolean success;
+				try
+				{
+					if(jar != null)
+					{
+						((LoadTestTask)task).run(result, jar);
+					}
+					else if(task instanceof TimedTask)
+					{
+						((TimedTask)task).run(result);
+					}
+					else
+					{
+						task.run();
+					}
+					success = true;
+				}
+				catch(Throwable t)
+				{
+					success = false;
+				}
+				result.set(scheduler.nextIndex(), start, start, System.nanoTime(),
+					success, AllocationCounter.sinceLast());
+				statistics.completed(result);
+				try
+				{
+					result.report(reporter);
+				}
+				catch(Throwable t)
+				{
+					t.printStackTrace();
+				}
+
+				long think = thinkTime.next(random);
+				synchronized(this)
+				{
+					long thinkEnd = System.currentTimeMillis() + think;
+					while(!stop)
+					{
+						long remaining = thinkEnd - System.currentTimeMillis();
+						if(remaining <= 0)
+						{
+							break;
+						}
+						wait(remaining);
+					}
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		finally
+		{
+			if(jar != null)
+			{
+				sessions.give(jar);
+			}
+			synchronized(this)
+			{
+				running--;
+				if(running == 0)
+				{
+					finishedAt = System.currentTimeMillis();
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until all users have finished (if started).
+	 */
+	public synchronized void waitForFinish()
+	{
+		while(running > 0)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Stops all users after their current request and waits for them.
+	 */
+	public synchronized void stop()
+	{
+		stop = true;
+		notifyAll();
+		waitForFinish();
+	}
+
+	/**
+	 * @return Statistics for this group's requests
+	 */
+	public ResultStatistics getStatistics()
+	{
+		return statistics;
+	}
+
+	/**
+	 * @return Requests completed per second since the users began, or 0 if
+	 *   they have not
+	 */
+	public synchronized double getThroughput()
+	{
+		if(!started)
+		{
+			return 0;
+		}
+		long end = running > 0 ? System.currentTimeMillis() : finishedAt;
+		long elapsed = end - startAt;
+		if(elapsed <= 0)
+		{
+			return 0;
+		}
+		return (statistics.getSuccesses() + statistics.getFailures()) * 1000.0 /
+			elapsed;
+	}
+
+	/**
+	 * Gets the group's results as a JSON object.
+	 * @return JSON object with users, time, duration, throughput (requests per
+	 *   second) and statistics (as {@link ResultStatistics#toJson()})
+	 */
+	public String toJson()
+	{
+		return "{\"users\":" + users + ",\"time\":" + time + ",\"duration\":" +
+			duration + ",\"throughput\":" +
+			String.format(Locale.US, "%.1f", getThroughput()) +
+			",\"statistics\":" + statistics.toJson() + "}";
+	}
+
+	/**
+	 * Writes the group's results as text.
+	 * @param out Output
+	 */
+	public void write(PrintWriter out)
+	{
+		out.println("Users:         " + users + " (from " + time + " ms for " +
+			duration + " ms)");
+		out.println("Throughput:    " +
+			String.format(Locale.US, "%.1f", getThroughput()) + " requests/s");
+		statistics.write(out);
+	}
+}
@@ -0,0 +1,209 @@
+package com.leafdigital.loadtestapplet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Dispatcher that runs every task on its own virtual thread, with no
+ * per-thread handler objects. The number of tasks in flight is limited only
+ * by the optional maximum.
+ * <p>
+ * Virtual threads need Java 21. On older versions this falls back to a
+ * cached pool of ordinary threads (and prints a warning).
+ */
+public class VirtualThreadDispatcher implements TaskDispatcher
+{
+	private final static String CONSOLE_TAG =
+		"leafdigital VirtualThreadDispatcher: ";
+
+	private int maxTasks;
+	private ThreadHandler.Reporter reporter;
+
+	private ExecutorService executor;
+	private int running;
+	private volatile CapacityListener capacityListener;
+
+	/**
+	 * @param maxTasks Maximum number of tasks in flight (0 = unlimited)
+	 * @param reporter Reporter for task results
+	 */
+	public VirtualThreadDispatcher(int maxTasks, ThreadHandler.Reporter reporter)
+	{
+		this.maxTasks = maxTasks;
+		this.reporter = reporter;
+	}
+
+	private static ExecutorService createExecutor()
+	{
+		try
+		{
+			// Use reflection so this still compiles and runs on older versions.
+
+			// Executors.newVirtualThreadPerTaskExecutor();
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		}
+		catch(NoSuchMethodException e)
+		{
+			System.err.println(CONSOLE_TAG +
+				"Virtual threads not supported, using ordinary threads");
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory()
+		{
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Load test task thread " + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public boolean runTask(final int index, final long scheduled,
+		final Runnable task)
+	{
+		ExecutorService current;
+		synchronized(this)
+		{
+			if(maxTasks != 0 && running >= maxTasks)
+			{
+				return false;
+			}
+			if(executor == null)
+			{
+				executor = createExecutor();
+			}
+			current = executor;
+			running++;
+		}
+
+		try
+		{
+			current.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					TaskResult result = new TaskResult();
+					long start = System.nanoTime();
+					boolean success;
+					try
+					{
+						if(task instanceof TimedTask)
+						{
+							((TimedTask)task).run(result);
+						}
+						else
+						{
+							task.run();
+						}
+						success = true;
+					}
+					catch(Throwable t)
+					{
+						success = false;
+					}
+					try
+					{
+						result.set(index, scheduled, start, System.nanoTime(), success,
+							-1);
+						result.report(reporter);
+					}
+					finally
+					{
+						finished();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e)
+		{
+			// Dispatcher was stopped
+			finished();
+			return false;
+		}
+		return true;
+	}
+
+	private void finished()
+	{
+		synchronized(this)
+		{
+			running--;
+			notifyAll();
+		}
+		CapacityListener current = capacityListener;
+		if(current != null)
+		{
+			current.capacityAvailable();
+		}
+	}
+
+	@Override
+	public void setCapacityListener(CapacityListener listener)
+	{
+		capacityListener = listener;
+	}
+
+	@Override
+	public synchronized void prestart()
+	{
+		if(executor == null)
+		{
+			executor = createExecutor();
+		}
+	}
+
+	@Override
+	public synchronized int getRunning()
+	{
+		return running;
+	}
+
+	@Override
+	public synchronized void waitForIdle()
+	{
+		while(running > 0)
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+		ExecutorService exExecutor;
+		synchronized(this)
+		{
+			exExecutor = executor;
+			executor = null;
+		}
+		if(exExecutor == null)
+		{
+			return;
+		}
+		exExecutor.shutdownNow();
+		try
+		{
+			exExecutor.awaitTermination(LoadTestTask.READ_TIMEOUT,
+				TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e)
+		{
+		}
+	}
+}
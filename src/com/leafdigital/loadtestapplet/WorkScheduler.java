@@ -1,26 +1,109 @@
 package com.leafdigital.loadtestapplet;
 
-import java.util.*;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Manages the list of tasks for a specific test run. When the test run starts,
  * it triggers all these tasks (if possible) at the relevant times.
+ * <p>
+ * Tasks are held in a hierarchical timing wheel, so adding a task takes
+ * constant time however many there are, and all tasks due in the same
+ * millisecond are dispatched together without holding the lock.
+ * <p>
+ * As well as individual tasks, a rate profile can be added; its events are
+ * generated as the test runs, and only the next one is held in the wheel.
+ * <p>
+ * Time is measured with System.nanoTime(), so changes to the system clock
+ * do not affect the schedule. Each millisecond's tasks are taken from the
+ * wheel a little early and each is then sent at its own time (to well under
+ * a millisecond) by waiting, then parking, then (with more than one
+ * processor) spinning. How late each task is sent is recorded as the
+ * dispatch lag. If the scheduler falls behind, for example because the
+ * dispatcher blocked, the catch-up policy decides what happens to tasks that
+ * are late: 'burst' (default) sends them all at once, 'skip' does not send
+ * tasks more than a tolerance late, and 'shift' moves the rest of the
+ * schedule later by the delay.
+ * <p>
+ * One thread can only send so many tasks, so the schedule can be split
+ * between several shards (normally one per processor). Each shard has its
+ * own wheel and thread; tasks are shared out in turn and each profile is
+ * split so that each shard runs every nth event. The handler is still told
+ * of progress and completion once for the whole schedule, and must accept
+ * tasks from several threads at once. With the 'shift' policy, each shard
+ * shifts its own part of the schedule.
  */
 public class WorkScheduler
 {
-	private SortedSet<TaskTime> work = new TreeSet<TaskTime>();
-	private boolean started, stop, stopped;
-	private int index = 0;
-	private Handler handler;
+	/** Catch-up policy: late tasks are all sent at once */
+	public final static int CATCHUP_BURST = 0;
+	/** Catch-up policy: tasks too late are not sent */
+	public final static int CATCHUP_SKIP = 1;
+	/** Catch-up policy: the rest of the schedule moves later */
+	public final static int CATCHUP_SHIFT = 2;
+
+	private final static String[] POLICY_NAMES = { "burst", "skip", "shift" };
+
+	/** Default lateness (milliseconds) before skip or shift applies */
+	public final static int DEFAULT_TOLERANCE = 10;
+
+	/** Largest number of shards */
+	public final static int MAX_SHARDS = 256;
 
 	private final static int ASSUMED_TASK_LENGTH = 1000;
 
+	/** Time before a task at which the scheduler stops waiting and parks */
+	private final static long PARK_NANOS = 2000000L;
+
+	/** Time before a task at which the scheduler spins (0 on one processor) */
+	private final static long SPIN_NANOS =
+		Runtime.getRuntime().availableProcessors() > 1 ? 100000L : 0;
+
+	private Shard[] shards;
+	private int nextShard;
+	private boolean started;
+	private AtomicInteger index = new AtomicInteger();
+	private int lastTime;
+	private long startAt;
+	private Handler handler;
+
+	private int policy = CATCHUP_BURST;
+	private long toleranceNanos = DEFAULT_TOLERANCE * 1000000L;
+
+	/** Shards that have not finished their tasks */
+	private AtomicInteger running = new AtomicInteger();
+	private int percent;
+
+	private LatencyHistogram lag = new LatencyHistogram();
+
 	/**
 	 * @param handler Handler for tasks
 	 */
 	public WorkScheduler(Handler handler)
 	{
+		this(handler, 1);
+	}
+
+	/**
+	 * @param handler Handler for tasks
+	 * @param shards Number of shards (threads) to split the schedule between
+	 * @throws IllegalArgumentException If shards is out of range
+	 */
+	public WorkScheduler(Handler handler, int shards)
+		throws IllegalArgumentException
+	{
+		if(shards < 1 || shards > MAX_SHARDS)
+		{
+			throw new IllegalArgumentException("Invalid shard count: " + shards);
+		}
 		this.handler = handler;
+		this.shards = new Shard[shards];
+		for(int i=0; i<shards; i++)
+		{
+			this.shards[i] = new Shard();
+		}
 	}
 
 	/** Interface for owner object. */
@@ -33,11 +116,22 @@ public class WorkScheduler
 		public void percentComplete(int percent);
 
 		/**
-		 * Called to request that the task should be run now.
+		 * Called to request that the task should be run now. With more than one
+		 * shard, this is called from several threads at once.
 		 * @param index Index
+		 * @param scheduled Time the task was scheduled to run (nanoTime); this
+		 *   may be earlier than now if the scheduler is running late
 		 * @param task Task to run
 		 */
-		public void runTask(int index, Runnable task);
+		public void runTask(int index, long scheduled, Runnable task);
+
+		/**
+		 * Called instead of runTask when a task is too late to run under the
+		 * 'skip' catch-up policy. The task should be counted as not attempted.
+		 * @param index Index
+		 * @param scheduled Time the task was scheduled to run (nanoTime)
+		 */
+		public void skipTask(int index, long scheduled);
 
 		/**
 		 * Called to indicate that the test has completed.
@@ -45,34 +139,37 @@ public class WorkScheduler
 		public void workFinished();
 	}
 
-	private static class TaskTime implements Comparable<TaskTime>
+	private static class TaskTime
 	{
 		private Runnable task;
 		private int time, index;
 
+		/** Time in nanoseconds from test start (time is this in milliseconds) */
+		private long nanos;
+
+		/** Next task in the same wheel slot */
+		private TaskTime next;
+
+		/** Profile that generates further events, or null for a single task */
+		private RateProfile profile;
+		private int profileStart;
+
 		private TaskTime(int index, Runnable task, int time)
 		{
 			this.index = index;
 			this.task = task;
 			this.time = time;
+			this.nanos = time * 1000000L;
 		}
 
-		@Override
-		public int compareTo(TaskTime o)
+		/**
+		 * Sets the time of the next profile event.
+		 * @param profileNanos Time in nanoseconds from start of profile
+		 */
+		private void setProfileTime(long profileNanos)
 		{
-			if(time < o.time)
-			{
-				return -1;
-			}
-			else if(time > o.time)
-			{
-				return 1;
-			}
-			else
-			{
-				// Arbitrary but consistent order
-				return index - o.index;
-			}
+			nanos = profileStart * 1000000L + profileNanos;
+			time = (int)(nanos / 1000000L);
 		}
 
 		/**
@@ -101,125 +198,765 @@ public class WorkScheduler
 	}
 
 	/**
-	 * Adds a new task to the schedule.
-	 * @param time Time in milliseconds since test start
-	 * @param task Task to run
-	 * @return Index for task
-	 * @throws IllegalStateException If already started
+	 * Hierarchical timing wheel with 1ms ticks. Level 0 has a slot for each of
+	 * the next 256 milliseconds; each higher level has 256 slots each covering
+	 * a whole revolution of the level below. When the current time reaches the
+	 * start of a higher-level slot, its tasks move down a level. Each slot is
+	 * a linked list in the order tasks were added.
 	 */
-	public synchronized int addTask(int time, Runnable task)
-		throws IllegalStateException
+	private static class Wheel
 	{
-		if(started)
+		private final static int LEVELS = 4, SLOT_BITS = 8,
+			SLOTS = 1 << SLOT_BITS, SLOT_MASK = SLOTS - 1;
+
+		private TaskTime[][] heads = new TaskTime[LEVELS][SLOTS],
+			tails = new TaskTime[LEVELS][SLOTS];
+
+		/** Current time; all tasks before this have been taken */
+		private int now;
+		private int size;
+
+		/**
+		 * Adds a task. Tasks for times already passed go in the current slot.
+		 * @param task Task
+		 */
+		private void add(TaskTime task)
 		{
-			throw new IllegalStateException("Cannot add tasks after start of test");
+			size++;
+			insert(task);
 		}
-		int thisIndex = index++;
-		work.add(new TaskTime(thisIndex, task, time));
-		return thisIndex;
-	}
 
-	/**
-	 * Starts test thread.
-	 * @throws IllegalStateException If already started
-	 */
-	public synchronized void start() throws IllegalStateException
-	{
-		if(started)
+		private void insert(TaskTime task)
 		{
-			throw new IllegalStateException("Test already started");
+			int time = Math.max(task.getTime(), now);
+			int level = 0;
+			while(level < LEVELS - 1 && (time ^ now) >>> (SLOT_BITS * (level + 1)) != 0)
+			{
+				level++;
+			}
+			int slot = (time >>> (SLOT_BITS * level)) & SLOT_MASK;
+			task.next = null;
+			if(heads[level][slot] == null)
+			{
+				heads[level][slot] = task;
+			}
+			else
+			{
+				tails[level][slot].next = task;
+			}
+			tails[level][slot] = task;
+		}
+
+		/**
+		 * @return Number of tasks not yet taken
+		 */
+		private int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Takes all tasks for the current time, then moves to the next
+		 * millisecond.
+		 * @return Linked list of tasks, or null if none
+		 */
+		private TaskTime takeAndAdvance()
+		{
+			int slot = now & SLOT_MASK;
+			TaskTime result = heads[0][slot];
+			heads[0][slot] = null;
+			tails[0][slot] = null;
+			for(TaskTime task = result; task != null; task = task.next)
+			{
+				size--;
+			}
+
+			now++;
+			// Cascade from higher levels when a lower level wraps round
+			for(int level = 1; level < LEVELS &&
+				(now & ((1 << (SLOT_BITS * level)) - 1)) == 0; level++)
+			{
+				cascade(level);
+			}
+			return result;
+		}
+
+		private void cascade(int level)
+		{
+			int slot = (now >>> (SLOT_BITS * level)) & SLOT_MASK;
+			TaskTime task = heads[level][slot];
+			heads[level][slot] = null;
+			tails[level][slot] = null;
+			while(task != null)
+			{
+				TaskTime next = task.next;
+				insert(task);
+				task = next;
+			}
 		}
 
-		// Start thread
-		new Thread(new Runnable()
+		/**
+		 * @return Current time of wheel (next time to be taken)
+		 */
+		private int getNow()
 		{
-			@Override
-			public void run()
+			return now;
+		}
+
+		/**
+		 * @return Earliest time at which there may be a task (a cascade may be
+		 *   due then rather than a task)
+		 */
+		private int getNextTime()
+		{
+			for(int level = 0; level < LEVELS; level++)
 			{
-				thread();
+				int shift = SLOT_BITS * level;
+				int current = (now >>> shift) & SLOT_MASK;
+				// At level 0 the current slot counts; at higher levels it has already
+				// been cascaded
+				for(int slot = level == 0 ? current : current + 1; slot < SLOTS; slot++)
+				{
+					if(heads[level][slot] != null)
+					{
+						if(level == 0)
+						{
+							return (now & ~SLOT_MASK) | slot;
+						}
+						int above = shift + SLOT_BITS;
+						return (above >= 32 ? 0 : (now >>> above) << above) | (slot << shift);
+					}
+				}
 			}
-		}, "Work scheduler").start();
+			return Integer.MAX_VALUE;
+		}
 	}
 
-	private void thread()
+	/**
+	 * Part of the schedule with its own wheel and thread.
+	 */
+	private class Shard
 	{
-		try
+		private Wheel work = new Wheel();
+		private boolean stop, stopped;
+
+		// Tasks from one tick, sorted by time before they are sent (shard
+		// thread only); index is -1 for profile events, which are numbered when
+		// they are sent
+		private long[] batchNanos = new long[16];
+		private int[] batchIndex = new int[16];
+		private Runnable[] batchTasks = new Runnable[16];
+		private int batchSize;
+
+		/** Test start (nanoTime); moves later when the schedule is shifted */
+		private long startNanos;
+
+		private volatile long skipped, shifted;
+
+		/**
+		 * Starts the shard thread.
+		 * @param start Test start (nanoTime)
+		 * @param name Thread name
+		 */
+		private void start(long start, String name)
 		{
-			long startTime = System.currentTimeMillis();
-			int percent = 0;
-			int endTime = work.last().getTime() + ASSUMED_TASK_LENGTH;
-			while(true)
+			startNanos = start;
+			new Thread(new Runnable()
 			{
-				TaskTime next;
-				synchronized(this)
+				@Override
+				public void run()
+				{
+					thread();
+				}
+			}, name).start();
+		}
+
+		private void thread()
+		{
+			try
+			{
+				if(!waitUntil(startNanos))
+				{
+					return;
+				}
+				int percent = 0;
+				long endTime;
+				synchronized(WorkScheduler.this)
+				{
+					endTime = lastTime + ASSUMED_TASK_LENGTH;
+				}
+				while(true)
 				{
-					if(work.isEmpty())
+					TaskTime due = null;
+					int tick = 0;
+					long wakeAt = 0;
+					boolean finished = false;
+					int time = 0;
+					synchronized(this)
+					{
+						if(stop)
+						{
+							return;
+						}
+						if(work.size() == 0)
+						{
+							finished = true;
+						}
+						else
+						{
+							long elapsed = System.nanoTime() - startNanos;
+							time = (int)(elapsed / 1000000L);
+
+							// Take everything due by the time the shard would finish
+							// waiting (catching up if late); each task then waits for its
+							// exact time
+							int ahead = (int)((elapsed + PARK_NANOS) / 1000000L);
+							while(work.getNow() <= ahead && due == null)
+							{
+								tick = work.getNow();
+								due = work.takeAndAdvance();
+							}
+							if(due == null)
+							{
+								wakeAt = startNanos + work.getNextTime() * 1000000L -
+									PARK_NANOS;
+							}
+						}
+					}
+
+					if(finished)
 					{
-						handler.workFinished();
+						shardFinished();
 						return;
 					}
-					next = work.first();
-					work.remove(next);
-					while(true)
+					int newPercent = (int)Math.min((time * 100L) / endTime, 100);
+					if(newPercent != percent)
 					{
-						int time = (int)(System.currentTimeMillis() - startTime);
-						int newPercent = Math.min((time * 100) / endTime, 100);
-						if(newPercent != percent)
+						percent = newPercent;
+						progress(percent);
+					}
+					if(due == null)
+					{
+						if(!waitUntil(wakeAt))
 						{
-							percent = newPercent;
-							handler.percentComplete(percent);
+							return;
 						}
+						continue;
+					}
 
-						if(time >= next.getTime() || stop)
+					// Collect the tick's tasks outside the lock
+					batchSize = 0;
+					TaskTime reinsert = null;
+					for(TaskTime task = due; task != null;)
+					{
+						TaskTime next = task.next;
+						if(task.profile == null)
+						{
+							addToBatch(task.nanos, task.getIndex(), task.getTask());
+						}
+						else if(takeProfile(task, tick))
+						{
+							task.next = reinsert;
+							reinsert = task;
+						}
+						task = next;
+					}
+
+					// Put profiles back in the wheel for their next event
+					if(reinsert != null)
+					{
+						synchronized(this)
 						{
-							break;
+							while(reinsert != null)
+							{
+								TaskTime next = reinsert.next;
+								work.add(reinsert);
+								reinsert = next;
+							}
 						}
-						wait(next.getTime() - time);
 					}
-					if(stop)
+
+					if(!dispatchBatch())
 					{
 						return;
 					}
-					handler.runTask(next.getIndex(), next.getTask());
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					stopped = true;
+					notifyAll();
 				}
 			}
 		}
-		catch(InterruptedException e)
+
+		/**
+		 * Adds all events from a profile up to the current tick to the batch.
+		 * Only called from shard thread.
+		 * @param task Wheel entry for profile
+		 * @param tick Time of current tick
+		 * @return True if the profile has more events
+		 */
+		private boolean takeProfile(TaskTime task, int tick)
 		{
+			do
+			{
+				addToBatch(task.nanos, -1, task.getTask());
+				long next = task.profile.nextNanos();
+				if(next == -1)
+				{
+					return false;
+				}
+				task.setProfileTime(next);
+			}
+			while(task.getTime() <= tick);
+			return true;
+		}
+
+		/**
+		 * Adds a task to the batch, keeping it in time order. Tasks are usually
+		 * added in order already, so this seldom moves any.
+		 * @param nanos Time in nanoseconds from test start
+		 * @param taskIndex Index of task, or -1 to number it when it is sent
+		 * @param task Task
+		 */
+		private void addToBatch(long nanos, int taskIndex, Runnable task)
+		{
+			if(batchSize == batchNanos.length)
+			{
+				long[] newNanos = new long[batchSize * 2];
+				int[] newIndex = new int[batchSize * 2];
+				Runnable[] newTasks = new Runnable[batchSize * 2];
+				System.arraycopy(batchNanos, 0, newNanos, 0, batchSize);
+				System.arraycopy(batchIndex, 0, newIndex, 0, batchSize);
+				System.arraycopy(batchTasks, 0, newTasks, 0, batchSize);
+				batchNanos = newNanos;
+				batchIndex = newIndex;
+				batchTasks = newTasks;
+			}
+			int pos = batchSize++;
+			while(pos > 0 && batchNanos[pos - 1] > nanos)
+			{
+				batchNanos[pos] = batchNanos[pos - 1];
+				batchIndex[pos] = batchIndex[pos - 1];
+				batchTasks[pos] = batchTasks[pos - 1];
+				pos--;
+			}
+			batchNanos[pos] = nanos;
+			batchIndex[pos] = taskIndex;
+			batchTasks[pos] = task;
+		}
+
+		/**
+		 * Sends each task in the batch at its time, applying the catch-up policy
+		 * to late tasks. Only called from shard thread.
+		 * @return False if the shard was stopped
+		 * @throws InterruptedException If interrupted while waiting
+		 */
+		private boolean dispatchBatch() throws InterruptedException
+		{
+			for(int i=0; i<batchSize; i++)
+			{
+				Runnable task = batchTasks[i];
+				batchTasks[i] = null;
+				long scheduled = startNanos + batchNanos[i];
+				if(!waitUntil(scheduled))
+				{
+					return false;
+				}
+				long now = System.nanoTime();
+				long late = now - scheduled;
+				lag.record(late / 1000L);
+				int taskIndex = batchIndex[i] == -1 ? index.getAndIncrement()
+					: batchIndex[i];
+				if(late > toleranceNanos && policy != CATCHUP_BURST)
+				{
+					if(policy == CATCHUP_SKIP)
+					{
+						skipped++;
+						handler.skipTask(taskIndex, scheduled);
+						continue;
+					}
+					// Move the rest of the schedule (including the rest of this batch)
+					startNanos += late;
+					shifted += late;
+					scheduled = now;
+				}
+				handler.runTask(taskIndex, scheduled, task);
+			}
+			batchSize = 0;
+			return true;
 		}
-		finally
+
+		/**
+		 * Waits until a given time. Long waits can be ended by
+		 * {@link #stop()}; the last part of the wait parks, then spins, so that
+		 * it ends close to the time.
+		 * @param target Time to wait for (nanoTime)
+		 * @return False if the shard was stopped
+		 * @throws InterruptedException If interrupted
+		 */
+		private boolean waitUntil(long target) throws InterruptedException
 		{
+			while(true)
+			{
+				long remaining = target - System.nanoTime();
+				if(remaining > PARK_NANOS)
+				{
+					synchronized(this)
+					{
+						if(stop)
+						{
+							return false;
+						}
+						wait(Math.max(1, (remaining - PARK_NANOS) / 1000000L));
+					}
+				}
+				else if(remaining > SPIN_NANOS)
+				{
+					LockSupport.parkNanos(remaining - SPIN_NANOS);
+				}
+				else if(remaining > 0)
+				{
+					Thread.yield();
+				}
+				else
+				{
+					break;
+				}
+			}
 			synchronized(this)
 			{
-				stopped = true;
-				notifyAll();
+				return !stop;
+			}
+		}
+
+		/**
+		 * Stops the shard thread (if running) and waits for it to complete.
+		 */
+		private synchronized void stop()
+		{
+			stop = true;
+			notifyAll();
+			try
+			{
+				while(!stopped)
+				{
+					wait();
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Takes the next task index, for a task run outside the schedule (such as
+	 * by a {@link UserGroup}), so that every result in the test has its own
+	 * index.
+	 * @return Index for task
+	 */
+	public int nextIndex()
+	{
+		return index.getAndIncrement();
+	}
+
+	/**
+	 * Adds a new task to the schedule.
+	 * @param time Time in milliseconds since test start
+	 * @param task Task to run
+	 * @return Index for task
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized int addTask(int time, Runnable task)
+		throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Cannot add tasks after start of test");
+		}
+		int thisIndex = index.getAndIncrement();
+		time = Math.max(time, 0);
+		shards[nextShard].work.add(new TaskTime(thisIndex, task, time));
+		nextShard = (nextShard + 1) % shards.length;
+		lastTime = Math.max(lastTime, time);
+		return thisIndex;
+	}
+
+	/**
+	 * Adds a rate profile to the schedule. The same task is run for every
+	 * event in the profile; each event gets its own index when it runs.
+	 * @param time Time in milliseconds since test start at which the profile
+	 *   begins
+	 * @param profile Profile that generates event times
+	 * @param task Task to run for each event
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void addProfile(int time, RateProfile profile,
+		Runnable task) throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Cannot add tasks after start of test");
+		}
+		time = Math.max(time, 0);
+		RateProfile[] parts = profile.split(shards.length);
+		for(int i=0; i<shards.length; i++)
+		{
+			long first = parts[i].nextNanos();
+			if(first == -1)
+			{
+				continue;
+			}
+			TaskTime taskTime = new TaskTime(-1, task, time);
+			taskTime.profile = parts[i];
+			taskTime.profileStart = time;
+			taskTime.setProfileTime(first);
+			shards[i].work.add(taskTime);
+		}
+		lastTime = Math.max(lastTime, time + profile.getDuration());
+	}
+
+	/**
+	 * Sets what happens when the scheduler falls behind.
+	 * @param policy CATCHUP_xx constant
+	 * @param tolerance Milliseconds a task may be late before the policy
+	 *   applies (not used for CATCHUP_BURST)
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void setCatchUp(int policy, int tolerance)
+		throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Cannot change policy after start");
+		}
+		this.policy = policy;
+		this.toleranceNanos = tolerance * 1000000L;
+	}
+
+	/**
+	 * Gets a catch-up policy from its name.
+	 * @param name Name: 'burst', 'skip', or 'shift'
+	 * @return CATCHUP_xx constant
+	 * @throws IllegalArgumentException If the name is not recognised
+	 */
+	public static int parsePolicy(String name) throws IllegalArgumentException
+	{
+		for(int i=0; i<POLICY_NAMES.length; i++)
+		{
+			if(POLICY_NAMES[i].equals(name))
+			{
+				return i;
 			}
 		}
+		throw new IllegalArgumentException("Unknown catch-up policy: " + name);
+	}
+
+	/**
+	 * Gets a number of shards from text.
+	 * @param text Number, or 'auto' for one per processor
+	 * @return Number of shards
+	 * @throws IllegalArgumentException If the text is not valid
+	 */
+	public static int parseShards(String text) throws IllegalArgumentException
+	{
+		if(text.equals("auto"))
+		{
+			return Math.min(Runtime.getRuntime().availableProcessors(), MAX_SHARDS);
+		}
+		if(!text.matches("[1-9][0-9]{0,2}") || Integer.parseInt(text) > MAX_SHARDS)
+		{
+			throw new IllegalArgumentException("Invalid shard count: " + text);
+		}
+		return Integer.parseInt(text);
+	}
+
+	/**
+	 * Starts test threads.
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start() throws IllegalStateException
+	{
+		if(started)
+		{
+			throw new IllegalStateException("Test already started");
+		}
+		started = true;
+
+		// All shards use the same start time, taken from the system clock once
+		long start = System.nanoTime() +
+			Math.max(0, startAt - System.currentTimeMillis()) * 1000000L;
+		running.set(shards.length);
+		for(int i=0; i<shards.length; i++)
+		{
+			shards[i].start(start, shards.length == 1 ? "Work scheduler"
+				: "Work scheduler " + (i + 1));
+		}
+	}
+
+	/**
+	 * Starts test threads, with the test beginning at a given time. This lets
+	 * several load generators (with synchronised clocks) start together.
+	 * @param startAt Time to begin (System.currentTimeMillis()); if it has
+	 *   passed, the test begins at once
+	 * @throws IllegalStateException If already started
+	 */
+	public synchronized void start(long startAt) throws IllegalStateException
+	{
+		this.startAt = startAt;
+		start();
+	}
+
+	/**
+	 * Called by a shard when it reaches a new percentage; tells the handler
+	 * the first time any shard reaches it.
+	 * @param shardPercent Percentage complete
+	 */
+	private synchronized void progress(int shardPercent)
+	{
+		if(shardPercent > percent)
+		{
+			percent = shardPercent;
+			handler.percentComplete(percent);
+		}
 	}
 
 	/**
-	 * Stops thread (if running) and waits for it to complete.
+	 * Called by a shard when it has sent all its tasks; tells the handler
+	 * once all shards have finished.
 	 */
-	public synchronized void stop()
+	private void shardFinished()
 	{
-		if(!started)
+		if(running.decrementAndGet() == 0)
 		{
-			// Ignore error
-			return;
+			handler.workFinished();
 		}
+	}
 
-		stop = true;
-		notifyAll();
-		try
+	/**
+	 * Stops threads (if running) and waits for them to complete.
+	 */
+	public void stop()
+	{
+		synchronized(this)
 		{
-			while(!stopped)
+			if(!started)
 			{
-				wait();
+				// Ignore error
+				return;
 			}
 		}
-		catch(InterruptedException e)
+		for(int i=0; i<shards.length; i++)
 		{
+			shards[i].stop();
 		}
 	}
 
+	/**
+	 * @return Number of shards (threads) the schedule is split between
+	 */
+	public int getShards()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * @return Histogram of how late each task was sent (microseconds after
+	 *   its scheduled time)
+	 */
+	public LatencyHistogram getLag()
+	{
+		return lag;
+	}
+
+	/**
+	 * @return Number of tasks not sent because they were too late (only with
+	 *   the 'skip' catch-up policy)
+	 */
+	public long getSkipped()
+	{
+		long total = 0;
+		for(int i=0; i<shards.length; i++)
+		{
+			total += shards[i].skipped;
+		}
+		return total;
+	}
+
+	/**
+	 * @return Milliseconds the schedule has been moved later (only with the
+	 *   'shift' catch-up policy); the most any shard has moved
+	 */
+	public long getShifted()
+	{
+		long most = 0;
+		for(int i=0; i<shards.length; i++)
+		{
+			most = Math.max(most, shards[i].shifted);
+		}
+		return most / 1000000L;
+	}
+
+	/**
+	 * Gets the scheduler statistics as JSON.
+	 * @return JSON object with shards, policy (burst, skip or shift), tolerance
+	 *   (milliseconds), skipped, shifted (milliseconds), and a lag object with
+	 *   count, mean, p50, p99, p999 and max (milliseconds late)
+	 */
+	public String toJson()
+	{
+		return "{\"shards\":" + shards.length + ",\"policy\":\"" +
+			POLICY_NAMES[policy] + "\",\"tolerance\":" +
+			(toleranceNanos / 1000000L) + ",\"skipped\":" + getSkipped() +
+			",\"shifted\":" + getShifted() + ",\"lag\":{\"count\":" +
+			lag.getCount() + ",\"mean\":" + format(lag.getMean() / 1000.0) +
+			",\"p50\":" + format(lag.getValueAtPercentile(50) / 1000.0) +
+			",\"p99\":" + format(lag.getValueAtPercentile(99) / 1000.0) +
+			",\"p999\":" + format(lag.getValueAtPercentile(99.9) / 1000.0) +
+			",\"max\":" + format(Math.max(lag.getMax(), 0) / 1000.0) + "}}";
+	}
+
+	/**
+	 * Writes the scheduler statistics as text.
+	 * @param out Output
+	 */
+	public void write(PrintWriter out)
+	{
+		if(shards.length > 1)
+		{
+			out.println("Scheduler:     " + shards.length + " shards");
+		}
+		out.println("Catch-up:      " + POLICY_NAMES[policy] +
+			(policy == CATCHUP_BURST ? ""
+			: " (over " + (toleranceNanos / 1000000L) + " ms late)"));
+		if(lag.getCount() > 0)
+		{
+			out.println("Dispatch lag (ms): p50 " +
+				format(lag.getValueAtPercentile(50) / 1000.0) + ", p99 " +
+				format(lag.getValueAtPercentile(99) / 1000.0) + ", p99.9 " +
+				format(lag.getValueAtPercentile(99.9) / 1000.0) + ", max " +
+				format(lag.getMax() / 1000.0));
+		}
+		if(policy == CATCHUP_SKIP)
+		{
+			out.println("Skipped:       " + getSkipped() +
+				" (not attempted because too late)");
+		}
+		else if(policy == CATCHUP_SHIFT)
+		{
+			out.println("Shifted:       " + getShifted() + " ms");
+		}
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.US, "%.3f", value);
+	}
 }
@@ -38,28 +38,16 @@ print '<p><strong>' . get_string('warning', 'report_loadtest') . '</strong></p>'
 
 ?>
 <script type="text/javascript">
-var testTime = 20000;
-var delayTime = 10000;
+var stepTime = 10000;
 
-var requestsPerSecond;
-var increaseRate;
-
-var passFailed = 0;
-var numRequests;
-var numSuccesses;
-var allTimes;
-var startTime;
-
-var lastOkResult;
-
-var stopRequest;
+var lastOkCell;
+var bestCells;
 
 function go()
 {
 	// Disable button
 	document.getElementById('go').disabled = true;
 	document.getElementById('stop').disabled = false;
-	stopRequest = false;
 
 	// Clear results	
 	var trs = document.getElementById('results').getElementsByTagName('tr');
@@ -67,38 +55,28 @@ function go()
 	{
 		trs.item(i).parentNode.removeChild(trs.item(i));
 	}
-	
-	// Set initial requests per second
-	requestsPerSecond = 1;
-	increaseRate = 2;
-	lastOkResult = null;
-	startTest();
+	lastOkCell = null;
+	bestCells = {};
+
+	var applet = document.getElementById('applet');
+	var url = '<?php print $CFG->wwwroot ?>/admin/report/loadtest/test.php';
+	var pattern = 'Finished OK';
+
+	// The applet steps the rate up (doubling, then narrowing down between the
+	// best pass and the lowest fail) and checks each step against these:
+	// 1. Fail if success < 100
+	// 2. Fail if median time increased more than 50%
+	// 3. Fail if actual rate is less than 90% of attempted
+	applet.loadTestSlo('success', 100);
+	applet.loadTestSlo('median', 1.5);
+	applet.loadTestSlo('achieved', 0.9);
+	applet.loadTestSearch(1, stepTime, url, pattern);
 }
 
 function stop()
 {
 	document.getElementById('stop').disabled = true;
-	stopRequest = true;
-}
-	
-function startTest()
-{
-	var applet = document.getElementById('applet');
-	var url = '<?php print $CFG->wwwroot ?>/admin/report/loadtest/test.php';
-	var pattern = 'Finished OK';
-	
-	numSuccesses = 0;
-	allTimes = [];
-	
-	var delay = 1000 / requestsPerSecond;
-	numRequests = 0;
-	for(var time=0; time<testTime; time+=delay)
-	{
-		applet.loadTestEvent(Math.floor(time), url, pattern); 
-		numRequests++;
-	}
-	applet.loadTestStart();
-	startTime = new Date().getTime();
+	document.getElementById('applet').loadTestReset();
 }
 
 function addCell(tr, text)
@@ -128,50 +106,23 @@ function addCell(tr, text)
 	return td;
 }
 
-function checkResults(currentResult)
-{
-	// 1. Fail if success < 100
-	if(currentResult.success < 100.0)
-	{
-		return false;
-	}
-	
-	// 2. Fail if median time increased more than 50%
-	if(lastOkResult && currentResult.median > lastOkResult.median * 1.5)
-	{
-		return false;
-	}
-	
-	// 3. Fail if attempted/actual not close
-	if(currentResult.actual < currentResult.attempted * 0.9)
-	{
-		return false;
-	}
-	
-	return true;
-}
-
-function loadTestFinished()
+function loadTestSearchStep(step)
 {
-	var applet = document.getElementById('applet');
-	applet.loadTestReset();
-
-	var endTime = new Date().getTime();
-	var actualRPS = Math.round(100 * (numRequests * 1000) / (endTime - startTime)) / 100;
-	
-	allTimes.sort(function(a,b){return a - b});
-	var medianTime = allTimes[Math.floor(allTimes.length / 2)];
-	var successPercentage = Math.round(10 * (numSuccesses * 100) / numRequests) / 10;
-	
 	var results = document.getElementById('results');
 	var tr = document.createElement('tr');
 	results.appendChild(tr);
 	
-	addCell(tr, requestsPerSecond);
-	var actualCell = addCell(tr, actualRPS);
-	addCell(tr, medianTime + ' ms');
-	addCell(tr, successPercentage + '%');
+	addCell(tr, step.rate);
+	var actualCell = addCell(tr, step.achieved);
+	addCell(tr, Math.round(step.statistics.response.p50) + ' ms');
+	addCell(tr, step.statistics.successRate + '%');
 	
+	if(step.pass)
+	{
+		bestCells[step.rate] = actualCell;
+		return;
+	}
+
 	// Add information line
 	tr = document.createElement('tr');
 	results.appendChild(tr);
@@ -185,89 +136,55 @@ function loadTestFinished()
 	td.appendChild(span);
 	span.style.padding = '4px';
 	span.style.background = '#eee';
-	
-	// Get current result
-	var currentResult = { attempted: requestsPerSecond, actual: actualRPS,
-		success: successPercentage, median: medianTime, cell:actualCell };
-	
-	// Is it ok?
-	var ok = checkResults(currentResult);
-	
-	// Decide whether to increase
-	if(!ok)
-	{
-		passFailed++;
-		if(passFailed >= 3)
-		{
-			// Didn't manage to do that many requests per second, so stop
-			span.appendChild(document.createTextNode('<?php print_string("fail_stop", 	"report_loadtest"); ?>')); 
-	
-			// Enable button again, and stop
-			document.getElementById('go').disabled = false;
-			
-			// Highlight the last OK score
-			if(lastOkResult)
-			{
-				var cells = results.getElementsByTagName('td');
-				for(var i=0; i<cells.length - 1; i++)
-				{
-					cells.item(i).style.background = '#eee';
-				}
-				lastOkResult.cell.style.border = '2px solid green';
-				lastOkResult.cell.style.background = 'white';
-			}
-			return;
-		}
-		else
-		{
-			// Retry, maybe there was congestion at that point
-			requestsPerSecond -= increaseRate;
-			if(increaseRate > 0.25)
-			{
-				increaseRate /= 2;
-			}
-			span.appendChild(document.createTextNode('<?php print_string("fail_retry", 	"report_loadtest"); ?>')); 
-		}
-	}
-	else
+	span.appendChild(document.createTextNode('<?php print_string("fail_step", "report_loadtest"); ?>' + step.failure)); 
+}
+
+function loadTestSearchFinished(rate)
+{
+	// Enable button again
+	document.getElementById('go').disabled = false;
+	document.getElementById('stop').disabled = true;
+	if(rate < 0)
 	{
-		// Reset fail count
-		passFailed = 0;
-		
-		// Store these as successful results
-		lastOkResult = currentResult;
-		
-		// Add waiting message
-		span.appendChild(document.createTextNode('<?php print_string("waiting", "report_loadtest"); ?>')); 
+		return;
 	}
-	
-	setTimeout(function()
+
+	// Highlight the best OK score
+	var results = document.getElementById('results');
+	var tr = document.createElement('tr');
+	results.appendChild(tr);
+	var td = document.createElement('td');
+	tr.appendChild(td);
+	td.colSpan = 4;
+	td.style.padding = '4px';
+	td.style.border = 'none';
+	td.style.background = 'white';
+	td.appendChild(document.createTextNode('<?php print_string("fail_stop", "report_loadtest"); ?>')); 
+
+	lastOkCell = bestCells[rate];
+	if(lastOkCell)
 	{
-		results.removeChild(tr);
-		
-		if(stopRequest)
+		var cells = results.getElementsByTagName('td');
+		for(var i=0; i<cells.length - 1; i++)
 		{
-			document.getElementById('go').disabled = false;
-			return;
+			cells.item(i).style.background = '#eee';
 		}
-		requestsPerSecond += increaseRate;
-		startTest();
-	}, stopRequest ? 0 : delayTime);
+		lastOkCell.style.border = '2px solid green';
+		lastOkCell.style.background = 'white';
+	}
 }
 
-function loadTestResult(index, ms, result)
+function loadTestResults(results)
 {
-	if(result)
-	{
-		numSuccesses++;
-	}
-	allTimes.push(ms);
+	// Each result is [index, ms, result]. Totals are collected by the applet
+	// (see loadTestSearchStep) so there is nothing to do here.
 }
 </script>
 
 <div style="margin: 2em 0">
 <div>
 <applet code="com.leafdigital.loadtestapplet.LoadTestApplet" width="502" height="282" archive="loadtestapplet.<?php print $appletdate; ?>.jar" id="applet">
+<param name="overflow" value="queue">
 </applet>
 </div>
 
@@ -7,14 +7,13 @@ $string['requestspersecondactual'] = 'Requests/s (actual)';
 $string['mediantime'] = 'Median time';
 $string['successful'] = 'Successful';
 $string['results'] = 'Results';
-$string['fail_retry'] = 'Fail, waiting for retry (10 second delay)';
+$string['fail_step'] = 'Fail: ';
 $string['fail_stop'] = 'Test completed (server cannot cope with this rate)';
-$string['waiting'] = 'Waiting (10 second delay before next test part)...';
 $string['starttest'] = 'Start test';
 $string['stoptest'] = 'Stop test';
 $string['testinfo'] = '
-<p>Once you start the test, it runs for 20 seconds, pauses for 10 seconds, then increases the number of requests per second and repeats. This continues until the system cannot deliver the desired number of requests per second.</p>
-<p>Should you wish to stop the test before that, click the stop button; the test will stop after the current part completes.</p>
+<p>Once you start the test, it runs for 10 seconds at each rate, without a pause in between. The number of requests per second doubles until the system cannot deliver it, then the test narrows down between the highest rate that worked and the lowest that did not. A failed rate is tried again once before it counts, in case there was congestion at that point. The test usually takes a few minutes.</p>
+<p>Should you wish to stop the test before that, click the stop button; the test stops once current requests complete.</p>
 <p><i>Note: If you see values for actual requests/s which are notably lower than attempted requests/s, even when the server is not stressed and is completing all requests quickly, this may be because your browser is coping poorly. The same applies if results do not update in the results table immediately after a test part finishes. Switch to a different browser and try again.</i></p>
 <p>The result number (will be highlighted in table) is the number of requests per second your server can handle, using the test load. You should probably run the test multiple times to check that the result is consistent.</p>
 <p>This number of requests per second is not necessarily exactly the number of genuine Moodle requests per second that you can handle, but it might be somewhat related to that number.</p>